@@ -0,0 +1,52 @@
+package dsv.pis.chat.jmh;
+
+import dsv.pis.chat.server.ChatServer;
+import dsv.pis.chat.server.ChatServerOptions;
+import dsv.pis.chat.server.Client;
+import dsv.pis.chat.server.Targets;
+import net.jini.core.event.RemoteEventListener;
+
+import java.io.IOException;
+import java.util.UUID;
+
+/**
+ * A ChatServer that lets the benchmarks fill a room without the join
+ * messages, which would cost a quadratic number of deliveries for a large
+ * room, and call addMessage() directly.
+ */
+class BenchServer extends ChatServer {
+    BenchServer(ChatServerOptions options) throws IOException {
+        super("jmh", options);
+    }
+
+    /**
+     * Registers a listener quietly.
+     */
+    void addListener(RemoteEventListener rel) {
+        UUID uuid = UUID.randomUUID();
+        Client client = new Client(nextClientId.getAndIncrement(), uuid, rel, shardOf(uuid));
+        sessions.put(client);
+        members = members.with(client);
+    }
+
+    /**
+     * Sends a message from the server to every registered listener.
+     */
+    void post(String msg) {
+        addMessage(this, msg, Targets.allExcept(members, null));
+    }
+
+    /**
+     * @return The number of registered listeners.
+     */
+    int size() {
+        return members.size();
+    }
+
+    static ChatServerOptions options() {
+        ChatServerOptions options = new ChatServerOptions();
+        options.joinLookup = false;
+        options.historySize = 0;
+        return options;
+    }
+}
@@ -0,0 +1,25 @@
+package dsv.pis.chat.jmh;
+
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the JMH benchmarks once for every number of producer threads in
+ * the chat.threads system property (a comma separated list, 1,4,16 by
+ * default). The commandline takes the usual JMH options, which apply to
+ * every run.
+ */
+public class BenchmarkMain {
+    public static void main(String[] argv) throws RunnerException, CommandLineOptionException {
+        CommandLineOptions commandLine = new CommandLineOptions(argv);
+        for (String threads : System.getProperty("chat.threads", "1,4,16").split(",")) {
+            new Runner(new OptionsBuilder()
+                    .parent(commandLine)
+                    .threads(Integer.parseInt(threads.trim()))
+                    .build()).run();
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package dsv.pis.chat.jmh;
+
+import dsv.pis.chat.server.ChatNotification;
+import net.jini.core.event.RemoteEvent;
+import net.jini.core.event.RemoteEventListener;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-process stand-in for a ChatClient. It only counts the messages it
+ * is given, on a counter shared by all listeners of a benchmark.
+ */
+class CountingListener implements RemoteEventListener {
+    private final AtomicLong delivered;
+
+    CountingListener(AtomicLong delivered) {
+        this.delivered = delivered;
+    }
+
+    public void notify(RemoteEvent event) {
+        if (event instanceof ChatNotification.Batch) {
+            delivered.addAndGet(((ChatNotification.Batch) event).getFrames().length);
+        } else {
+            delivered.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package dsv.pis.chat.jmh;
+
+import dsv.pis.chat.server.ChatServerOptions;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The server's hot path: producers calling addMessage(), and messages
+ * travelling through the distribution threads and the delivery workers to
+ * a room of in-process listeners. Run with several shard counts to see
+ * fan-out throughput grow with the cores it is given.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FanoutBenchmark {
+    @Param({"10", "100", "1000", "10000"})
+    public int members;
+
+    @Param({"1", "2", "4", "8"})
+    public int shards;
+
+    private BenchServer server;
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong sent = new AtomicLong();
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        ChatServerOptions options = BenchServer.options();
+        options.shards = shards;
+        server = new BenchServer(options);
+        for (int i = 0; i < members; i++) {
+            server.addListener(new CountingListener(delivered));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        server.stop();
+    }
+
+    /**
+     * The producer side alone. Once the message ring is full, producers
+     * run at the pace of the fan-out behind it.
+     */
+    @Benchmark
+    public void addMessage() {
+        server.post("Hello, everyone in the room");
+    }
+
+    /**
+     * One message, all the way to every member of the room.
+     */
+    @Benchmark
+    public void fanout() {
+        server.post("Hello, everyone in the room");
+        long wanted = sent.incrementAndGet() * members;
+        while (delivered.get() < wanted) {
+            Thread.yield();
+        }
+    }
+}
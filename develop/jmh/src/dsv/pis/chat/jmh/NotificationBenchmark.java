@@ -0,0 +1,102 @@
+package dsv.pis.chat.jmh;
+
+import dsv.pis.chat.server.ChatNotification;
+import dsv.pis.chat.server.Client;
+import dsv.pis.chat.server.Membership;
+import dsv.pis.chat.server.Targets;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Building a ChatNotification (sender prefix and encoding included), and
+ * the Java serialization RMI applies to what is sent. The serialized
+ * sizes are printed at the start of each trial.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class NotificationBenchmark {
+    /**
+     * The number of characters in the message text.
+     */
+    @Param({"20", "200", "2000"})
+    public int length;
+
+    private Client sender;
+    private Targets targets;
+    private String text;
+    private long serial = 0;
+    private ChatNotification.Frame frame;
+    private ChatNotification.Batch batch;
+    private byte[] serializedFrame;
+
+    @Setup
+    public void setUp() throws Exception {
+        sender = new Client(1, UUID.randomUUID(), new CountingListener(new AtomicLong()));
+        sender.setName("benchmark");
+        targets = Targets.allExcept(Membership.EMPTY.with(sender), sender);
+        char[] chars = new char[length];
+        Arrays.fill(chars, 'x');
+        text = new String(chars);
+        frame = construct().getFrame();
+        ChatNotification.Frame[] frames = new ChatNotification.Frame[64];
+        for (int i = 0; i < frames.length; i++) {
+            frames[i] = construct().getFrame();
+        }
+        batch = new ChatNotification.Batch(frames);
+        serializedFrame = serialize(frame);
+        System.out.println("\nSerialized frame: " + serializedFrame.length
+                + " bytes, batch of 64: " + serialize(batch).length + " bytes");
+    }
+
+    @Benchmark
+    public ChatNotification construct() throws IOException {
+        return new ChatNotification(sender, text, serial++, targets);
+    }
+
+    @Benchmark
+    public byte[] serializeFrame() throws IOException {
+        return serialize(frame);
+    }
+
+    @Benchmark
+    public byte[] serializeBatch() throws IOException {
+        return serialize(batch);
+    }
+
+    @Benchmark
+    public ChatNotification.Message deserializeFrame() throws IOException, ClassNotFoundException {
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serializedFrame));
+        return ((ChatNotification.Frame) in.readObject()).getMessage();
+    }
+
+    private static byte[] serialize(Object o) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(buffer);
+        out.writeObject(o);
+        out.close();
+        return buffer.toByteArray();
+    }
+}
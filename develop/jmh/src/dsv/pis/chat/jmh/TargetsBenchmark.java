@@ -0,0 +1,87 @@
+package dsv.pis.chat.jmh;
+
+import dsv.pis.chat.server.Client;
+import dsv.pis.chat.server.Membership;
+import dsv.pis.chat.server.Targets;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Choosing the receivers of a broadcast. The server used to copy all
+ * clients but the sender into a new list for every message; now a message
+ * refers to the membership snapshot and the distribution thread skips the
+ * sender while it walks the snapshot.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TargetsBenchmark {
+    @Param({"10", "100", "1000", "10000"})
+    public int members;
+
+    private Membership membership = Membership.EMPTY;
+    private Client sender;
+
+    @Setup
+    public void setUp() {
+        AtomicLong delivered = new AtomicLong();
+        for (int i = 0; i < members; i++) {
+            membership = membership.with(new Client(i + 1, UUID.randomUUID(), new CountingListener(delivered)));
+        }
+        sender = membership.clients()[members / 2];
+    }
+
+    /**
+     * What say() does for every message.
+     */
+    @Benchmark
+    public Targets allExcept() {
+        return Targets.allExcept(membership, sender);
+    }
+
+    /**
+     * What the distribution thread does for every message.
+     */
+    @Benchmark
+    public void resolve(Blackhole bh) {
+        Targets targets = Targets.allExcept(membership, sender);
+        for (Client client : targets.candidates()) {
+            if (targets.accepts(client)) {
+                bh.consume(client);
+            }
+        }
+    }
+
+    /**
+     * The old way, for comparison: a fresh list of everyone but the sender.
+     */
+    @Benchmark
+    public List<Client> copyAllExcept() {
+        List<Client> copy = new ArrayList<>();
+        for (Client client : membership.clients()) {
+            if (client != sender) {
+                copy.add(client);
+            }
+        }
+        return copy;
+    }
+}
@@ -0,0 +1,181 @@
+package dsv.pis.chat.bench;
+
+import dsv.pis.chat.server.ChatNotification;
+import dsv.pis.chat.server.ChatServer;
+import dsv.pis.chat.server.ChatServerOptions;
+import dsv.pis.chat.server.DeliveryThreads;
+import net.jini.core.event.RemoteEvent;
+import net.jini.core.event.RemoteEventListener;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the ways of running delivery: the original single delivery
+ * thread that calls every listener in turn, the shared pool of delivery
+ * workers, and one (virtual, where available) thread per client. A
+ * fraction of the listeners are slow, simulating clients on bad links;
+ * the rest return at once. The server runs in-process without Jini and
+ * batching is off, so each message costs one notify() per recipient.
+ * <p>
+ * Usage: DeliveryModeBenchmark [clients] [messages] [slow-ms] [slow-fraction]
+ */
+public class DeliveryModeBenchmark {
+
+    /**
+     * A listener that takes a fixed time per notify(), like a remote
+     * listener behind a slow link.
+     */
+    private static class StubListener implements RemoteEventListener {
+        private final long delayMillis;
+        private final CountDownLatch received;
+
+        StubListener(long delayMillis, CountDownLatch received) {
+            this.delayMillis = delayMillis;
+            this.received = received;
+        }
+
+        public void notify(RemoteEvent rev) {
+            if (delayMillis > 0) {
+                try {
+                    Thread.sleep(delayMillis);
+                } catch (InterruptedException iex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (rev instanceof ChatNotification.Batch) {
+                for (int i = ((ChatNotification.Batch) rev).getFrames().length; i > 0; i--) {
+                    received.countDown();
+                }
+            } else {
+                received.countDown();
+            }
+        }
+    }
+
+    public static void main(String[] argv) throws Exception {
+        int clients = (argv.length > 0) ? Integer.parseInt(argv[0]) : 1000;
+        int messages = (argv.length > 1) ? Integer.parseInt(argv[1]) : 10;
+        long slowMillis = (argv.length > 2) ? Long.parseLong(argv[2]) : 5;
+        double slowFraction = (argv.length > 3) ? Double.parseDouble(argv[3]) : 0.1;
+
+        System.out.println(clients + " clients, " + messages + " messages, "
+                + (int) (slowFraction * 100) + "% of clients take " + slowMillis + " ms per notify()");
+        System.out.println("Per-client threads are "
+                + (DeliveryThreads.isVirtual() ? "virtual" : "platform (no virtual threads on this runtime)"));
+        System.out.println();
+        System.out.println("mode        ms    messages/s");
+
+        report("single", runSingleThread(clients, messages, slowMillis, slowFraction), clients, messages);
+        report("pool", runServer(false, clients, messages, slowMillis, slowFraction), clients, messages);
+        report("thread", runServer(true, clients, messages, slowMillis, slowFraction), clients, messages);
+        System.exit(0);
+    }
+
+    private static void report(String mode, long nanos, int clients, int messages) {
+        double millis = nanos / 1e6;
+        System.out.printf("%-8s %8.0f %12.0f%n", mode, millis, (double) clients * messages / (millis / 1000));
+    }
+
+    private static boolean isSlow(int i, int clients, double slowFraction) {
+        return i < (int) (clients * slowFraction);
+    }
+
+    /**
+     * What the distribution thread in ChatServer.run() originally did:
+     * every message goes to every client in turn, on one thread.
+     */
+    private static long runSingleThread(int clients, int messages, long slowMillis, double slowFraction)
+            throws Exception {
+        CountDownLatch received = new CountDownLatch(clients * messages);
+        StubListener[] listeners = new StubListener[clients];
+        for (int i = 0; i < clients; i++) {
+            listeners[i] = new StubListener(isSlow(i, clients, slowFraction) ? slowMillis : 0, received);
+        }
+        long start = System.nanoTime();
+        for (int m = 0; m < messages; m++) {
+            ChatNotification.Frame frame =
+                    new ChatNotification.Frame(new ChatNotification.Message(1, m, "message " + m));
+            for (StubListener listener : listeners) {
+                listener.notify(frame);
+            }
+        }
+        received.await();
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Runs the real server in-process, with either the worker pool or a
+     * thread per client.
+     */
+    private static long runServer(boolean threadPerClient, int clients, int messages, long slowMillis,
+                                  double slowFraction) throws Exception {
+        ChatServerOptions options = new ChatServerOptions();
+        options.joinLookup = false;
+        options.threadPerClient = threadPerClient;
+        options.maxBatch = 1;
+        ChatServer server = new ChatServer("bench", options);
+
+        // The join messages of the clients (and of the sender) go to
+        // everyone already there; wait for those to be delivered before
+        // the clock starts.
+        CountDownLatch joined = new CountDownLatch(clients * (clients - 1) / 2 + clients);
+        CountDownLatch received = new CountDownLatch(clients * messages);
+        ForwardingListener[] listeners = new ForwardingListener[clients];
+        UUID sender = UUID.randomUUID();
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(new ByteArrayOutputStream()));
+        try {
+            for (int i = 0; i < clients; i++) {
+                listeners[i] = new ForwardingListener(joined);
+                server.register(UUID.randomUUID(), listeners[i]);
+            }
+            server.register(sender, new StubListener(0, new CountDownLatch(0)));
+            joined.await(5, TimeUnit.MINUTES);
+        } finally {
+            System.setOut(console);
+        }
+
+        for (int i = 0; i < clients; i++) {
+            listeners[i].target = new StubListener(isSlow(i, clients, slowFraction) ? slowMillis : 0, received);
+        }
+
+        long start = System.nanoTime();
+        for (int m = 0; m < messages; m++) {
+            server.say(sender, "message " + m);
+        }
+        received.await();
+        long elapsed = System.nanoTime() - start;
+        System.setOut(new PrintStream(new ByteArrayOutputStream()));
+        try {
+            server.stop();
+        } finally {
+            System.setOut(console);
+        }
+        return elapsed;
+    }
+
+    /**
+     * Counts join notices until the measured listener is put in place.
+     */
+    private static class ForwardingListener implements RemoteEventListener {
+        private final CountDownLatch joined;
+        volatile StubListener target = null;
+
+        ForwardingListener(CountDownLatch joined) {
+            this.joined = joined;
+        }
+
+        public void notify(RemoteEvent rev) {
+            StubListener t = target;
+            if (t != null) {
+                t.notify(rev);
+            } else {
+                joined.countDown();
+            }
+        }
+    }
+}
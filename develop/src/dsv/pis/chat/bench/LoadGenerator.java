@@ -0,0 +1,415 @@
+package dsv.pis.chat.bench;
+
+import dsv.pis.chat.server.ChatNotification;
+import dsv.pis.chat.server.ChatServer;
+import dsv.pis.chat.server.ChatServerInterface;
+import dsv.pis.chat.server.ChatServerOptions;
+import net.jini.core.event.RemoteEvent;
+import net.jini.core.event.RemoteEventListener;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drives a ChatServer with thousands of simulated clients on one machine,
+ * without Jini and without a network. The server runs in this process;
+ * the clients reach it either directly (the server object is handed over)
+ * or through an RMI registry on the loopback interface, which adds the
+ * real marshalling and RMI threads.
+ * <p>
+ * A number of the clients send messages, each after a random think time
+ * with the given mean. Every message carries its send time, so each
+ * client measures the end-to-end delay of what it receives. A fraction of
+ * the clients are slow consumers that take a while over every notify().
+ * While the test runs, a line per second shows the send and delivery rates
+ * and the heap and garbage collector of the process; at the end, the
+ * overall latency percentiles and the spread of the per-client
+ * percentiles are printed.
+ * <p>
+ * Usage: LoadGenerator [-c clients] [-n senders] [-t think-ms] [-s size]
+ * [-f slow-fraction] [-w slow-ms] [-d seconds] [-r]
+ */
+public class LoadGenerator {
+    /**
+     * Marks where the send time starts in the text of a load message.
+     */
+    private static final char STAMP = '@';
+
+    private int clients = 1000;
+    private int senders = 10;
+    private int thinkMillis = 100;
+    private int messageSize = 100;
+    private double slowFraction = 0.05;
+    private int slowMillis = 20;
+    private int seconds = 30;
+    private boolean rmi = false;
+
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    private volatile boolean measuring = false;
+
+    /**
+     * A latency histogram in microseconds, with eight buckets per power of
+     * two, which keeps it small enough to give every client one of its
+     * own. Only the delivery of one client writes to it.
+     */
+    static final class Histogram {
+        private static final int SUB = 8;
+        private final int[] counts = new int[64 * SUB];
+        private long count = 0;
+        private long max = 0;
+
+        private static int index(long v) {
+            if (v < SUB) {
+                return (int) Math.max(0, v);
+            }
+            int exp = 63 - Long.numberOfLeadingZeros(v);
+            return (exp - 2) * SUB + (int) ((v >>> (exp - 3)) & (SUB - 1));
+        }
+
+        private static long valueAt(int index) {
+            if (index < SUB) {
+                return index;
+            }
+            int exp = index / SUB + 2;
+            return ((long) (SUB + index % SUB)) << (exp - 3);
+        }
+
+        void record(long micros) {
+            counts[index(micros)]++;
+            count++;
+            max = Math.max(max, micros);
+        }
+
+        void add(Histogram other) {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] += other.counts[i];
+            }
+            count += other.count;
+            max = Math.max(max, other.max);
+        }
+
+        long getCount() {
+            return count;
+        }
+
+        /**
+         * @param q The quantile, between 0 and 1.
+         * @return The lower bound of the bucket that holds the quantile.
+         */
+        long percentile(double q) {
+            long wanted = Math.max(1, (long) Math.ceil(q * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= wanted) {
+                    return Math.min(valueAt(i), max);
+                }
+            }
+            return max;
+        }
+    }
+
+    /**
+     * A simulated client. It counts what it receives and records the delay
+     * of every load message.
+     */
+    private class SimulatedClient implements RemoteEventListener {
+        final UUID uuid = UUID.randomUUID();
+        final boolean slow;
+        final Histogram latency = new Histogram();
+
+        SimulatedClient(boolean slow) {
+            this.slow = slow;
+        }
+
+        public void notify(RemoteEvent rev) {
+            long now = System.nanoTime();
+            if (slow) {
+                try {
+                    Thread.sleep(slowMillis);
+                } catch (InterruptedException iex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (rev instanceof ChatNotification.Batch) {
+                for (ChatNotification.Frame frame : ((ChatNotification.Batch) rev).getFrames()) {
+                    received(frame, now);
+                }
+            } else if (rev instanceof ChatNotification.Frame) {
+                received((ChatNotification.Frame) rev, now);
+            }
+        }
+
+        private void received(ChatNotification.Frame frame, long now) {
+            delivered.incrementAndGet();
+            if (!measuring) {
+                return;
+            }
+            try {
+                String text = frame.getMessage().getMsg();
+                int at = text.indexOf(STAMP);
+                int end = text.indexOf(';', at);
+                if (at >= 0 && end > at) {
+                    long sentAt = Long.parseLong(text.substring(at + 1, end));
+                    synchronized (this) {
+                        latency.record(TimeUnit.NANOSECONDS.toMicros(now - sentAt));
+                    }
+                }
+            } catch (IOException | NumberFormatException ex) {
+                // Not a load message.
+            }
+        }
+    }
+
+    public static void main(String[] argv) throws Exception {
+        LoadGenerator load = new LoadGenerator();
+        try {
+            for (int i = 0; i < argv.length; i++) {
+                String av = argv[i];
+                if (av.equalsIgnoreCase("-c")) {
+                    load.clients = Integer.parseInt(argv[++i]);
+                } else if (av.equalsIgnoreCase("-n")) {
+                    load.senders = Integer.parseInt(argv[++i]);
+                } else if (av.equalsIgnoreCase("-t")) {
+                    load.thinkMillis = Integer.parseInt(argv[++i]);
+                } else if (av.equalsIgnoreCase("-s")) {
+                    load.messageSize = Integer.parseInt(argv[++i]);
+                } else if (av.equalsIgnoreCase("-f")) {
+                    load.slowFraction = Double.parseDouble(argv[++i]);
+                } else if (av.equalsIgnoreCase("-w")) {
+                    load.slowMillis = Integer.parseInt(argv[++i]);
+                } else if (av.equalsIgnoreCase("-d")) {
+                    load.seconds = Integer.parseInt(argv[++i]);
+                } else if (av.equalsIgnoreCase("-r")) {
+                    load.rmi = true;
+                } else {
+                    throw new IllegalArgumentException(av);
+                }
+            }
+        } catch (RuntimeException ex) {
+            System.out.println("Usage: LoadGenerator [-c clients] [-n senders] [-t think-ms] [-s size]");
+            System.out.println("                     [-f slow-fraction] [-w slow-ms] [-d seconds] [-r]");
+            System.exit(1);
+        }
+        load.run();
+        System.exit(0);
+    }
+
+    private void run() throws Exception {
+        if (rmi) {
+            // Keep RMI on the loopback interface.
+            System.setProperty("java.rmi.server.hostname", "127.0.0.1");
+        }
+        ChatServerOptions options = new ChatServerOptions();
+        options.joinLookup = false;
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(new ByteArrayOutputStream()));
+
+        ChatServer server;
+        ChatServerInterface stub;
+        SimulatedClient[] simulated = new SimulatedClient[clients];
+        try {
+            server = new ChatServer("load", options);
+            stub = server;
+            if (rmi) {
+                Registry registry = LocateRegistry.createRegistry(Registry.REGISTRY_PORT);
+                registry.rebind("ChatServer", server);
+                stub = (ChatServerInterface) LocateRegistry.getRegistry("127.0.0.1").lookup("ChatServer");
+            }
+            int slowCount = (int) (clients * slowFraction);
+            for (int i = 0; i < clients; i++) {
+                simulated[i] = new SimulatedClient(isSlow(i, slowCount));
+                RemoteEventListener listener = simulated[i];
+                if (rmi) {
+                    listener = (RemoteEventListener) UnicastRemoteObject.exportObject(simulated[i], 0);
+                }
+                stub.register(simulated[i].uuid, listener);
+            }
+        } finally {
+            System.setOut(console);
+        }
+
+        console.println(clients + " clients (" + (int) (clients * slowFraction) + " slow, " + slowMillis
+                + " ms per notify), " + senders + " senders, " + thinkMillis + " ms mean think time, "
+                + messageSize + " character messages, " + (rmi ? "RMI on loopback" : "direct calls"));
+        console.print("Waiting for the join messages to be delivered...");
+        long before;
+        do {
+            before = delivered.get();
+            Thread.sleep(500);
+        } while (delivered.get() != before);
+        console.println(" " + before + " delivered.");
+        console.println();
+        console.println("  time     sent/s   delivered/s   heap MB   GCs   GC ms");
+
+        final ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(
+                Math.max(2, Runtime.getRuntime().availableProcessors()));
+        measuring = true;
+        final long start = System.nanoTime();
+        for (int i = 0; i < Math.min(senders, clients); i++) {
+            startSender(scheduler, stub, simulated[i * clients / Math.max(1, senders)].uuid);
+        }
+        scheduler.scheduleAtFixedRate(new Sampler(console, start), 1, 1, TimeUnit.SECONDS);
+
+        Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+        scheduler.shutdownNow();
+        long sendNanos = System.nanoTime() - start;
+        long totalSent = sent.get();
+        // Give the last messages time to arrive.
+        long last;
+        do {
+            last = delivered.get();
+            Thread.sleep(500);
+        } while (delivered.get() != last);
+        measuring = false;
+
+        report(console, simulated, totalSent, sendNanos);
+
+        System.setOut(new PrintStream(new ByteArrayOutputStream()));
+        server.stop();
+        System.setOut(console);
+    }
+
+    /**
+     * Tells whether client i is one of the slow ones. They are spread
+     * evenly over the client numbers, so the senders are a mix as well.
+     */
+    private boolean isSlow(int i, int slowCount) {
+        if (slowCount <= 0) {
+            return false;
+        }
+        int step = Math.max(1, clients / slowCount);
+        return i % step == 0 && i / step < slowCount;
+    }
+
+    /**
+     * Lets a simulated client send a message after every think time.
+     */
+    private void startSender(final ScheduledThreadPoolExecutor scheduler, final ChatServerInterface stub,
+                             final UUID uuid) {
+        final char[] padding = new char[Math.max(0, messageSize - 21)];
+        Arrays.fill(padding, 'x');
+        final String pad = new String(padding);
+        Runnable send = new Runnable() {
+            public void run() {
+                try {
+                    stub.say(uuid, STAMP + Long.toString(System.nanoTime()) + ";" + pad);
+                    sent.incrementAndGet();
+                } catch (IOException iox) {
+                    return;
+                }
+                if (!scheduler.isShutdown()) {
+                    scheduler.schedule(this, thinkTime(), TimeUnit.MICROSECONDS);
+                }
+            }
+        };
+        scheduler.schedule(send, thinkTime(), TimeUnit.MICROSECONDS);
+    }
+
+    /**
+     * @return An exponentially distributed think time, in microseconds.
+     */
+    private long thinkTime() {
+        double u = ThreadLocalRandom.current().nextDouble();
+        return (long) (-Math.log(1 - u) * thinkMillis * 1000);
+    }
+
+    /**
+     * Prints a line per second about the rates and the heap.
+     */
+    private class Sampler implements Runnable {
+        private final PrintStream console;
+        private final long start;
+        private long lastSent = 0;
+        private long lastDelivered = delivered.get();
+        private long gcCount;
+        private long gcMillis;
+        private long lastGcCount;
+        private long lastGcMillis;
+
+        Sampler(PrintStream console, long start) {
+            this.console = console;
+            this.start = start;
+            sampleGc();
+            lastGcCount = gcCount;
+            lastGcMillis = gcMillis;
+        }
+
+        private void sampleGc() {
+            gcCount = 0;
+            gcMillis = 0;
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                gcCount += Math.max(0, gc.getCollectionCount());
+                gcMillis += Math.max(0, gc.getCollectionTime());
+            }
+        }
+
+        public void run() {
+            long s = sent.get();
+            long d = delivered.get();
+            sampleGc();
+            long heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed() >> 20;
+            console.printf("%5ds %10d %13d %9d %5d %7d%n",
+                    TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start),
+                    s - lastSent, d - lastDelivered, heap, gcCount - lastGcCount, gcMillis - lastGcMillis);
+            lastSent = s;
+            lastDelivered = d;
+            lastGcCount = gcCount;
+            lastGcMillis = gcMillis;
+        }
+    }
+
+    private void report(PrintStream console, SimulatedClient[] simulated, long totalSent, long sendNanos) {
+        double secs = sendNanos / 1e9;
+        Histogram all = new Histogram();
+        List<Long> fastP99 = new ArrayList<>();
+        List<Long> slowP99 = new ArrayList<>();
+        for (SimulatedClient client : simulated) {
+            synchronized (client) {
+                all.add(client.latency);
+                if (client.latency.getCount() > 0) {
+                    (client.slow ? slowP99 : fastP99).add(client.latency.percentile(0.99));
+                }
+            }
+        }
+
+        console.println();
+        console.printf("Sent %d messages in %.1f s: %.0f messages/s, %.0f deliveries/s%n",
+                totalSent, secs, totalSent / secs, all.getCount() / secs);
+        console.printf("Latency (ms) over all deliveries: p50 %.1f  p90 %.1f  p99 %.1f  p99.9 %.1f  max %.1f%n",
+                all.percentile(0.5) / 1e3, all.percentile(0.9) / 1e3, all.percentile(0.99) / 1e3,
+                all.percentile(0.999) / 1e3, all.percentile(1.0) / 1e3);
+        spread(console, "fast", fastP99);
+        spread(console, "slow", slowP99);
+    }
+
+    /**
+     * Prints how the per-client 99th percentiles of a group of clients
+     * are spread.
+     */
+    private static void spread(PrintStream console, String group, List<Long> p99) {
+        if (p99.isEmpty()) {
+            return;
+        }
+        Long[] sorted = p99.toArray(new Long[p99.size()]);
+        Arrays.sort(sorted);
+        console.printf("Per-client p99 (ms), %d %s clients: min %.1f  median %.1f  p90 %.1f  max %.1f%n",
+                sorted.length, group, sorted[0] / 1e3, sorted[sorted.length / 2] / 1e3,
+                sorted[(int) (sorted.length * 0.9)] / 1e3, sorted[sorted.length - 1] / 1e3);
+    }
+}
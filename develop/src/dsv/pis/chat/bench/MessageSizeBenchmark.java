@@ -0,0 +1,81 @@
+package dsv.pis.chat.bench;
+
+import dsv.pis.chat.server.ChatNotification;
+import dsv.pis.chat.server.Client;
+import dsv.pis.chat.server.Membership;
+import dsv.pis.chat.server.Targets;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.UUID;
+
+/**
+ * Measures the serialized size of the event each recipient receives (the
+ * pre-encoded frame), for rooms of growing size. The size must be the same for every room size,
+ * otherwise total broadcast traffic grows with the square of the room.
+ * Exits with status 1 if it does not.
+ * <p>
+ * Usage: MessageSizeBenchmark [message-length]
+ */
+public class MessageSizeBenchmark {
+
+    private static final int[] ROOM_SIZES = {1, 10, 100, 1000, 10000};
+
+    private static final int ROUNDS = 2000;
+
+    public static void main(String[] argv) throws IOException {
+        int length = (argv.length > 0) ? Integer.parseInt(argv[0]) : 80;
+        StringBuilder text = new StringBuilder();
+        while (text.length() < length) {
+            text.append("lorem ipsum ");
+        }
+        text.setLength(length);
+
+        Client sender = new Client(1, UUID.randomUUID(), null);
+
+        System.out.println("room size    bytes/recipient    us/serialization");
+        int firstSize = -1;
+        boolean constant = true;
+        for (int roomSize : ROOM_SIZES) {
+            Membership room = Membership.EMPTY.with(sender);
+            for (int i = 1; i < roomSize; i++) {
+                room = room.with(new Client(i + 1, UUID.randomUUID(), null));
+            }
+            ChatNotification notification = new ChatNotification(sender, text.toString(), 4711,
+                    Targets.allExcept(room, sender));
+
+            int size = serializedSize(notification.getFrame());
+            long start = System.nanoTime();
+            for (int i = 0; i < ROUNDS; i++) {
+                serializedSize(notification.getFrame());
+            }
+            double micros = (System.nanoTime() - start) / 1000.0 / ROUNDS;
+
+            System.out.printf("%9d    %15d    %16.2f%n", roomSize, size, micros);
+            if (firstSize < 0) {
+                firstSize = size;
+            } else if (size != firstSize) {
+                constant = false;
+            }
+        }
+
+        if (!constant) {
+            System.out.println("FAILED: payload size depends on room size");
+            System.exit(1);
+        }
+        System.out.println("OK: payload size is constant in room size");
+    }
+
+    /**
+     * Serializes an object the way RMI would marshal a call argument, on
+     * a fresh stream per recipient.
+     */
+    private static int serializedSize(Object o) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(o);
+        out.close();
+        return bytes.size();
+    }
+}
@@ -0,0 +1,120 @@
+package dsv.pis.chat.bench;
+
+import dsv.pis.chat.server.ChatNotification;
+import dsv.pis.chat.server.ChatServer;
+import dsv.pis.chat.server.ChatServerOptions;
+import dsv.pis.chat.server.Client;
+import dsv.pis.chat.server.Targets;
+import net.jini.core.event.RemoteEvent;
+import net.jini.core.event.RemoteEventListener;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures how delivery throughput grows with the number of shards. The
+ * server runs in-process without Jini, with listeners that return at
+ * once, so the cost measured is that of sorting messages into outboxes
+ * and draining them. Every shard count from 1 up to the given maximum
+ * (doubling) gets a fresh server; the figures only grow while there are
+ * cores left for the extra distribution threads.
+ * <p>
+ * Usage: ShardScalingBenchmark [clients] [messages] [max-shards]
+ */
+public class ShardScalingBenchmark {
+
+    /**
+     * A server that registers listeners quietly, without the join
+     * messages, and posts as itself.
+     */
+    private static class QuietServer extends ChatServer {
+        private static final long serialVersionUID = 1L;
+
+        QuietServer(ChatServerOptions options) throws IOException {
+            super("bench", options);
+        }
+
+        void addListener(RemoteEventListener rel) {
+            UUID uuid = UUID.randomUUID();
+            Client client = new Client(nextClientId.getAndIncrement(), uuid, rel, shardOf(uuid));
+            sessions.put(client);
+            members = members.with(client);
+        }
+
+        void post(String msg) {
+            addMessage(this, msg, Targets.allExcept(members, null));
+        }
+    }
+
+    /**
+     * Counts the messages it receives.
+     */
+    private static class CountingListener implements RemoteEventListener {
+        private final AtomicLong received;
+
+        CountingListener(AtomicLong received) {
+            this.received = received;
+        }
+
+        public void notify(RemoteEvent rev) {
+            if (rev instanceof ChatNotification.Batch) {
+                received.addAndGet(((ChatNotification.Batch) rev).getFrames().length);
+            } else {
+                received.incrementAndGet();
+            }
+        }
+    }
+
+    public static void main(String[] argv) throws Exception {
+        int clients = (argv.length > 0) ? Integer.parseInt(argv[0]) : 1000;
+        int messages = (argv.length > 1) ? Integer.parseInt(argv[1]) : 2000;
+        int maxShards = (argv.length > 2) ? Integer.parseInt(argv[2])
+                : Runtime.getRuntime().availableProcessors();
+
+        System.out.println(clients + " clients, " + messages + " messages, "
+                + Runtime.getRuntime().availableProcessors() + " cores");
+        System.out.println();
+        System.out.println("shards      ms  deliveries/s");
+
+        // The first run warms up the JIT and is not reported.
+        run(1, clients, messages);
+        for (int shards = 1; shards <= maxShards; shards *= 2) {
+            long nanos = run(shards, clients, messages);
+            double millis = nanos / 1e6;
+            System.out.printf("%6d %7.0f %13.0f%n", shards, millis, (double) clients * messages / (millis / 1000));
+        }
+        System.exit(0);
+    }
+
+    private static long run(int shards, int clients, int messages) throws Exception {
+        ChatServerOptions options = new ChatServerOptions();
+        options.joinLookup = false;
+        options.historySize = 0;
+        options.shards = shards;
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(new ByteArrayOutputStream()));
+        try {
+            QuietServer server = new QuietServer(options);
+            AtomicLong received = new AtomicLong();
+            for (int i = 0; i < clients; i++) {
+                server.addListener(new CountingListener(received));
+            }
+            long wanted = (long) clients * messages;
+            long start = System.nanoTime();
+            for (int m = 0; m < messages; m++) {
+                server.post("message " + m);
+            }
+            while (received.get() < wanted) {
+                Thread.yield();
+            }
+            long elapsed = System.nanoTime() - start;
+            server.stop();
+            return elapsed;
+        } finally {
+            System.setOut(console);
+        }
+    }
+}
@@ -11,16 +11,17 @@ package dsv.pis.chat.client;
 
 import dsv.pis.chat.server.ChatNotification;
 import dsv.pis.chat.server.ChatServerInterface;
-import net.jini.core.entry.Entry;
+import dsv.pis.chat.server.HistoryPage;
+import dsv.pis.chat.server.nio.NioChatServerStub;
 import net.jini.core.event.RemoteEvent;
 import net.jini.core.event.RemoteEventListener;
+import net.jini.core.lookup.ServiceID;
 import net.jini.core.lookup.ServiceItem;
 import net.jini.core.lookup.ServiceTemplate;
 import net.jini.lookup.LookupCache;
 import net.jini.lookup.ServiceDiscoveryEvent;
 import net.jini.lookup.ServiceDiscoveryListener;
 import net.jini.lookup.ServiceDiscoveryManager;
-import net.jini.lookup.entry.Name;
 
 import java.io.BufferedReader;
 import java.io.IOException;
@@ -28,9 +29,9 @@ import java.io.InputStreamReader;
 import java.rmi.RMISecurityManager;
 import java.rmi.RemoteException;
 import java.util.ArrayList;
-import java.util.Hashtable;
 import java.util.UUID;
-import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 // Jini
 // Chatserver
@@ -46,19 +47,27 @@ public class ChatClient
         RemoteEventListener        // So we can receive chat notifications
 {
     /**
-     * Holds the Jini ServiceItems of found ChatServers.
+     * Holds the Jini ServiceItems of found ChatServers, by serviceID, with
+     * their round-trip times. Discovery events may change it at any time.
      */
-    protected Vector servers = new Vector();
+    protected final ServerTable servers = new ServerTable();
 
     /**
-     * Maps from serviceID to ServiceItem.
+     * Refers to the service object of the currently connected chat-service.
      */
-    protected Hashtable serverIDs = new Hashtable();
+    protected ChatServerInterface myServer = null;
 
     /**
-     * Refers to the service object of the currently connected chat-service.
+     * The Jini service id of myServer, or null if we are connected over
+     * TCP or not at all. A server restarted from a snapshot comes back
+     * under the same id.
      */
-    protected ChatServerInterface myServer = null;
+    protected volatile ServiceID myServiceID = null;
+
+    /**
+     * Sends the user's messages to myServer, or null when not connected.
+     */
+    protected volatile PostQueue posts = null;
 
     /**
      * The name the user has choosen to present herself with.
@@ -95,6 +104,78 @@ public class ChatClient
 
     private final UUID id = UUID.randomUUID();
 
+    /**
+     * Prints the incoming chat messages on a thread of its own.
+     */
+    protected final Renderer renderer = new Renderer();
+
+    /**
+     * The listener registered with myServer, installed together with it,
+     * or null when not connected.
+     */
+    protected volatile Connection connection = null;
+
+    /**
+     * The listener we register with one server. Every connection has its
+     * own, with the names of that server's senders as its roster messages
+     * give them, so neither a server we are leaving nor one that would not
+     * take us can mix its names into those of the server we talk to.
+     */
+    protected class Connection
+            extends
+            java.rmi.server.UnicastRemoteObject
+            implements
+            RemoteEventListener {
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * The names of the senders on this server, by sender id.
+         */
+        protected final ConcurrentHashMap<Integer, String> senders = new ConcurrentHashMap<>();
+
+        protected Connection() throws RemoteException {
+        }
+
+        // In interface RemoteEventListener
+
+        /**
+         * The server of this connection calls this method to notify us of
+         * a new chat message.
+         *
+         * @param rev The remote event that is the notification.
+         */
+        public void notify(RemoteEvent rev)
+                throws
+                net.jini.core.event.UnknownEventException,
+                java.rmi.RemoteException {
+            // Nothing is printed here: the server's delivery call waits for
+            // us, so the lines are only handed to the renderer.
+            if (rev instanceof ChatNotification.Batch) {
+                for (ChatNotification.Frame frame : ((ChatNotification.Batch) rev).getFrames()) {
+                    String line = describe(frame, true, senders);
+                    if (line != null) {
+                        renderer.add(line);
+                    }
+                }
+            } else {
+                String line = describe(rev, true, senders);
+                if (line != null) {
+                    renderer.add(line);
+                }
+            }
+        }
+
+        /**
+         * Stops taking calls from the server.
+         */
+        protected void close() {
+            try {
+                unexportObject(this, true);
+            } catch (java.rmi.NoSuchObjectException nsoe) {
+            }
+        }
+    }
+
     /**
      * Creates a new ChatClient instance.
      */
@@ -141,9 +222,9 @@ public class ChatClient
     public void serviceAdded(ServiceDiscoveryEvent e) {
         ServiceItem sit = e.getPostEventServiceItem();
         if (sit.service instanceof ChatServerInterface) {
-            servers.add(sit);
-            serverIDs.put(sit.serviceID, sit);
+            servers.put(sit);
             System.out.println("[Added server " + sit.toString() + "]");
+            followRestart(sit);
         }
     }
 
@@ -159,10 +240,10 @@ public class ChatClient
         ServiceItem preSit = e.getPreEventServiceItem();
         ServiceItem postSit = e.getPostEventServiceItem();
         if (postSit.service instanceof ChatServerInterface) {
-            servers.remove(serverIDs.get(preSit.serviceID));
-            servers.add(postSit);
-            serverIDs.put(postSit.serviceID, postSit);
+            servers.remove(preSit.serviceID);
+            servers.put(postSit);
             System.out.println("[Changed server " + postSit.toString() + "]");
+            followRestart(postSit);
         }
     }
 
@@ -177,16 +258,58 @@ public class ChatClient
     public void serviceRemoved(ServiceDiscoveryEvent e) {
         ServiceItem sit = e.getPreEventServiceItem();
         if (sit.service instanceof ChatServerInterface) {
-            servers.remove(serverIDs.get(sit.serviceID));
+            servers.remove(sit.serviceID);
             System.out.println("[Removed server " + sit.toString() + "]");
         }
     }
 
+    /**
+     * Moves over to the server we are connected to if it has come back
+     * with a new service object under the same service id, as a server
+     * restarted from a snapshot does. The server kept our session, so
+     * registering again resumes it: we keep our sender id, name and
+     * rooms, and get what was said to us meanwhile.
+     *
+     * @param sit The service item the lookup cache reported.
+     */
+    protected void followRestart(ServiceItem sit) {
+        ServiceID current = myServiceID;
+        Connection listener = connection;
+        if (current == null || listener == null || !current.equals(sit.serviceID)
+                || sit.service.equals(myServer)) {
+            return;
+        }
+        ChatServerInterface server = (ChatServerInterface) sit.service;
+        try {
+            // The same listener, as the session and its names go on.
+            server.register(id, listener);
+        } catch (RemoteException rex) {
+            System.out.println("[Resuming on the restarted server failed: " + rex.getMessage() + "]");
+            return;
+        }
+
+        // The acks of what the old server accepted come from the new one;
+        // the new queue numbers on from the old, so they cannot be taken
+        // for acks of new messages.
+        PostQueue old = posts;
+        long nextId = 0;
+        if (old != null) {
+            int lost = old.close();
+            if (lost > 0) {
+                System.out.println("[" + lost + " messages were not acknowledged]");
+            }
+            nextId = old.getNextId();
+        }
+        myServer = server;
+        posts = new PostQueue(server, id, nextId);
+        System.out.println("[Resumed on the restarted server]");
+    }
+
     // In interface RemoteEventListener
 
     /**
-     * The ChatServer we are registered with (connected to) calls this method
-     * to notify us of a new chat message.
+     * Servers are given a Connection of their own to call; a notification
+     * that reaches us here is taken as coming from the current one.
      *
      * @param rev The remote event that is the notification.
      */
@@ -194,11 +317,75 @@ public class ChatClient
             throws
             net.jini.core.event.UnknownEventException,
             java.rmi.RemoteException {
+        Connection listener = connection;
+        if (listener != null) {
+            listener.notify(rev);
+        }
+    }
+
+    /**
+     * Prints one message from the history at once, bypassing the
+     * renderer.
+     *
+     * @param rev     The message or frame.
+     * @param senders The sender names of the server it came from.
+     */
+    protected void showMessage(RemoteEvent rev, ConcurrentMap<Integer, String> senders) {
+        String line = describe(rev, false, senders);
+        if (line != null) {
+            System.out.println(line);
+        }
+    }
+
+    /**
+     * Decodes one chat message if it arrived encoded and returns the line
+     * to show for it. Acks are passed to the post queue instead, and
+     * rosters update the sender names.
+     *
+     * @param rev  The message or frame.
+     * @param live    False for a message from the history, whose roster
+     *                entries only name senders not already known.
+     * @param senders The sender names of the server it came from.
+     * @return The line, or null if there is nothing to show.
+     */
+    protected String describe(RemoteEvent rev, boolean live, ConcurrentMap<Integer, String> senders) {
+        if (rev instanceof ChatNotification.Frame) {
+            try {
+                rev = ((ChatNotification.Frame) rev).getMessage();
+            } catch (IOException iox) {
+                return "[Unreadable message " + rev.getSequenceNumber() + "]";
+            }
+        }
         if (rev instanceof ChatNotification.Message) {
             ChatNotification.Message chat = (ChatNotification.Message) rev;
-            System.out.println(chat.getSequenceNumber() + " : " +
-                    chat.getMsg());
+            if (chat.getKind() == ChatNotification.Message.ACK) {
+                PostQueue p = posts;
+                if (p != null) {
+                    p.acknowledged(chat.getAckId());
+                }
+                return null;
+            }
+            if (chat.getKind() == ChatNotification.Message.ROSTER) {
+                int[] ids = chat.getIds();
+                String[] names = chat.getNames();
+                for (int i = 0; i < ids.length; i++) {
+                    if (live) {
+                        senders.put(ids[i], names[i]);
+                    } else {
+                        senders.putIfAbsent(ids[i], names[i]);
+                    }
+                }
+                return null;
+            }
+            int senderId = chat.getSenderId();
+            if (senderId == ChatNotification.Message.NO_SENDER_ID) {
+                return chat.getSequenceNumber() + " : " + chat.getMsg();
+            }
+            String name = senders.get(senderId);
+            return chat.getSequenceNumber() + " : [" + (name != null ? name : "#" + senderId) + "]: "
+                    + chat.getMsg();
         }
+        return null;
     }
 
     /**
@@ -210,12 +397,22 @@ public class ChatClient
      */
     public void disconnect(ChatServerInterface server) {
         if (server != null) {
+            if (posts != null && posts.getServer() == server) {
+                int lost = posts.close();
+                posts = null;
+                if (lost > 0) {
+                    System.out.println("[" + lost + " messages were not acknowledged]");
+                }
+            }
             try {
                 String serverName = server.getName();
                 server.unregister(id);
                 System.out.println("[Disconnected from " + serverName + "]");
             } catch (java.rmi.RemoteException rex) {
             }
+            if (server instanceof NioChatServerStub) {
+                ((NioChatServerStub) server).close();
+            }
         }
     }
 
@@ -226,114 +423,156 @@ public class ChatClient
         if (myServer != null) {
             disconnect(myServer);
             myServer = null;
+            myServiceID = null;
+            closeConnection();
         } else {
             System.out.println("[Client is not currently connected]");
         }
     }
 
+    /**
+     * Stops taking notifications on the current connection and forgets
+     * it, with its sender names.
+     */
+    protected void closeConnection() {
+        Connection listener = connection;
+        connection = null;
+        if (listener != null) {
+            listener.close();
+        }
+    }
+
     /**
      * This method implements the '.connect' user command. If a servername
      * pattern is supplied, the known chat services are scanned for names
-     * in which the pattern is case-insensitive substring. If no pattern
-     * is supplied, the connection attempt is directed at the first known
-     * server (regardless whether it is answering or not.
+     * in which the pattern is case-insensitive substring. All candidates
+     * are probed at once and the one with the shortest round-trip time
+     * that answers is connected to; if it will not take us, the next one
+     * is tried. If it is the server we are connected to, we stay as we are.
      *
-     * @param serverNamePattern The substring to match against the server name.
-     * @return The index of the found server in the servers Vector.
+     * @param serverNamePattern The substring to match against the server
+     *                          name, or null or empty for any server.
+     * @return True if the connection was made or already there.
      */
-    public int connectToChat(String serverNamePattern) {
+    public boolean connectToChat(String serverNamePattern) {
         // See if we know any servers at all.
 
-        if (0 < servers.size()) {
-            String serverName = null;
-
-            // Start iterating over the known servers.
-            for (int i = 0; i < servers.size(); i++) {
-
-                // Access the service item object (which is what we got from the
-                // lookup cache).
-                ServiceItem sit = (ServiceItem) servers.elementAt(i);
-
-                // Since we matched for class in the template, this cast is
-                // relatively safe. If there was any risk of the service object
-                // not being an instance of ChatServerInterface, we would have to
-                // test it first using the instanceof operator.
-                ChatServerInterface server = (ChatServerInterface) sit.service;
-
-                // Assume that we won't find a matching service.
-                boolean accept = false;
-
-                // Do we have a search string?
-                if (serverNamePattern == null) {
-
-                    // No, so trivially accept this server.
-                    accept = true;
-
-                    // Dig out the name so we can show the user the name of the
-                    // server we have selected.
-                    for (int j = 0; j < sit.attributeSets.length; j++) {
+        if (servers.isEmpty()) {
+            System.out.println("[No servers around]");
+            return false;
+        }
 
-                        // Access the attributes of the service. We assume that they
-                        // exist because that in the contract between the service and
-                        // the client.
-                        Entry e = sit.attributeSets[j];
-
-                        // Is it a Name attribute?
-                        if (e instanceof Name) {
-                            serverName = ((Name) e).name;
-                            break;
-                        }
-                    }
-                } else {
-                    for (int j = 0; j < sit.attributeSets.length; j++) {
-                        Entry e = sit.attributeSets[j];
-                        if (e instanceof Name) {
-                            serverName = ((Name) e).name;
-                            if (-1 < serverName.toLowerCase().indexOf(serverNamePattern)) {
-                                accept = true;
-                                break;
-                            }
-                        }
-                    }
-                }
+        String pattern = (serverNamePattern == null) ? "" : serverNamePattern.toLowerCase();
+        boolean matched = false;
 
+        for (ServerTable.Server candidate : servers.probeAll()) {
+            if (!candidate.getName().toLowerCase().contains(pattern)) {
+                continue;
+            }
+            matched = true;
+            if (!candidate.isAlive()) {
+                // The list is ordered, so nobody after this one answered.
+                break;
+            }
 
-                if (accept) {
-                    ChatServerInterface newServer = null;
-                    System.out.print("[Connecting to " + serverName + "...");
-                    System.out.flush();
+            if (myServer != null && candidate.getServiceID().equals(myServiceID)) {
+                // Registering again and then leaving the old server would
+                // end the new session, as both are the same.
+                System.out.println("[Already connected to " + candidate.getName() + "]");
+                return true;
+            }
 
-                    try {
-                        server.register(id, this);
-                        newServer = server;
-                        System.out.println("ok]");
-                    } catch (java.rmi.RemoteException rex) {
-                        System.out.println("failed]");
-                        rex.printStackTrace();
-                    }
+            ChatServerInterface server = candidate.getService();
+            System.out.print("[Connecting to " + candidate.getName() + " ("
+                    + formatRtt(candidate.getRttNanos()) + ")...");
+            System.out.flush();
 
-                    if (newServer != null) {
-                        if (myServer != null) {
-                            disconnect(myServer);
-                        }
-                        myServer = newServer;
-                        return i;
-                    }
+            Connection listener = null;
+            try {
+                listener = new Connection();
+                server.register(id, listener);
+                System.out.println("ok]");
+            } catch (java.rmi.RemoteException rex) {
+                System.out.println("failed]");
+                rex.printStackTrace();
+                if (listener != null) {
+                    listener.close();
                 }
+                continue;
             }
 
-            System.out.println("[No servers matching " +
-                    serverNamePattern +
-                    " found]");
+            if (myServer != null) {
+                disconnect(myServer);
+            }
+            closeConnection();
+            myServer = server;
+            connection = listener;
+            myServiceID = candidate.getServiceID();
+            posts = new PostQueue(myServer, id);
+            return true;
+        }
 
+        if (matched) {
+            System.out.println("[No servers matching " + serverNamePattern + " are responding]");
         } else {
-            System.out.println("[No servers around]");
+            System.out.println("[No servers matching " + serverNamePattern + " found]");
         }
+        return false;
+    }
 
-        return -1;
+    /**
+     * @param rttNanos A round-trip time.
+     * @return The time in milliseconds, for the user.
+     */
+    protected static String formatRtt(long rttNanos) {
+        return String.format("%.1f ms", rttNanos / 1e6);
     }
 
 
+    /**
+     * This method implements the '.tcp' user command and the -t option.
+     * It connects straight to a server's TCP transport, without Jini.
+     *
+     * @param hostPort The server address as host:port.
+     * @return True if the connection was made.
+     */
+    public boolean connectToTcp(String hostPort) {
+        int colon = hostPort.lastIndexOf(':');
+        if (colon < 1) {
+            System.out.println("[Expected host:port, got " + hostPort + "]");
+            return false;
+        }
+        System.out.print("[Connecting to tcp://" + hostPort + "...");
+        System.out.flush();
+        NioChatServerStub newServer = null;
+        Connection listener = null;
+        try {
+            newServer = new NioChatServerStub(hostPort.substring(0, colon),
+                    Integer.parseInt(hostPort.substring(colon + 1)));
+            listener = new Connection();
+            newServer.register(id, listener);
+            System.out.println("ok]");
+        } catch (IOException | NumberFormatException ex) {
+            System.out.println("failed: " + ex.getMessage() + "]");
+            if (newServer != null) {
+                newServer.close();
+            }
+            if (listener != null) {
+                listener.close();
+            }
+            return false;
+        }
+        if (myServer != null) {
+            disconnect(myServer);
+        }
+        closeConnection();
+        myServer = newServer;
+        connection = listener;
+        myServiceID = null;
+        posts = new PostQueue(myServer, id);
+        return true;
+    }
+
     /**
      * This method implements the '.name' user command. It sets the name
      * the user has choosen for herself on the chat. If the name is null
@@ -374,19 +613,14 @@ public class ChatClient
      * @param text The text to send to the currently connected server.
      */
     public void sendToChat(String text) {
-        if (myServer != null) {
-            try {
-                System.out.println(myServer.say(id, text));
-            } catch (IOException e) {
-                System.out.println("[Sending to server failed]");
-
-            }
+        if (posts != null) {
+            posts.send(text);
         }
     }
 
     /**
      * This method implements the '.list' and '.purge' user commands.
-     * All known servers are listed and a call attempt is made with each.
+     * All known servers are probed at once and listed, the closest first.
      * Non-reachable servers are listed and if the purge parameter is true,
      * also removed from the list of known servers. Note that intermittent
      * network failures (not uncommon for wireless and mobile users) may
@@ -401,44 +635,24 @@ public class ChatClient
             return;
         }
 
-        for (int i = 0; i < servers.size(); i++) {
-
-            ServiceItem sit = (ServiceItem) servers.elementAt(i);
-            ChatServerInterface chat = (ChatServerInterface) sit.service;
-            String remoteName = null;
-            String localName = null;
-
-            for (int j = 0; j < sit.attributeSets.length; j++) {
-                Entry e = sit.attributeSets[j];
-                if (e instanceof Name) {
-                    localName = ((Name) e).name;
-                    break;
-                }
-            }
-
-            if (localName == null) {
-                localName = sit.service.toString();
-            }
-
+        for (ServerTable.Server server : servers.probeAll()) {
             System.out.print("[");
-            try {
-                remoteName = chat.getName();
-                System.out.print(remoteName);
-                if (chat == myServer) {
-                    System.out.print(": connected");
-                }
-            } catch (java.rmi.RemoteException rex) {
-                System.out.print(localName + ": not responding");
-                if (purge) {
-                    servers.remove(i);
-                    System.out.print(": PURGED");
-                    i = i - 1;        // Compensate for for-loop increment
+            if (server.isAlive()) {
+                System.out.print(server.getRemoteName() + ": " + formatRtt(server.getRttNanos()));
+                if (server.getService() == myServer) {
+                    System.out.print(", connected");
                 }
+            } else {
+                System.out.print(server.getName() + ": not responding");
             }
-
             System.out.println("]");
         }
 
+        if (purge) {
+            for (ServerTable.Server server : servers.purge()) {
+                System.out.println("[" + server.getName() + ": PURGED]");
+            }
+        }
     }
 
     /**
@@ -450,7 +664,15 @@ public class ChatClient
             "purge             As list, but also forget non-responding servers",
             "name <name>       Set the username presented by the chat client",
             "connect <string>  Connect to a server with a matching string",
+            "tcp <host:port>   Connect to a server's TCP port, bypassing Jini",
             "disconnect        Break the connection to the server",
+            "history [n]       Show the n newest messages on the server",
+            "history <from> <n> Show n messages from sequence number from",
+            "join <room>       Enter a room",
+            "leave <room>      Leave a room",
+            "to <room> <text>  Send text to the members of a room",
+            "rooms             List the rooms on the server",
+            "throttle <n>|off  Show at most n messages a second, counting the rest",
             "quit              Exit the client",
             "help              This text"
     };
@@ -573,6 +795,8 @@ public class ChatClient
                     halted = true;
                 } else if ("connect".startsWith(verb)) {
                     connectToChat(stringJoin(argv, 1, " "));
+                } else if ("tcp".startsWith(verb)) {
+                    connectToTcp(stringJoin(argv, 1, ""));
                 } else if ("disconnect".startsWith(verb)) {
                     userDisconnect();
                 } else if ("list".startsWith(verb)) {
@@ -585,6 +809,18 @@ public class ChatClient
                     showHelp(argv);
                 } else if ("clients".startsWith(verb)) {
                     listClients();
+                } else if ("history".startsWith(verb)) {
+                    showHistory(argv);
+                } else if ("join".startsWith(verb)) {
+                    joinRoom(stringJoin(argv, 1, " "));
+                } else if ("leave".startsWith(verb)) {
+                    leaveRoom(stringJoin(argv, 1, " "));
+                } else if ("to".startsWith(verb)) {
+                    sayToRoom(argv);
+                } else if ("rooms".startsWith(verb)) {
+                    listRooms();
+                } else if ("throttle".startsWith(verb)) {
+                    setThrottle(argv);
                 } else {
                     System.out.println("[" + verb + ": unknown command]");
                 }
@@ -604,12 +840,145 @@ public class ChatClient
         System.out.println("[Quitting, please wait...]");
 
         disconnect(myServer);
+        closeConnection();
+        renderer.close();
+
+        servers.close();
 
         // Shut down the service discovery manager.
 
         sdm.terminate();
     }
 
+    /**
+     * This method implements the '.throttle' user command.
+     *
+     * @param argv The command words.
+     */
+    public void setThrottle(String[] argv) {
+        int limit = -1;
+        if (argv.length == 2) {
+            if (argv[1].equalsIgnoreCase("off")) {
+                limit = 0;
+            } else {
+                try {
+                    limit = Integer.parseInt(argv[1]);
+                } catch (NumberFormatException nfe) {
+                }
+            }
+        }
+        if (limit < 0) {
+            System.out.println("[Usage: .throttle <messages per second> | .throttle off]");
+            return;
+        }
+        renderer.setLimit(limit);
+        System.out.println(limit == 0 ? "[Showing all messages]"
+                : "[Showing at most " + limit + " messages a second]");
+    }
+
+    /**
+     * This method implements the '.history' user command. With one number
+     * it shows that many of the newest messages; with two it shows a page
+     * starting at the given sequence number.
+     *
+     * @param argv The command words.
+     */
+    public void showHistory(String[] argv) {
+        Connection listener = connection;
+        if (myServer == null || listener == null) {
+            System.out.println("[Client is not connected!]");
+            return;
+        }
+        long from = -1;
+        int count = 20;
+        try {
+            if (argv.length == 2) {
+                count = Integer.parseInt(argv[1]);
+            } else if (argv.length > 2) {
+                from = Long.parseLong(argv[1]);
+                count = Integer.parseInt(argv[2]);
+            }
+        } catch (NumberFormatException nfe) {
+            System.out.println("[Usage: .history [count] | .history <from> <count>]");
+            return;
+        }
+        try {
+            HistoryPage page = myServer.getHistory(id, from, count);
+            System.out.println("[History from " + page.getOldest() + ", "
+                    + page.getFrames().length + " messages]");
+            for (ChatNotification.Frame frame : page.getFrames()) {
+                showMessage(frame, listener.senders);
+            }
+            System.out.println("[Continue with .history " + page.getNext() + " " + count + "]");
+        } catch (RemoteException rex) {
+            System.out.println("[History not available: " + rex.getMessage() + "]");
+        }
+    }
+
+    /**
+     * This method implements the '.join' user command.
+     *
+     * @param room The name of the room.
+     */
+    public void joinRoom(String room) {
+        if (myServer == null) {
+            System.out.println("[Client is not connected!]");
+            return;
+        }
+        try {
+            myServer.joinRoom(id, room);
+        } catch (RemoteException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * This method implements the '.leave' user command.
+     *
+     * @param room The name of the room.
+     */
+    public void leaveRoom(String room) {
+        if (myServer == null) {
+            System.out.println("[Client is not connected!]");
+            return;
+        }
+        try {
+            myServer.leaveRoom(id, room);
+        } catch (RemoteException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * This method implements the '.to' user command, which sends the rest
+     * of the line to the room named by the first word.
+     *
+     * @param argv The command words.
+     */
+    public void sayToRoom(String[] argv) {
+        if (myServer == null) {
+            System.out.println("[Client is not connected!]");
+            return;
+        }
+        if (argv.length < 3) {
+            System.out.println("[Usage: .to <room> <text>]");
+            return;
+        }
+        try {
+            System.out.println(myServer.sayTo(id, argv[1], stringJoin(argv, 2, " ")));
+        } catch (IOException e) {
+            System.out.println("[Sending to server failed]");
+        }
+    }
+
+    private void listRooms() {
+        try {
+            myServer.listRooms(id);
+        } catch (RemoteException e) {
+            e.printStackTrace();
+        }
+    }
+
     private void listClients() {
         try {
             myServer.listClients(id);
@@ -630,6 +999,14 @@ public class ChatClient
         // System.out.println(System.getProperty("java.rmi.server.codebase"));
 
         ChatClient cc = new ChatClient();
+
+        // -t host:port connects over TCP at once, without Jini.
+        for (int i = 0; i < argv.length; i++) {
+            if (argv[i].equalsIgnoreCase("-t") && i + 1 < argv.length) {
+                cc.connectToTcp(argv[++i]);
+            }
+        }
+
         cc.readLoop();
     }
 }
@@ -0,0 +1,171 @@
+package dsv.pis.chat.client;
+
+import dsv.pis.chat.server.ChatServerInterface;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends the user's chat messages to the server in the background, so
+ * typing or pasting never waits for the network. A sender thread posts
+ * everything that has queued up in one call and numbers the messages as
+ * it goes; while one call is on its way, the next batch collects behind
+ * it. A message stays unacknowledged until the server's ack for its
+ * number arrives on the notification channel.
+ */
+class PostQueue implements Runnable {
+    /**
+     * The most messages sent in one post() call.
+     */
+    private static final int MAX_POST = 256;
+
+    /**
+     * How long the sender waits for a line before it checks whether it is
+     * being closed.
+     */
+    private static final long POLL_MILLIS = 100;
+
+    /**
+     * How long close() waits for the acks of what has been sent.
+     */
+    private static final long ACK_WAIT_MILLIS = 2000;
+
+    private final ChatServerInterface server;
+    private final UUID id;
+    private final BlockingQueue<String> queue = new LinkedBlockingQueue<>();
+
+    /**
+     * The numbers of the messages sent and not yet acknowledged.
+     */
+    private final ConcurrentSkipListSet<Long> unacked = new ConcurrentSkipListSet<>();
+
+    /**
+     * The number of the next message. Used by the sender thread only.
+     */
+    private long nextId = 0;
+
+    private final Thread sender;
+    private volatile boolean closing = false;
+
+    /**
+     * Starts the sender thread.
+     *
+     * @param server The server to post to.
+     * @param id     The id the client registered with.
+     */
+    PostQueue(ChatServerInterface server, UUID id) {
+        this(server, id, 0);
+    }
+
+    /**
+     * Starts the sender thread.
+     *
+     * @param server The server to post to.
+     * @param id     The id the client registered with.
+     * @param nextId The number of the first message, which follows on
+     *               from an earlier queue to the same session.
+     */
+    PostQueue(ChatServerInterface server, UUID id, long nextId) {
+        this.server = server;
+        this.id = id;
+        this.nextId = nextId;
+        sender = new Thread(this, "chat-sender");
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    ChatServerInterface getServer() {
+        return server;
+    }
+
+    /**
+     * @return The number the next message would get. Only meaningful
+     * once the queue is closed.
+     */
+    long getNextId() {
+        return nextId;
+    }
+
+    /**
+     * Queues a message for sending.
+     *
+     * @param text The message.
+     */
+    void send(String text) {
+        queue.add(text);
+    }
+
+    /**
+     * Records the server's ack of a message.
+     *
+     * @param ackId The number of the message.
+     */
+    void acknowledged(long ackId) {
+        unacked.remove(ackId);
+    }
+
+    /**
+     * @return The number of messages queued or sent and not yet
+     * acknowledged.
+     */
+    int getUnacknowledged() {
+        return queue.size() + unacked.size();
+    }
+
+    /**
+     * Sends what is queued, waits a little for the acks and stops the
+     * sender thread.
+     *
+     * @return The number of messages that were not acknowledged.
+     */
+    int close() {
+        closing = true;
+        try {
+            sender.join();
+            long deadline = System.currentTimeMillis() + ACK_WAIT_MILLIS;
+            while (!unacked.isEmpty() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        return getUnacknowledged();
+    }
+
+    /**
+     * This is where the sender thread spends its time.
+     */
+    public void run() {
+        List<String> batch = new ArrayList<>();
+        try {
+            while (!closing || !queue.isEmpty()) {
+                String first = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, MAX_POST - 1);
+                long firstId = nextId;
+                nextId += batch.size();
+                for (long i = firstId; i < nextId; i++) {
+                    unacked.add(i);
+                }
+                try {
+                    server.post(id, firstId, batch.toArray(new String[batch.size()]));
+                } catch (RemoteException rex) {
+                    unacked.subSet(firstId, nextId).clear();
+                    System.out.println("[Sending " + batch.size() + " messages to server failed]");
+                }
+                batch.clear();
+            }
+        } catch (InterruptedException ie) {
+            // Stopping.
+        }
+    }
+}
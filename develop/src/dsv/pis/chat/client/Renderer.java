@@ -0,0 +1,143 @@
+package dsv.pis.chat.client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Prints incoming chat lines on a thread of its own, so a slow terminal
+ * never holds up the server's notify() call. Lines wait in a bounded
+ * queue; the renderer takes whatever has arrived and writes it with one
+ * print and one flush. A line that finds the queue full is counted, not
+ * waited for.
+ * <p>
+ * With a limit set, the renderer shows at most that many lines a second
+ * and then says how many it left out.
+ */
+class Renderer implements Runnable {
+    /**
+     * The number of lines that may wait to be printed.
+     */
+    private static final int QUEUE_SIZE = 10000;
+
+    /**
+     * The most lines printed at once.
+     */
+    private static final int MAX_DRAIN = 1024;
+
+    /**
+     * How long the renderer waits for a line before it checks whether a
+     * summary is due or it is being closed.
+     */
+    private static final long POLL_MILLIS = 100;
+
+    private static final long SECOND_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final BlockingQueue<String> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+
+    /**
+     * Lines lost because the queue was full, not yet reported.
+     */
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * The most lines shown a second, or 0 for no limit.
+     */
+    private volatile int limit = 0;
+
+    private final Thread thread;
+    private volatile boolean closing = false;
+
+    /**
+     * Starts the renderer thread.
+     */
+    Renderer() {
+        thread = new Thread(this, "chat-renderer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queues a line for printing. Never waits.
+     *
+     * @param line The line, without line terminator.
+     */
+    void add(String line) {
+        if (!queue.offer(line)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * @param limit The most lines to show a second, or 0 for no limit.
+     */
+    void setLimit(int limit) {
+        this.limit = limit;
+    }
+
+    /**
+     * Prints what is queued and stops the renderer thread.
+     */
+    void close() {
+        closing = true;
+        try {
+            thread.join();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * This is where the renderer thread spends its time.
+     */
+    public void run() {
+        List<String> batch = new ArrayList<>();
+        StringBuilder text = new StringBuilder();
+        long second = System.nanoTime();
+        int shown = 0;
+        long hidden = 0;
+        try {
+            while (!closing || !queue.isEmpty()) {
+                String first = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                long now = System.nanoTime();
+                if (now - second >= SECOND_NANOS) {
+                    second = now;
+                    shown = 0;
+                    hidden += dropped.getAndSet(0);
+                    if (hidden > 0) {
+                        text.append("[").append(hidden).append(" messages not shown]\n");
+                        hidden = 0;
+                    }
+                }
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, MAX_DRAIN - 1);
+                    int max = limit;
+                    for (String line : batch) {
+                        if (max > 0 && shown >= max) {
+                            hidden++;
+                        } else {
+                            text.append(line).append('\n');
+                            shown++;
+                        }
+                    }
+                    batch.clear();
+                }
+                if (text.length() > 0) {
+                    System.out.print(text);
+                    System.out.flush();
+                    text.setLength(0);
+                }
+            }
+        } catch (InterruptedException ie) {
+            // Stopping.
+        }
+        hidden += dropped.getAndSet(0);
+        if (hidden > 0) {
+            System.out.println("[" + hidden + " messages not shown]");
+        }
+    }
+}
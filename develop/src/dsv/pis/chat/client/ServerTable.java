@@ -0,0 +1,357 @@
+package dsv.pis.chat.client;
+
+import dsv.pis.chat.server.ChatServerInterface;
+import net.jini.core.entry.Entry;
+import net.jini.core.lookup.ServiceID;
+import net.jini.core.lookup.ServiceItem;
+import net.jini.lookup.entry.Name;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The chat servers the lookup cache has found, with the round-trip time
+ * and liveness of each as last probed. A probe is a getName() call. All
+ * servers are probed at once, each on a thread of its own, so a server
+ * that does not answer only costs the probe deadline, once. New and
+ * changed servers are probed as the lookup cache reports them, and all
+ * of them again every PROBE_INTERVAL_SECONDS. A server whose probe has
+ * not come back is not probed again until it does, so a hung server
+ * holds one probe thread, not one more each round.
+ * <p>
+ * The table is safe to change while probes are running; a probe of a
+ * server that has since been removed or replaced updates nothing.
+ */
+class ServerTable {
+    /**
+     * How long a probe may take before the server counts as not
+     * responding.
+     */
+    static final long PROBE_TIMEOUT_MILLIS = 2000;
+
+    /**
+     * How often all servers are probed in the background.
+     */
+    static final long PROBE_INTERVAL_SECONDS = 30;
+
+    /**
+     * The most probes running at once. More wait for a thread.
+     */
+    static final int MAX_PROBE_THREADS = 16;
+
+    /**
+     * One known server and what the last probe found.
+     */
+    static class Server {
+        private final ServiceItem item;
+        private final String name;
+
+        /**
+         * The round-trip time of the last probe that was answered, or -1.
+         */
+        private volatile long rttNanos = -1;
+
+        /**
+         * Whether the last probe was answered in time. False until then.
+         */
+        private volatile boolean alive = false;
+
+        /**
+         * Whether the server has been probed at all.
+         */
+        private volatile boolean probed = false;
+
+        /**
+         * When, by System.nanoTime(), a probe last came back.
+         */
+        private volatile long answeredAt = 0;
+
+        private volatile String remoteName = null;
+
+        /**
+         * Counted down when the running probe is over, or null if none is
+         * running. A server is never probed twice at once, so one that
+         * hangs holds a single thread however often it is probed. Guarded
+         * by the Server's monitor.
+         */
+        private CountDownLatch probe = null;
+
+        Server(ServiceItem item) {
+            this.item = item;
+            this.name = nameOf(item);
+        }
+
+        ChatServerInterface getService() {
+            return (ChatServerInterface) item.service;
+        }
+
+        ServiceID getServiceID() {
+            return item.serviceID;
+        }
+
+        /**
+         * @return The name the server registered with the lookup service.
+         */
+        String getName() {
+            return name;
+        }
+
+        /**
+         * @return The name the server gave the last probe, or null.
+         */
+        String getRemoteName() {
+            return remoteName;
+        }
+
+        long getRttNanos() {
+            return rttNanos;
+        }
+
+        boolean isAlive() {
+            return alive;
+        }
+
+        boolean isProbed() {
+            return probed;
+        }
+    }
+
+    /**
+     * A server with its rank and round-trip time as they were when a list
+     * was made. Probes change the servers at any time, so sorting compares
+     * these copies; comparing the live fields could break the ordering
+     * contract in the middle of a sort.
+     */
+    private static class Ranked {
+        private final Server server;
+
+        /**
+         * 0 for a server that answers, 1 for one not yet probed, 2 for one
+         * that did not answer.
+         */
+        private final int rank;
+        private final long rttNanos;
+
+        Ranked(Server server) {
+            this.server = server;
+            this.rank = server.alive ? 0 : (server.probed ? 2 : 1);
+            this.rttNanos = server.rttNanos;
+        }
+    }
+
+    /**
+     * Orders servers that answer first, by round-trip time, then those not
+     * yet probed, then those that did not answer.
+     */
+    private static final Comparator<Ranked> BY_RTT = new Comparator<Ranked>() {
+        public int compare(Ranked a, Ranked b) {
+            if (a.rank != b.rank) {
+                return a.rank - b.rank;
+            }
+            return a.rank == 0 ? Long.compare(a.rttNanos, b.rttNanos) : 0;
+        }
+    };
+
+    private final ConcurrentMap<ServiceID, Server> servers = new ConcurrentHashMap<>();
+
+    /**
+     * Runs the probes, each server's on a thread of its own up to
+     * MAX_PROBE_THREADS. A probe that hangs holds only its own thread.
+     */
+    private final ThreadPoolExecutor probes = new ThreadPoolExecutor(MAX_PROBE_THREADS, MAX_PROBE_THREADS,
+            60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), daemons("server-probe"));
+
+    private final ScheduledExecutorService refresher =
+            Executors.newSingleThreadScheduledExecutor(daemons("server-refresh"));
+
+    ServerTable() {
+        probes.allowCoreThreadTimeOut(true);
+        refresher.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                probeAll();
+            }
+        }, PROBE_INTERVAL_SECONDS, PROBE_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private static ThreadFactory daemons(final String name) {
+        final AtomicInteger count = new AtomicInteger();
+        return new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    /**
+     * @param item A service item of a chat server.
+     * @return The name in its Name attribute, or the service object as a
+     * string if it has none.
+     */
+    static String nameOf(ServiceItem item) {
+        if (item.attributeSets != null) {
+            for (Entry e : item.attributeSets) {
+                if (e instanceof Name) {
+                    return ((Name) e).name;
+                }
+            }
+        }
+        return String.valueOf(item.service);
+    }
+
+    /**
+     * Adds a server, or replaces the one with the same service id, and
+     * probes it in the background.
+     *
+     * @param item The service item from the lookup cache.
+     */
+    void put(ServiceItem item) {
+        Server server = new Server(item);
+        servers.put(item.serviceID, server);
+        probe(server);
+    }
+
+    /**
+     * @param id The service id of a server to forget.
+     */
+    void remove(ServiceID id) {
+        servers.remove(id);
+    }
+
+    boolean isEmpty() {
+        return servers.isEmpty();
+    }
+
+    /**
+     * @return The known servers, as BY_RTT orders them.
+     */
+    List<Server> list() {
+        List<Ranked> ranked = new ArrayList<>();
+        for (Server server : servers.values()) {
+            ranked.add(new Ranked(server));
+        }
+        Collections.sort(ranked, BY_RTT);
+        List<Server> list = new ArrayList<>(ranked.size());
+        for (Ranked r : ranked) {
+            list.add(r.server);
+        }
+        return list;
+    }
+
+    /**
+     * Probes every known server at once and waits until all have answered
+     * or PROBE_TIMEOUT_MILLIS has passed. A server that has not answered
+     * by then counts as not responding, until its probe comes back.
+     *
+     * @return The servers, as BY_RTT orders them.
+     */
+    List<Server> probeAll() {
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(PROBE_TIMEOUT_MILLIS);
+        List<Server> list = new ArrayList<>(servers.values());
+        List<CountDownLatch> running = new ArrayList<>(list.size());
+        for (Server server : list) {
+            running.add(probe(server));
+        }
+        try {
+            for (CountDownLatch done : running) {
+                done.await(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        for (Server server : list) {
+            if (server.answeredAt - start < 0) {
+                server.probed = true;
+                server.alive = false;
+            }
+        }
+        return list();
+    }
+
+    /**
+     * Starts a probe of one server, unless one is still running.
+     *
+     * @param server The server.
+     * @return Counted down when the probe, new or still running, is over.
+     */
+    private CountDownLatch probe(final Server server) {
+        final CountDownLatch done;
+        synchronized (server) {
+            if (server.probe != null) {
+                return server.probe;
+            }
+            done = server.probe = new CountDownLatch(1);
+        }
+        Runnable probe = new Runnable() {
+            public void run() {
+                long start = System.nanoTime();
+                try {
+                    server.remoteName = server.getService().getName();
+                    long rtt = System.nanoTime() - start;
+                    server.rttNanos = rtt;
+                    server.alive = rtt <= TimeUnit.MILLISECONDS.toNanos(PROBE_TIMEOUT_MILLIS);
+                } catch (RemoteException | RuntimeException ex) {
+                    server.alive = false;
+                }
+                server.answeredAt = System.nanoTime();
+                server.probed = true;
+                finish(server, done);
+            }
+        };
+        try {
+            probes.execute(probe);
+        } catch (RejectedExecutionException rex) {
+            finish(server, done);
+        }
+        return done;
+    }
+
+    /**
+     * Ends a probe, so that the server can be probed again.
+     */
+    private static void finish(Server server, CountDownLatch done) {
+        synchronized (server) {
+            server.probe = null;
+        }
+        done.countDown();
+    }
+
+    /**
+     * Removes the servers that did not answer their last probe.
+     *
+     * @return The servers removed.
+     */
+    List<Server> purge() {
+        List<Server> purged = new ArrayList<>();
+        for (Server server : servers.values()) {
+            if (server.probed && !server.alive && servers.remove(server.getServiceID(), server)) {
+                purged.add(server);
+            }
+        }
+        return purged;
+    }
+
+    /**
+     * Stops probing.
+     */
+    void close() {
+        refresher.shutdownNow();
+        probes.shutdownNow();
+    }
+}
@@ -0,0 +1,521 @@
+package dsv.pis.chat.proxy;
+
+import dsv.pis.chat.server.ChatNotification;
+import dsv.pis.chat.server.ChatServerInterface;
+import dsv.pis.chat.server.ChatServerOptions;
+import dsv.pis.chat.server.HistoryPage;
+import dsv.pis.chat.server.RelayedMessage;
+import dsv.pis.chat.server.SessionTable;
+import dsv.pis.chat.server.nio.NioChatServerStub;
+import dsv.pis.chat.server.nio.NioTransport;
+import dsv.pis.chat.server.nio.SessionHost;
+import dsv.pis.chat.server.pipeline.Pipeline;
+import dsv.pis.chat.server.pipeline.StagedMessage;
+import net.jini.core.entry.Entry;
+import net.jini.core.event.RemoteEventListener;
+import net.jini.core.event.UnknownEventException;
+import net.jini.core.lookup.ServiceID;
+import net.jini.lookup.JoinManager;
+import net.jini.lookup.ServiceIDListener;
+import net.jini.lookup.entry.Name;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.rmi.RMISecurityManager;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A chat service that sits between clients and a real ChatServer and
+ * sends what the clients say through a Pipeline of message stages on the
+ * way. To clients it looks like any other server: it joins the Jini
+ * lookup services as a ChatServerInterface, and can offer the TCP
+ * transport as well.
+ * <p>
+ * The proxy talks to the real server over that server's TCP transport,
+ * with one connection per registered client, which carries the
+ * notifications for that client straight back to its listener. Calls for
+ * clients that are not registered here go over a connection of the
+ * proxy's own.
+ * <p>
+ * Only what clients say is processed. Everything else, notifications
+ * included, passes unchanged. A posted message that a stage drops never
+ * reaches the real server, so the proxy acks it itself, with no sequence
+ * number.
+ */
+public class ChatProxy
+        extends
+        UnicastRemoteObject
+        implements
+        ChatServerInterface,
+        SessionHost {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * A client registered through the proxy.
+     */
+    private static class Session {
+        private final UUID uuid;
+        private final int handle;
+        private final NioChatServerStub upstream;
+        private volatile String name;
+
+        /**
+         * The listener the client last registered, which the real server
+         * delivers to.
+         */
+        private volatile RemoteEventListener listener;
+
+        Session(UUID uuid, int handle, NioChatServerStub upstream) {
+            this.uuid = uuid;
+            this.handle = handle;
+            this.upstream = upstream;
+            this.name = uuid.toString();
+        }
+    }
+
+    /**
+     * A message on its way to the real server.
+     */
+    private static class Forwarded extends StagedMessage {
+        private final long ackId;
+
+        Forwarded(UUID sender, String senderName, String room, String msg, long ackId) {
+            super(sender, senderName, room, msg);
+            this.ackId = ackId;
+        }
+    }
+
+    /**
+     * Forwards the messages that leave the pipeline. The messages of one
+     * client leave in order, on one thread, and go out on that client's
+     * connection in that order.
+     */
+    private class ForwardingSink implements Pipeline.Sink<Forwarded> {
+        public void deliver(Forwarded message) {
+            UUID uuid = message.getSender();
+            try {
+                if (message.getRoom() == null) {
+                    // A post of one message does not wait for a reply;
+                    // its number is the client's, or NO_ACK for a say.
+                    upstream(uuid).post(uuid, message.ackId, new String[]{message.getText()});
+                } else {
+                    upstream(uuid).sayTo(uuid, message.getRoom(), message.getText());
+                }
+            } catch (IOException iox) {
+                System.out.println("Could not forward a message of " + uuid + ": " + iox.getMessage());
+            }
+        }
+
+        public void dropped(Forwarded message) {
+            // The real server never sees the message, so the proxy acks it
+            // itself, as a server acks a message its own pipeline drops.
+            Session session = sessions.get(message.getSender());
+            RemoteEventListener rel = (session != null) ? session.listener : null;
+            if (message.ackId == ChatNotification.Message.NO_ACK || rel == null) {
+                return;
+            }
+            try {
+                rel.notify(new ChatNotification.Frame(ChatNotification.Message.ack(
+                        ChatNotification.Message.NO_SEQUENCE, message.ackId)));
+            } catch (UnknownEventException | RemoteException ex) {
+                System.out.println("Could not ack a dropped message of " + message.getSender() + ": "
+                        + ex.getMessage());
+            }
+        }
+    }
+
+    private final String host;
+    private final int port;
+
+    /**
+     * The connection for calls that belong to no session here.
+     */
+    private final NioChatServerStub control;
+
+    private final ConcurrentMap<UUID, Session> sessions = new ConcurrentHashMap<>();
+
+    /**
+     * The sessions by handle, for the TCP transport.
+     */
+    private final ConcurrentMap<Integer, Session> handles = new ConcurrentHashMap<>();
+
+    /**
+     * Hands out the session handles. It starts above SessionTable.NO_HANDLE.
+     */
+    private final AtomicInteger nextHandle = new AtomicInteger(SessionTable.NO_HANDLE + 1);
+    private final Pipeline<Forwarded> pipeline;
+    private final String proxyName;
+    private JoinManager jmgr = null;
+    private NioTransport tcp = null;
+
+    /**
+     * Creates a new ChatProxy.
+     *
+     * @param idName   The identifying name of this proxy instance.
+     * @param upstream The real server, as host:port of its TCP transport.
+     * @param options  The stages, the TCP transport and whether to join
+     *                 Jini lookup; the other settings are the real
+     *                 server's business.
+     * @throws IllegalArgumentException If the server is not host:port,
+     *                                  or a stage cannot be made.
+     */
+    public ChatProxy(String idName, String upstream, ChatServerOptions options) throws IOException {
+        int colon = upstream.lastIndexOf(':');
+        try {
+            port = (colon > 0) ? Integer.parseInt(upstream.substring(colon + 1)) : -1;
+        } catch (NumberFormatException nfe) {
+            throw new IllegalArgumentException("Server is not host:port: " + upstream);
+        }
+        if (port <= 0) {
+            throw new IllegalArgumentException("Server is not host:port: " + upstream);
+        }
+        host = upstream.substring(0, colon);
+        control = new NioChatServerStub(host, port);
+        pipeline = new Pipeline<>(options.stages, new ForwardingSink());
+
+        String localHost = InetAddress.getLocalHost().getHostName().toLowerCase();
+        proxyName = "ChatProxy " + ((idName != null) ? idName : "") + " on " + localHost
+                + " for " + control.getName();
+
+        if (options.joinLookup) {
+            Entry[] attributes = new Entry[]{new Name(proxyName)};
+            jmgr = new JoinManager(this, attributes, new ServiceIDListener() {
+                public void serviceIDNotify(ServiceID sid) {
+                    System.out.println("Registered as Jini service " + sid);
+                }
+            }, null, null);
+        }
+        if (options.tcpPort > 0) {
+            tcp = new NioTransport(this, options.tcpPort, options.tcpSelectors, options.tcpWorkers);
+            System.out.println("Listening for TCP clients on port " + tcp.getPort());
+        }
+    }
+
+    /**
+     * @param uuid The id of a client.
+     * @return The connection to the real server that the client's calls
+     * go over.
+     */
+    private ChatServerInterface upstream(UUID uuid) {
+        Session session = (uuid != null) ? sessions.get(uuid) : null;
+        return (session != null) ? session.upstream : control;
+    }
+
+    private String nameOf(UUID uuid) {
+        Session session = sessions.get(uuid);
+        return (session != null) ? session.name : uuid.toString();
+    }
+
+    // In interface ChatServerInterface
+
+    public String say(UUID uuid, String msg) {
+        if (uuid != null && msg != null
+                && pipeline.submit(new Forwarded(uuid, nameOf(uuid), null, msg, ChatNotification.Message.NO_ACK))) {
+            return "✓";
+        }
+        return "✗";
+    }
+
+    // In interface ChatServerInterface
+
+    public void post(UUID uuid, long firstId, String[] msgs) {
+        if (uuid == null || msgs == null) {
+            return;
+        }
+        String name = nameOf(uuid);
+        for (int i = 0; i < msgs.length; i++) {
+            if (msgs[i] != null) {
+                pipeline.submit(new Forwarded(uuid, name, null, msgs[i], firstId + i));
+            }
+        }
+    }
+
+    // In interface ChatServerInterface
+
+    public String getName() {
+        return proxyName;
+    }
+
+    // In interface ChatServerInterface
+
+    public void register(UUID uuid, RemoteEventListener rel) throws RemoteException {
+        registerSession(uuid, rel);
+    }
+
+    // In interface SessionHost
+
+    public int registerSession(UUID uuid, RemoteEventListener rel) throws RemoteException {
+        if (uuid == null || rel == null) {
+            return SessionTable.NO_HANDLE;
+        }
+        Session session = sessions.get(uuid);
+        if (session == null) {
+            NioChatServerStub stub;
+            try {
+                stub = new NioChatServerStub(host, port);
+            } catch (IOException iox) {
+                throw new RemoteException("Cannot reach the chat server at " + host + ":" + port, iox);
+            }
+            session = new Session(uuid, nextHandle.getAndIncrement(), stub);
+            Session raced = sessions.putIfAbsent(uuid, session);
+            if (raced != null) {
+                stub.close();
+                session = raced;
+            } else {
+                handles.put(session.handle, session);
+            }
+        }
+        // Registering again on the same connection replaces the listener.
+        session.upstream.register(uuid, rel);
+        session.listener = rel;
+        return session.handle;
+    }
+
+    // In interface ChatServerInterface
+
+    public void unregister(UUID uuid) throws RemoteException {
+        Session session = (uuid != null) ? sessions.get(uuid) : null;
+        if (session != null) {
+            end(session);
+        }
+    }
+
+    // In interface SessionHost
+
+    public void endSession(int handle, RemoteEventListener rel) throws RemoteException {
+        Session session = handles.get(handle);
+        if (session != null && session.listener == rel) {
+            end(session);
+        }
+    }
+
+    /**
+     * Ends a session, if it has not ended yet, and closes its connection.
+     *
+     * @param session The session.
+     */
+    private void end(Session session) throws RemoteException {
+        if (sessions.remove(session.uuid, session)) {
+            handles.remove(session.handle);
+            try {
+                session.upstream.unregister(session.uuid);
+            } finally {
+                session.upstream.close();
+            }
+        }
+    }
+
+    // In interface ChatServerInterface
+
+    public void setName(UUID uuid, String name) throws RemoteException {
+        Session session = (uuid != null) ? sessions.get(uuid) : null;
+        if (session != null && name != null) {
+            session.name = name;
+        }
+        upstream(uuid).setName(uuid, name);
+    }
+
+    // In interface ChatServerInterface
+
+    public void listClients(UUID uuid) throws RemoteException {
+        upstream(uuid).listClients(uuid);
+    }
+
+    // In interface ChatServerInterface
+
+    public HistoryPage getHistory(UUID uuid, long from, int max) throws RemoteException {
+        return upstream(uuid).getHistory(uuid, from, max);
+    }
+
+    // In interface ChatServerInterface
+
+    public void joinRoom(UUID uuid, String room) throws RemoteException {
+        upstream(uuid).joinRoom(uuid, room);
+    }
+
+    // In interface ChatServerInterface
+
+    public void leaveRoom(UUID uuid, String room) throws RemoteException {
+        upstream(uuid).leaveRoom(uuid, room);
+    }
+
+    // In interface ChatServerInterface
+
+    public String sayTo(UUID uuid, String room, String msg) {
+        if (uuid != null && room != null && msg != null
+                && pipeline.submit(new Forwarded(uuid, nameOf(uuid), room, msg, ChatNotification.Message.NO_ACK))) {
+            return "✓";
+        }
+        return "✗";
+    }
+
+    // In interface ChatServerInterface
+
+    public void listRooms(UUID uuid) throws RemoteException {
+        upstream(uuid).listRooms(uuid);
+    }
+
+    // In interface ChatServerInterface
+
+    public UUID getServerId() throws RemoteException {
+        return control.getServerId();
+    }
+
+    // In interface ChatServerInterface
+
+    public void relay(UUID peer, RelayedMessage[] msgs) throws RemoteException {
+        control.relay(peer, msgs);
+    }
+
+    /**
+     * Stops the proxy: leaves the lookup services and closes every
+     * connection to the real server, which unregisters the clients.
+     */
+    public void stop() {
+        if (tcp != null) {
+            tcp.close();
+        }
+        if (jmgr != null) {
+            jmgr.terminate();
+        }
+        pipeline.close();
+        for (Session session : sessions.values()) {
+            session.upstream.close();
+        }
+        control.close();
+        try {
+            unexportObject(this, true);
+        } catch (java.rmi.NoSuchObjectException nsoe) {
+        }
+    }
+
+    /**
+     * A small command interpreter, like the server's.
+     */
+    public void readLoop() {
+        BufferedReader d = new BufferedReader(new InputStreamReader(System.in));
+        System.out.println("Proxy " + proxyName + " started.");
+        while (true) {
+            System.out.print("Proxy> ");
+            System.out.flush();
+            String buf;
+            try {
+                buf = d.readLine();
+            } catch (IOException iox) {
+                System.out.println("\nI/O error in command interface.");
+                break;
+            }
+            if (buf == null) {
+                break;
+            }
+            String arg = buf.trim();
+            if (arg.length() == 0) {
+                continue;
+            }
+            if (arg.equalsIgnoreCase("quit") ||
+                    arg.equalsIgnoreCase("stop") ||
+                    arg.equalsIgnoreCase("halt") ||
+                    arg.equalsIgnoreCase("exit")) {
+                break;
+            } else if (arg.equalsIgnoreCase("stages")) {
+                System.out.println(pipeline.report());
+            } else if (arg.equalsIgnoreCase("help")) {
+                System.out.println("Available commands:");
+                System.out.println("quit      Shuts down the proxy.");
+                System.out.println("stages    Shows the message stages and their latency.");
+                System.out.println("help      This text.");
+            } else {
+                System.out.println("\nUnknown proxy command : " + arg);
+            }
+        }
+        System.out.println("\nShutting down, please wait...");
+        stop();
+    }
+
+    protected static String[] usageText = new String[]{
+            "Usage: -s host:tcp-port (the TCP transport of the real server)",
+            "       [-n proxy-name]",
+            "       [-e stage[:workers]] (a message stage, e.g. WordMask, Capitalize or Eliza; repeatable)",
+            "       [-t tcp-port] (offer the TCP transport too)",
+            "       [-h|--help]"
+    };
+
+    protected static void usage() {
+        for (String anUsageText : usageText) {
+            System.out.println(anUsageText);
+        }
+    }
+
+    // The main program.
+
+    public static void main(String[] argv) throws IOException {
+        String proxyName = null;
+        String upstream = null;
+        ChatServerOptions options = new ChatServerOptions();
+        int state = 0;
+
+        for (String av : argv) {
+            if (state == 0) {
+                if (av.equalsIgnoreCase("-n")) {
+                    state = 1;
+                } else if (av.equalsIgnoreCase("-s")) {
+                    state = 2;
+                } else if (av.equalsIgnoreCase("-e")) {
+                    state = 3;
+                } else if (av.equalsIgnoreCase("-t")) {
+                    state = 4;
+                } else if (av.equalsIgnoreCase("-h") ||
+                        av.equalsIgnoreCase("--help")) {
+                    usage();
+                    System.exit(0);
+                } else {
+                    usage();
+                    System.exit(1);
+                }
+            } else if (state == 1) {
+                proxyName = av;
+                state = 0;
+            } else if (state == 2) {
+                upstream = av;
+                state = 0;
+            } else if (state == 3) {
+                options.stages.add(av);
+                state = 0;
+            } else if (state == 4) {
+                try {
+                    options.tcpPort = Integer.parseInt(av);
+                } catch (NumberFormatException nfe) {
+                    usage();
+                    System.exit(1);
+                }
+                state = 0;
+            }
+        }
+        if (upstream == null || state != 0) {
+            usage();
+            System.exit(1);
+        }
+
+        System.setSecurityManager(new RMISecurityManager());
+        ChatProxy proxy = null;
+        try {
+            proxy = new ChatProxy(proxyName, upstream, options);
+        } catch (IllegalArgumentException iae) {
+            System.out.println(iae.getMessage());
+            System.exit(1);
+        } catch (IOException iox) {
+            System.out.println("Cannot reach the chat server at " + upstream + ": " + iox.getMessage());
+            System.exit(1);
+        }
+        proxy.readLoop();
+        System.exit(0);
+    }
+}
@@ -6,9 +6,19 @@ package dsv.pis.chat.server;
 
 import net.jini.core.event.RemoteEvent;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.Externalizable;
 import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
 import java.io.Serializable;
-import java.util.UUID;
+import java.nio.charset.StandardCharsets;
 
 /**
  * This class implements the notification that is sent to the ChatClients
@@ -18,56 +28,547 @@ import java.util.UUID;
  * method getText () defined below.
  */
 public class ChatNotification implements Serializable {
+    /**
+     * Stands in for the event source, which is never sent.
+     */
+    private static final String SOURCE = "chat";
+
     private final Message event;
-    private final UUID[] targets;
+    private final Frame frame;
+    private final Targets targets;
+    private final Client ackTo;
+    private final Frame ack;
+
+    /**
+     * The client of this server that posted the message, or null.
+     */
+    private final Client sender;
 
     /**
      * Creates a new ChatNotification instance.
      *
-     * @param source The object from which this instance originates.
-     * @param msg    The message to the client.
-     * @param serial The serial number of the message in the server's sequence.
+     * @param source  The object from which this instance originates.
+     * @param msg     The message to the client.
+     * @param serial  The serial number of the message in the server's sequence.
+     * @param targets The receivers of the message.
      */
-    public ChatNotification(Object source, String msg, int serial, UUID... targets) throws IOException {
-        // Call the constructor of the superclass (RemoteEvent) explicitly
-        // so that its fields can be initialized to what we want. Actually,
-        // we are only putting the serial number in as the sequence nr, but
-        // the other arguments could be there as well if we had use for them.
-        String prefix = "";
-        if (source instanceof Client) {
-            Client client = Client.class.cast(source);
-            prefix = "[" + client.getName() + "]: ";
+    public ChatNotification(Object source, String msg, long serial, Targets targets) throws IOException {
+        this(source, msg, serial, targets, Message.NO_ACK);
+    }
+
+    /**
+     * Creates a new ChatNotification instance that the sending client
+     * wants acknowledged.
+     *
+     * @param source  The object from which this instance originates.
+     * @param msg     The message to the client.
+     * @param serial  The serial number of the message in the server's sequence.
+     * @param targets The receivers of the message.
+     * @param ackId   The sender's own number for the message, or
+     *                Message.NO_ACK if the sender does not want an ack.
+     */
+    public ChatNotification(Object source, String msg, long serial, Targets targets, long ackId)
+            throws IOException {
+        // Only the sender id travels with the event; the clients have the
+        // names that go with the ids from the roster messages. The source
+        // object itself (a Client or the ChatServer) stays on the server.
+        Client client = (source instanceof Client) ? (Client) source : null;
+        int senderId = Message.NO_SENDER_ID;
+        if (client != null) {
+            senderId = client.getId();
         } else if (source instanceof ChatServer) {
-            ChatServer server = ChatServer.class.cast(source);
-            prefix = "[" + server.getName() + "]: ";
+            senderId = Message.SERVER_SENDER_ID;
         }
-        this.event = new Message(source,        // Source
-                0,            // ID
-                serial,        // sequence number
-                prefix + msg);        // handback
+        this.event = new Message(senderId, serial, System.currentTimeMillis(), msg);
+        this.frame = new Frame(event);
         this.targets = targets;
+        this.sender = client;
+        if (ackId != Message.NO_ACK && client != null) {
+            this.ackTo = client;
+            this.ack = new Frame(Message.ack(serial, ackId));
+        } else {
+            this.ackTo = null;
+            this.ack = null;
+        }
+    }
+
+    /**
+     * Creates a new ChatNotification instance for a message the server
+     * made itself, such as a roster.
+     *
+     * @param event   The message.
+     * @param targets The receivers of the message.
+     */
+    public ChatNotification(Message event, Targets targets) {
+        this.event = event;
+        this.frame = new Frame(event);
+        this.targets = targets;
+        this.sender = null;
+        this.ackTo = null;
+        this.ack = null;
     }
 
     public Message getEvent() {
         return event;
     }
 
-    public UUID[] getTargets() {
+    /**
+     * @return The event encoded once, to be shared by all recipients.
+     */
+    public Frame getFrame() {
+        return frame;
+    }
+
+    public Targets getTargets() {
         return targets;
     }
 
-    public class Message extends RemoteEvent {
+    /**
+     * @return The client of this server that posted the message, or null
+     * if the server itself or a peer server did.
+     */
+    public Client getSender() {
+        return sender;
+    }
+
+    /**
+     * @return The client to acknowledge the message to, or null.
+     */
+    public Client getAckTo() {
+        return ackTo;
+    }
+
+    /**
+     * @return The encoded acknowledgement for getAckTo(), or null.
+     */
+    public Frame getAck() {
+        return ack;
+    }
+
+    /**
+     * The event the clients receive. It is a static class, so it does not
+     * drag its ChatNotification (and the target list) along, and it writes
+     * its own compact form: a version byte, the sequence number, the
+     * sender id, a kind byte and what the kind carries. Its size does not
+     * depend on the number of recipients.
+     * <p>
+     * A TEXT message carries the time it was posted and the text as the
+     * sender typed it. The sender's name is not part of it: a ROSTER
+     * message tells the clients the names that go with sender ids, once
+     * when they register and again whenever a name changes.
+     * <p>
+     * An ACK tells a client which sequence number the server gave one of
+     * its posted messages. It has the sequence number of that message and
+     * the client's own number for it. A message that the server dropped
+     * got no sequence number, so its ACK has NO_SEQUENCE.
+     * <p>
+     * Versions 1 and 2 of the form, which older message logs hold, are
+     * still read. Their text messages have no time, and the text starts
+     * with the sender's name; version 1 has no kind byte either.
+     */
+    public static class Message extends RemoteEvent implements Externalizable {
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * The version of the external form that is written.
+         */
+        public static final byte VERSION = 3;
 
-        private final String msg;
+        /**
+         * The sender id of messages generated by the server itself.
+         */
+        public static final int SERVER_SENDER_ID = 0;
 
-        public Message(Object o, long l, long l1, String msg) {
-            super(o, l, l1, null);
+        /**
+         * The sender id of messages whose text says who they are from, if
+         * anyone: notices to one client, and messages relayed by peers.
+         */
+        public static final int NO_SENDER_ID = -1;
+
+        /**
+         * The ack id of messages that are not acknowledged.
+         */
+        public static final long NO_ACK = -1;
+
+        /**
+         * The sequence number of an ACK for a message that was dropped
+         * before it was given one.
+         */
+        public static final long NO_SEQUENCE = -1;
+
+        // The kinds of message.
+        public static final byte TEXT = 0;
+        public static final byte ACK = 1;
+        public static final byte ROSTER = 2;
+
+        private static final int[] NO_IDS = new int[0];
+        private static final String[] NO_NAMES = new String[0];
+
+        private int senderId;
+        private byte kind = TEXT;
+        private long timestamp;
+        private String msg;
+        private long ackId = NO_ACK;
+        private int[] ids = NO_IDS;
+        private String[] names = NO_NAMES;
+
+        /**
+         * Used by the serialization machinery only.
+         */
+        public Message() {
+            super(SOURCE, 0, 0, null);
+        }
+
+        public Message(int senderId, long serial, String msg) {
+            this(senderId, serial, System.currentTimeMillis(), msg);
+        }
+
+        /**
+         * Creates a text message.
+         *
+         * @param senderId  The id of the sending client, SERVER_SENDER_ID
+         *                  or NO_SENDER_ID.
+         * @param serial    The sequence number.
+         * @param timestamp When it was posted, by System.currentTimeMillis().
+         * @param msg       The text.
+         */
+        public Message(int senderId, long serial, long timestamp, String msg) {
+            super(SOURCE, 0, serial, null);
+            this.senderId = senderId;
+            this.timestamp = timestamp;
             this.msg = msg;
         }
 
+        /**
+         * Creates an acknowledgement.
+         *
+         * @param serial The sequence number of the acknowledged message,
+         *               or NO_SEQUENCE if it was dropped.
+         * @param ackId  The sender's own number for it.
+         * @return The acknowledgement.
+         */
+        public static Message ack(long serial, long ackId) {
+            Message ack = new Message(SERVER_SENDER_ID, serial, "");
+            ack.kind = ACK;
+            ack.ackId = ackId;
+            return ack;
+        }
+
+        /**
+         * Creates a roster: the names that go with some sender ids.
+         *
+         * @param serial The sequence number.
+         * @param ids    The sender ids.
+         * @param names  The name of each, in the same order.
+         * @return The roster.
+         */
+        public static Message roster(long serial, int[] ids, String[] names) {
+            if (ids.length != names.length) {
+                throw new IllegalArgumentException(ids.length + " ids, " + names.length + " names");
+            }
+            Message roster = new Message(SERVER_SENDER_ID, serial, "");
+            roster.kind = ROSTER;
+            roster.ids = ids;
+            roster.names = names;
+            return roster;
+        }
+
         public String getMsg() {
             return msg;
         }
+
+        /**
+         * @return TEXT, ACK or ROSTER.
+         */
+        public byte getKind() {
+            return kind;
+        }
+
+        /**
+         * @return When a TEXT message was posted, by
+         * System.currentTimeMillis() on the server, or 0 if not known.
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        /**
+         * @return For a ROSTER, the sender ids it names. The array must not
+         * be modified.
+         */
+        public int[] getIds() {
+            return ids;
+        }
+
+        /**
+         * @return For a ROSTER, the name of each of getIds(). The array
+         * must not be modified.
+         */
+        public String[] getNames() {
+            return names;
+        }
+
+        /**
+         * @return For an ACK, the sender's own number for the message;
+         * otherwise NO_ACK.
+         */
+        public long getAckId() {
+            return ackId;
+        }
+
+        /**
+         * @return The server-assigned id of the sending client, or
+         * SERVER_SENDER_ID if the server wrote the message.
+         */
+        public int getSenderId() {
+            return senderId;
+        }
+
+        public void writeExternal(ObjectOutput out) throws IOException {
+            writeTo(out);
+        }
+
+        public void readExternal(ObjectInput in) throws IOException {
+            readFrom(in);
+        }
+
+        /**
+         * Writes the external form of this message.
+         *
+         * @param out The destination.
+         */
+        public void writeTo(DataOutput out) throws IOException {
+            out.writeByte(VERSION);
+            out.writeLong(seqNum);
+            out.writeInt(senderId);
+            out.writeByte(kind);
+            if (kind == ACK) {
+                out.writeLong(ackId);
+            } else if (kind == ROSTER) {
+                out.writeInt(ids.length);
+                for (int i = 0; i < ids.length; i++) {
+                    out.writeInt(ids[i]);
+                    writeString(out, names[i]);
+                }
+            } else {
+                out.writeLong(timestamp);
+                writeString(out, msg);
+            }
+        }
+
+        /**
+         * Reads the external form of a message into this instance.
+         *
+         * @param in The source.
+         */
+        public void readFrom(DataInput in) throws IOException {
+            byte version = in.readByte();
+            if (version > VERSION) {
+                throw new InvalidObjectException("Unsupported message version " + version);
+            }
+            seqNum = in.readLong();
+            senderId = in.readInt();
+            kind = (version >= 2) ? in.readByte() : TEXT;
+            msg = "";
+            if (kind == ACK) {
+                ackId = in.readLong();
+            } else if (kind == ROSTER) {
+                ids = new int[in.readInt()];
+                names = new String[ids.length];
+                for (int i = 0; i < ids.length; i++) {
+                    ids[i] = in.readInt();
+                    names[i] = readString(in);
+                }
+            } else {
+                if (version < 3) {
+                    // The text already names the sender.
+                    senderId = NO_SENDER_ID;
+                    timestamp = 0;
+                } else {
+                    timestamp = in.readLong();
+                }
+                msg = readString(in);
+            }
+        }
+
+        private static void writeString(DataOutput out, String s) throws IOException {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+        private static String readString(DataInput in) throws IOException {
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * A Message that has already been encoded. The server encodes each
+     * message once and hands the same Frame to every recipient, so
+     * marshalling it for another listener is a plain copy of its bytes.
+     * The receiver decodes the message when it first asks for it.
+     */
+    public static class Frame extends RemoteEvent implements Externalizable {
+        private static final long serialVersionUID = 1L;
+
+        private byte[] bytes;
+        private transient volatile Message message;
+
+        /**
+         * When the server created this frame, by System.nanoTime(). Not
+         * sent to clients.
+         */
+        private transient long postedNanos;
+
+        /**
+         * Used by the serialization machinery only.
+         */
+        public Frame() {
+            super(SOURCE, 0, 0, null);
+        }
+
+        public Frame(Message message) {
+            super(SOURCE, 0, message.getSequenceNumber(), null);
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            try {
+                message.writeTo(new DataOutputStream(buffer));
+            } catch (IOException iox) {
+                // Writing to memory does not fail.
+                throw new IllegalStateException(iox);
+            }
+            this.bytes = buffer.toByteArray();
+            this.message = message;
+            this.postedNanos = System.nanoTime();
+        }
+
+        /**
+         * @return When the server created this frame, by System.nanoTime(),
+         * or 0 for a frame that was received.
+         */
+        public long getPostedNanos() {
+            return postedNanos;
+        }
+
+        /**
+         * Returns the encoded message. The array is shared by every
+         * recipient and must not be modified.
+         *
+         * @return The encoded message.
+         */
+        public byte[] getBytes() {
+            return bytes;
+        }
+
+        /**
+         * Decodes the message on first use.
+         *
+         * @return The message held by this frame.
+         */
+        public Message getMessage() throws IOException {
+            Message m = message;
+            if (m == null) {
+                m = new Message();
+                m.readFrom(new DataInputStream(new ByteArrayInputStream(bytes)));
+                message = m;
+            }
+            return m;
+        }
+
+        public void writeExternal(ObjectOutput out) throws IOException {
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+        public void readExternal(ObjectInput in) throws IOException {
+            bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            seqNum = sequenceOf(bytes);
+        }
+
+        /**
+         * Rebuilds a frame from its encoded message.
+         *
+         * @param bytes The encoded message.
+         * @return A frame that is not yet decoded.
+         */
+        public static Frame fromBytes(byte[] bytes) {
+            Frame frame = new Frame();
+            frame.bytes = bytes;
+            frame.seqNum = sequenceOf(bytes);
+            return frame;
+        }
+
+        /**
+         * Picks the sequence number out of an encoded message without
+         * decoding the rest. It follows the version byte.
+         */
+        private static long sequenceOf(byte[] bytes) {
+            long seq = 0;
+            for (int i = 1; i < 9; i++) {
+                seq = (seq << 8) | (bytes[i] & 0xff);
+            }
+            return seq;
+        }
+    }
+
+    /**
+     * Several frames for the same client, delivered in one remote call.
+     * The frames are in sequence order. The sequence number of the batch
+     * itself is that of its last frame.
+     */
+    public static class Batch extends RemoteEvent implements Externalizable {
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * The version of the external form written by this class.
+         */
+        public static final byte VERSION = 1;
+
+        private Frame[] frames;
+
+        /**
+         * Used by the serialization machinery only.
+         */
+        public Batch() {
+            super(SOURCE, 0, 0, null);
+        }
+
+        public Batch(Frame[] frames) {
+            super(SOURCE, 0, frames[frames.length - 1].getSequenceNumber(), null);
+            this.frames = frames;
+        }
+
+        /**
+         * @return The frames of this batch, in sequence order.
+         */
+        public Frame[] getFrames() {
+            return frames;
+        }
+
+        public void writeExternal(ObjectOutput out) throws IOException {
+            out.writeByte(VERSION);
+            out.writeInt(frames.length);
+            for (Frame frame : frames) {
+                out.writeInt(frame.bytes.length);
+                out.write(frame.bytes);
+            }
+        }
+
+        public void readExternal(ObjectInput in) throws IOException {
+            byte version = in.readByte();
+            if (version > VERSION) {
+                throw new InvalidObjectException("Unsupported batch version " + version);
+            }
+            frames = new Frame[in.readInt()];
+            for (int i = 0; i < frames.length; i++) {
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                frames[i] = Frame.fromBytes(bytes);
+            }
+            seqNum = frames.length > 0 ? frames[frames.length - 1].getSequenceNumber() : 0;
+        }
     }
 
 
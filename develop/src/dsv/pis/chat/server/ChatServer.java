@@ -14,6 +14,15 @@ package dsv.pis.chat.server;
 
 // Standard Java
 
+import dsv.pis.chat.server.federation.Federation;
+import dsv.pis.chat.server.log.FsyncPolicy;
+import dsv.pis.chat.server.log.MessageLog;
+import dsv.pis.chat.server.metrics.Gauge;
+import dsv.pis.chat.server.metrics.ServerMetrics;
+import dsv.pis.chat.server.nio.NioTransport;
+import dsv.pis.chat.server.nio.SessionHost;
+import dsv.pis.chat.server.pipeline.Pipeline;
+import dsv.pis.chat.server.pipeline.StagedMessage;
 import net.jini.core.entry.Entry;
 import net.jini.core.event.RemoteEventListener;
 import net.jini.core.event.UnknownEventException;
@@ -23,13 +32,24 @@ import net.jini.lookup.ServiceIDListener;
 import net.jini.lookup.entry.Name;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
 import java.net.InetAddress;
 import java.rmi.RMISecurityManager;
 import java.rmi.RemoteException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 // Jini
 
@@ -43,25 +63,67 @@ public class ChatServer
         java.rmi.server.UnicastRemoteObject    // for Java RMI
         implements
         ChatServerInterface,    // for clients
-        Runnable            // for the distribution thread.
+        SessionHost    // for the TCP transport
 {
     /**
-     * The server's message counter. Increments monotonically with each
-     * message dispatched.
+     * Incoming messages are placed on the message queue. The distribution
+     * thread of every shard consumes the whole queue and sorts each message
+     * into the outboxes of its own clients.
+     * The sequence numbers claimed in the queue are the server's message
+     * counter, which increments monotonically with each message dispatched.
      */
-    protected int msgCount = 0;
+    protected MessageRing<ChatNotification> msgQueue = null;
 
     /**
-     * Incoming messages are placed on the message queue. The distribution
-     * thread consumes the queue by sending copies off to registered clients.
+     * The most recent public messages, for late joiners. Null if the
+     * server keeps no history.
+     */
+    protected MessageHistory history = null;
+
+    /**
+     * The persistent log of dispatched messages. Null if the server keeps
+     * no log.
+     */
+    protected MessageLog log = null;
+
+    /**
+     * The registered clients, by session handle and by UUID.
+     */
+    protected SessionTable sessions = new SessionTable();
+
+    /**
+     * The current snapshot of registered clients. Broadcasts refer to the
+     * snapshot of the moment they were sent instead of copying it.
+     */
+    protected volatile Membership members = Membership.EMPTY;
+
+    /**
+     * The number of shards the clients are divided into by their UUID.
+     * Each shard has a distribution thread of its own.
+     */
+    protected int shards = 1;
+
+    /**
+     * The room index: the current snapshot of each room's members. Rooms
+     * without members are removed. Each Client holds the reverse index,
+     * the names of its rooms.
+     */
+    protected Map<String, Membership> rooms = new ConcurrentHashMap<>();
+
+    /**
+     * The longest room name accepted.
+     */
+    protected static final int MAX_ROOM_NAME = 64;
+
+    /**
+     * Serializes updates of the membership snapshot and the room index.
      */
-    protected LinkedList<ChatNotification> msgQueue = new LinkedList<>();
+    private final Object membershipLock = new Object();
 
     /**
-     * The notification objects of registered clients are held in this
-     * vector.
+     * Hands out the sender ids of registering clients. Id 0 is the server.
      */
-    protected Map<UUID, Client> clients = new ConcurrentHashMap<>();
+    protected AtomicInteger nextClientId = new AtomicInteger(1);
 
     /**
      * The printed name of this server instance.
@@ -74,10 +136,226 @@ public class ChatServer
      */
     protected JoinManager jmgr = null;
 
+    /**
+     * The TCP transport, if this server offers one.
+     */
+    protected NioTransport tcp = null;
+
     /**
      * The delivery thread runs while this flag is true.
      */
-    protected boolean runDelivery = true;
+    protected volatile boolean runDelivery = true;
+
+    /**
+     * The server takes new messages and clients while this flag is true.
+     * Draining clears it first, so that the queues can empty.
+     */
+    protected volatile boolean accepting = true;
+
+    /**
+     * The Jini service id of this server, once the join manager has one.
+     * A snapshot keeps it, so that the next server registers under the
+     * same id and clients find it again.
+     */
+    protected volatile ServiceID serviceID = null;
+
+    /**
+     * How often drain() checks whether the queues are empty.
+     */
+    private static final long DRAIN_POLL_MILLIS = 10;
+
+    /**
+     * The dropping of restored sessions whose clients do not come back,
+     * or null.
+     */
+    private Future<?> resumeExpiry = null;
+
+    /**
+     * The settings this server was started with.
+     */
+    protected ChatServerOptions options = null;
+
+    /**
+     * Throughput and latency figures, also offered over JMX.
+     */
+    protected ServerMetrics metrics = null;
+
+    /**
+     * The JMX name of the metrics, or null if they could not be registered.
+     */
+    private ObjectName metricsName = null;
+
+    /**
+     * The pool of delivery workers that drain the clients' outboxes. The
+     * distribution thread only sorts messages into outboxes, so a slow
+     * listener holds up a single worker instead of the whole room. It is a
+     * scheduled pool so that a turn can linger while its batch fills up.
+     */
+    protected ScheduledThreadPoolExecutor deliveryPool = null;
+
+    /**
+     * The id of this server among its peers. It is new every time the
+     * server starts, so the sequence numbers of a restarted server do not
+     * collide with what its peers remember of the previous run.
+     */
+    protected final UUID serverId = UUID.randomUUID();
+
+    /**
+     * The links to the peer servers this server shares its public chat
+     * with.
+     */
+    protected Federation federation = null;
+
+    /**
+     * The stages the messages of clients go through before they are
+     * queued, or null if there are none.
+     */
+    protected Pipeline<Posted> pipeline = null;
+
+    /**
+     * The rate limit of the messages the server sends of its own accord,
+     * or null if there is none.
+     */
+    protected RateLimiter serverLimiter = null;
+
+    /**
+     * A message of a client in the pipeline, with what it takes to queue
+     * it afterwards.
+     */
+    protected static class Posted extends StagedMessage {
+        private final Client client;
+        private final long ackId;
+
+        Posted(Client client, String room, String msg, long ackId) {
+            super(client.getUUID(), client.getName(), room, msg);
+            this.client = client;
+            this.ackId = ackId;
+        }
+    }
+
+    /**
+     * Queues the messages that leave the pipeline.
+     */
+    private class PostedSink implements Pipeline.Sink<Posted> {
+        public void deliver(Posted posted) {
+            queuePosted(posted.client, posted.getRoom(), posted.getText(), posted.ackId);
+        }
+
+        public void dropped(Posted posted) {
+            // The sender still gets its ack, and nobody the message. The
+            // ack goes out on its own, so the message takes no sequence
+            // number and is not logged.
+            if (posted.ackId != ChatNotification.Message.NO_ACK) {
+                enqueue(posted.client, new ChatNotification.Frame(ChatNotification.Message.ack(
+                        ChatNotification.Message.NO_SEQUENCE, posted.ackId)));
+            }
+        }
+    }
+
+    /**
+     * This inner class sends one batch from the outbox of one client. At
+     * most one instance per client is queued or running at any time.
+     */
+    private class DeliveryTask implements Runnable {
+        private final Client client;
+
+        public DeliveryTask(Client client) {
+            this.client = client;
+        }
+
+        public void run() {
+            try {
+                client.deliverPending(options.maxBatch, metrics);
+            } catch (UnknownEventException | RemoteException e) {
+                client.close();
+                leave(client);
+            }
+            if (client.releaseTurn()) {
+                schedule(client);
+            }
+        }
+    }
+
+    /**
+     * This inner class is the code of a client's own delivery thread in
+     * the thread-per-client mode. The thread parks while the client has no
+     * delivery turn; the distribution thread unparks it when it hands over
+     * the turn. Blocking in notify() only holds up this one thread.
+     */
+    private class ClientDeliveryLoop implements Runnable {
+        private final Client client;
+
+        public ClientDeliveryLoop(Client client) {
+            this.client = client;
+        }
+
+        public void run() {
+            long lingerNanos = TimeUnit.MILLISECONDS.toNanos(options.lingerMillis);
+            boolean idle = true;
+            while (!client.isClosed() && runDelivery) {
+                if (!client.hasTurn()) {
+                    idle = true;
+                    LockSupport.park(this);
+                    continue;
+                }
+                if (idle && lingerNanos > 0 && client.getPendingCount() < options.maxBatch) {
+                    // Wait for the batch to fill up; a full batch unparks
+                    // us early.
+                    LockSupport.parkNanos(this, lingerNanos);
+                }
+                idle = false;
+                try {
+                    client.deliverPending(options.maxBatch, metrics);
+                } catch (UnknownEventException | RemoteException e) {
+                    client.close();
+                    leave(client);
+                    break;
+                }
+                if (!client.releaseTurn()) {
+                    idle = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * This inner class is the distribution thread of one shard. It reads
+     * every message in the queue and hands it to the clients of its
+     * shard; the threads of the other shards do the same for theirs, at
+     * their own pace.
+     */
+    private class Shard implements Runnable {
+        private final int index;
+
+        public Shard(int index) {
+            this.index = index;
+        }
+
+        public void run() {
+            while (runDelivery) {
+                ChatNotification msg = msgQueue.take(index);
+                if (msg != null) {
+                    distribute(msg, index);
+                }
+            }
+            if (index == 0) {
+                System.out.println("\nDelivery threads exiting.");
+            }
+        }
+    }
+
+    /**
+     * This inner class creates daemon threads for the delivery pool.
+     */
+    private static class DeliveryThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "delivery-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
 
     /**
      * This inner class implements the ServiceIDListener interface on which
@@ -89,6 +367,7 @@ public class ChatServer
         }
 
         public void serviceIDNotify(ServiceID sid) {
+            serviceID = sid;
             System.out.println("Registered as Jini service " + sid);
         }
     }
@@ -104,6 +383,82 @@ public class ChatServer
             java.rmi.RemoteException,    // if join doesn't work
             java.net.UnknownHostException // if we don't know where we are
     {
+        this(idName, new ChatServerOptions());
+    }
+
+    /**
+     * Creates a new ChatServer.
+     *
+     * @param idName  The identifying name of this server instance.
+     * @param options The settings of this server instance.
+     */
+    public ChatServer(String idName, ChatServerOptions options)
+            throws
+            java.io.IOException,
+            java.rmi.RemoteException,    // if join doesn't work
+            java.net.UnknownHostException // if we don't know where we are
+    {
+        this.options = options;
+
+        // The message count continues where the log left off.
+        long first = 0;
+        if (options.logDirectory != null) {
+            long start = System.nanoTime();
+            log = new MessageLog(new File(options.logDirectory), options.logSegmentSize,
+                    options.fsyncPolicy, options.fsyncMillis, options.queueSize);
+            first = log.getNextSequence();
+            System.out.println("Message log " + options.logDirectory + " continues at message " + first
+                    + " (" + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms)");
+        }
+
+        // A drained server left its sessions for us. The file is removed
+        // once they are back, so they are not restored twice.
+        ServerSnapshot snapshot = null;
+        File snapshotFile = (options.snapshotFile != null) ? new File(options.snapshotFile) : null;
+        if (snapshotFile != null && snapshotFile.exists()) {
+            try {
+                snapshot = ServerSnapshot.read(snapshotFile);
+                first = Math.max(first, snapshot.getNextSequence());
+            } catch (IOException iox) {
+                System.out.println("Cannot read snapshot " + snapshotFile + ": " + iox.getMessage());
+            }
+        }
+        shards = Math.max(1, options.shards);
+        msgQueue = new MessageRing<>(options.queueSize, first, options.waitStrategy, shards);
+        if (options.historySize > 0) {
+            history = new MessageHistory(options.historySize, first);
+        }
+        metrics = new ServerMetrics(
+                new Gauge() {
+                    public long value() {
+                        return msgQueue.size();
+                    }
+                },
+                new Gauge() {
+                    public long value() {
+                        long pending = 0;
+                        for (Client client : members.clients()) {
+                            pending += client.getPendingCount();
+                        }
+                        return pending;
+                    }
+                },
+                new Gauge() {
+                    public long value() {
+                        return members.size();
+                    }
+                });
+        deliveryPool = new ScheduledThreadPoolExecutor(options.deliveryWorkers, new DeliveryThreadFactory());
+        deliveryPool.setRemoveOnCancelPolicy(true);
+        if (!options.stages.isEmpty()) {
+            pipeline = new Pipeline<>(options.stages, new PostedSink());
+        }
+        if (options.serverRate > 0) {
+            serverLimiter = new RateLimiter(options.serverRate, options.serverBurst);
+        }
+        federation = new Federation(this, serverId, options.peers, options.relayHops, options.dedupCacheSize,
+                metrics);
+
         // Find out our hostname so that clients can see it in the registration.
 
         String host = InetAddress.getLocalHost().getHostName().toLowerCase();
@@ -111,6 +466,14 @@ public class ChatServer
         serverName =
                 "ChatServer " + ((idName != null) ? idName : "") + " on " + host;
 
+        if (snapshot != null) {
+            restore(snapshot);
+            serviceID = snapshot.getServiceID();
+            if (!snapshotFile.delete()) {
+                System.out.println("Cannot remove snapshot " + snapshotFile);
+            }
+        }
+
         // Compose the arguments for the registration attempt with the
         // Jini lookup server.
 
@@ -120,17 +483,41 @@ public class ChatServer
         // Create a Join manager that will hunt out any Jini lookup servers
         // out there and register us with them.
 
-        jmgr = new JoinManager
-                (
-                        this,            // this is the service object
-                        attributes,        // how we describe ourselves
-                        new IDListener(),    // to learn of a registration
-                        null,            // default service discovery manager
-                        null            // default lease renewal manager
-                );
+        if (options.joinLookup && serviceID != null) {
+            // Back from a snapshot: take the old id, so that clients
+            // see the same service again rather than a new one.
+            System.out.println("Registering again as Jini service " + serviceID);
+            jmgr = new JoinManager(this, attributes, serviceID, null, null);
+        } else if (options.joinLookup) {
+            jmgr = new JoinManager
+                    (
+                            this,            // this is the service object
+                            attributes,        // how we describe ourselves
+                            new IDListener(),    // to learn of a registration
+                            null,            // default service discovery manager
+                            null            // default lease renewal manager
+                    );
+        }
+
+        try {
+            metricsName = new ObjectName("dsv.pis.chat:type=ChatServer,name=" + ObjectName.quote(serverName));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, metricsName);
+        } catch (JMException jmx) {
+            System.out.println("Metrics not available over JMX: " + jmx.getMessage());
+            metricsName = null;
+        }
 
-        // Start the service thread.
-        new Thread(this).start();
+        // Offer the same service over plain TCP, for installations with
+        // more clients than RMI has threads for.
+        if (options.tcpPort > 0) {
+            tcp = new NioTransport(this, options.tcpPort, options.tcpSelectors, options.tcpWorkers);
+            System.out.println("Listening for TCP clients on port " + tcp.getPort());
+        }
+
+        // Start the distribution threads.
+        for (int i = 0; i < shards; i++) {
+            new Thread(new Shard(i), "shard-" + i).start();
+        }
     }
 
     /**
@@ -141,54 +528,324 @@ public class ChatServer
      * well, <strong>cleaner</strong>.
      */
     protected void shutdown() {
-        jmgr.terminate();
+        if (resumeExpiry != null) {
+            resumeExpiry.cancel(false);
+        }
+        federation.close();
+        if (pipeline != null) {
+            pipeline.close();
+        }
+        if (tcp != null) {
+            tcp.close();
+        }
+        if (jmgr != null) {
+            jmgr.terminate();
+        }
+        deliveryPool.shutdown();
+        if (log != null) {
+            log.close();
+        }
+        if (metricsName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsName);
+            } catch (JMException jmx) {
+            }
+        }
+        for (Client client : members.clients()) {
+            client.close();
+            LockSupport.unpark(client.getDeliveryThread());
+        }
     }
 
     /**
-     * Adds a message the the output queue. This call is synchronized so
-     * we have unperturbed access to the modification of the message queue.
+     * Stops the distribution threads and shuts the server down. This is
+     * what the quit command does; programs that run a server without the
+     * command interpreter call it directly.
+     */
+    public void stop() {
+        runDelivery = false;
+        msgQueue.halt();
+        shutdown();
+        try {
+            unexportObject(this, true);
+        } catch (java.rmi.NoSuchObjectException nsoe) {
+        }
+    }
+
+    /**
+     * Shuts the server down without losing what it has accepted. New
+     * messages and clients are refused first; then the pipeline, the
+     * message queue and the outboxes are given until the deadline to
+     * empty. If the options name a snapshot file, the sessions and
+     * whatever is still undelivered go there, for the next server to
+     * pick up, batches still being sent included; messages the
+     * distribution threads had not yet taken by the deadline are lost.
      *
-     * @param msg The text message to add.
+     * @param seconds How long to wait at most for the queues to empty.
+     */
+    public void drain(int seconds) {
+        accepting = false;
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        boolean drained = pipeline == null || pipeline.awaitEmpty(deadline);
+        while (drained && undelivered() > 0) {
+            if (System.nanoTime() - deadline >= 0) {
+                drained = false;
+                break;
+            }
+            try {
+                Thread.sleep(DRAIN_POLL_MILLIS);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                drained = false;
+            }
+        }
+        if (!drained) {
+            System.out.println("Drain deadline passed, " + undelivered() + " messages undelivered");
+        }
+
+        // Stop delivering, so that the outboxes hold still.
+        runDelivery = false;
+        msgQueue.halt();
+        deliveryPool.shutdown();
+        try {
+            // A delivery that is still running after this keeps its batch
+            // in the snapshot, see Client.takePending().
+            deliveryPool.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        if (options.snapshotFile != null) {
+            writeSnapshot(new File(options.snapshotFile));
+        }
+        stop();
+    }
+
+    /**
+     * @return The number of messages in the message queue and in the
+     * outboxes of clients that are attached.
      */
-    protected synchronized void addMessage(Object source, String msg, UUID... targets) {
+    private long undelivered() {
+        long pending = msgQueue.size();
+        for (Client client : members.clients()) {
+            if (client.getListener() != null) {
+                pending += client.getPendingCount();
+            }
+        }
+        return pending;
+    }
+
+    /**
+     * Writes the sessions to a snapshot. Delivery must have stopped.
+     *
+     * @param file The snapshot file.
+     */
+    private void writeSnapshot(File file) {
+        List<ServerSnapshot.Session> saved = new ArrayList<>();
+        for (Client client : sessions.list()) {
+            saved.add(new ServerSnapshot.Session(client));
+        }
+        ServerSnapshot snapshot = new ServerSnapshot(msgQueue.getNextSequence(), nextClientId.get(),
+                serviceID, saved);
         try {
-            if (targets != null && targets.length > 0) {
-                msgQueue.addLast(new ChatNotification(source, msg, msgCount, targets));
+            snapshot.write(file);
+            System.out.println("Saved " + saved.size() + " sessions and " + snapshot.getPendingCount()
+                    + " undelivered messages to " + file + " (" + msgQueue.size() + " messages lost)");
+        } catch (IOException iox) {
+            System.out.println("Cannot write snapshot " + file + ": " + iox.getMessage());
+        }
+    }
+
+    /**
+     * Brings back the sessions of a snapshot, with the same sender ids,
+     * names and rooms, and their undelivered messages in their outboxes.
+     * Clients whose listener was kept get those at once; the others are
+     * detached until they register again. Sessions whose clients have
+     * not registered again within options.resumeSeconds are then treated
+     * as new, and those still detached are dropped. Called by the
+     * constructor before the distribution threads start.
+     *
+     * @param snapshot The snapshot.
+     */
+    private void restore(ServerSnapshot snapshot) {
+        // A client that comes back on a new connection has forgotten the
+        // names; those of the snapshot go ahead of what waits for it.
+        List<ServerSnapshot.Session> saved = snapshot.getSessions();
+        int[] ids = new int[saved.size() + 1];
+        String[] names = new String[ids.length];
+        ids[0] = ChatNotification.Message.SERVER_SENDER_ID;
+        names[0] = serverName;
+        for (int i = 0; i < saved.size(); i++) {
+            ids[i + 1] = saved.get(i).getId();
+            names[i + 1] = saved.get(i).getName();
+        }
+
+        final List<Client> restored = new ArrayList<>();
+        int attached = 0;
+        for (ServerSnapshot.Session session : saved) {
+            RemoteEventListener rel = session.getListener();
+            Client client = new Client(session.getId(), session.getUUID(), rel, shardOf(session.getUUID()));
+            client.setName(session.getName());
+            client.getStatistics().setJoinDate(new Date(session.getJoined()));
+            client.getStatistics().restore(session.getSent(), session.getReceived());
+            client.setRestored(true);
+            start(client);
+            sessions.put(client);
+            synchronized (membershipLock) {
+                members = members.with(client);
+                for (String room : session.getRooms()) {
+                    if (client.getRooms().add(room)) {
+                        Membership current = rooms.get(room);
+                        rooms.put(room, (current != null ? current : Membership.EMPTY).with(client));
+                    }
+                }
+            }
+            ChatNotification.Frame[] frames = session.getFrames();
+            if (frames.length > 0) {
+                enqueue(client, new ChatNotification.Frame(ChatNotification.Message.roster(
+                        frames[0].getSequenceNumber(), ids, names)));
+            }
+            for (ChatNotification.Frame frame : frames) {
+                enqueue(client, frame);
+            }
+            if (rel != null) {
+                attached++;
+            }
+            restored.add(client);
+        }
+        nextClientId.set(Math.max(nextClientId.get(), snapshot.getNextClientId()));
+        System.out.println("Restored " + restored.size() + " sessions (" + attached + " attached) and "
+                + snapshot.getPendingCount() + " undelivered messages; continuing at message "
+                + snapshot.getNextSequence());
+        if (restored.isEmpty()) {
+            return;
+        }
+        resumeExpiry = deliveryPool.schedule(new Runnable() {
+            public void run() {
+                for (Client client : restored) {
+                    client.setRestored(false);
+                    if (client.getListener() == null) {
+                        leave(client);
+                    }
+                }
+            }
+        }, options.resumeSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Adds a message the the output queue. No lock is taken: the message
+     * queue hands out the serial number and the slot in one atomic step,
+     * so concurrent callers still get consecutive, ordered serials.
+     * Publishing wakes up the distribution threads that are waiting.
+     *
+     * @param msg The text message to add.
+     */
+    protected void addMessage(Object source, String msg, Targets targets) {
+        addMessage(source, msg, targets, ChatNotification.Message.NO_ACK);
+    }
+
+    /**
+     * Adds a message the the output queue, to be acknowledged to the
+     * sending client once it is distributed. An acknowledged message is
+     * queued even if nobody else receives it, so the sender still gets
+     * its ack.
+     *
+     * A public message of a client is queued even if it has no local
+     * receivers as long as the server has peers, which relay it to theirs.
+     *
+     * Messages of the server itself count against its rate limit, and
+     * are left out when they go over it.
+     *
+     * @param msg   The text message to add.
+     * @param ackId The sender's own number for the message, or
+     *              ChatNotification.Message.NO_ACK.
+     */
+    protected void addMessage(Object source, String msg, Targets targets, long ackId) {
+        if (source == this && serverLimiter != null && !serverLimiter.tryAcquire()) {
+            metrics.serverRateLimited();
+            return;
+        }
+        if (targets != null && (!targets.isEmpty() || ackId != ChatNotification.Message.NO_ACK
+                || (source instanceof Client && targets.isPublic() && federation.hasPeers()))) {
+            long serial = msgQueue.next();
+            ChatNotification notification = null;
+            try {
+                notification = new ChatNotification(source, msg, serial, targets, ackId);
                 if (source instanceof Client) {
                     ((Client) source).getStatistics().addSntMsgCount();
                 }
-                msgCount++;
-            } else {
-                System.out.println(msg + "<- does not have any receiver, dropped");
+                metrics.messagePosted();
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                // The slot must be published even if it stays empty, or
+                // the distribution threads would wait for it forever.
+                msgQueue.publish(serial, notification);
             }
-        } catch (IOException e) {
-            e.printStackTrace();
+        } else {
+            System.out.println(msg + "<- does not have any receiver, dropped");
         }
-        // Wake up the distribution thread.
-        wakeUp();
     }
 
     /**
-     * Retrieves the oldest (first) message from the message queue.
-     * This call is synchronized to prevent simultaneous update of
-     * the message queue.
+     * Tells clients the name of one client. Called under the membership
+     * lock, so that every client sees rosters and membership changes in
+     * the same order.
+     *
+     * @param client  The client.
+     * @param targets The clients to tell.
+     */
+    private void addRoster(Client client, Targets targets) {
+        addRoster(new int[]{client.getId()}, new String[]{client.getName()}, targets);
+    }
+
+    /**
+     * Tells a client that is about to join, or resumes its session, the
+     * names of the server and of all members, itself included. Called
+     * under the membership lock.
      *
-     * @return The next message, or null if the queue is empty.
+     * @param client The client.
      */
-    protected synchronized ChatNotification getNextMessage() {
-        ChatNotification rtn = null;
+    private void sendRoster(Client client) {
+        Client[] all = members.clients();
+        int[] ids = new int[all.length + 2];
+        String[] names = new String[ids.length];
+        ids[0] = ChatNotification.Message.SERVER_SENDER_ID;
+        names[0] = serverName;
+        int n = 1;
+        for (Client member : all) {
+            if (member != client) {
+                ids[n] = member.getId();
+                names[n++] = member.getName();
+            }
+        }
+        ids[n] = client.getId();
+        names[n++] = client.getName();
+        if (n < ids.length) {
+            ids = Arrays.copyOf(ids, n);
+            names = Arrays.copyOf(names, n);
+        }
+        addRoster(ids, names, Targets.only(client));
+    }
+
+    private void addRoster(int[] ids, String[] names, Targets targets) {
+        if (targets.isEmpty()) {
+            return;
+        }
+        long serial = msgQueue.next();
+        ChatNotification roster = null;
         try {
-            rtn = msgQueue.removeFirst();
-        } catch (java.util.NoSuchElementException nse) {
+            roster = new ChatNotification(ChatNotification.Message.roster(serial, ids, names), targets);
+        } finally {
+            msgQueue.publish(serial, roster);
         }
-        return rtn;
     }
 
     // In interface ChatServerInterface
 
     public String say(UUID uuid, String msg) throws IOException {
-        if (uuid != null && msg != null && clients.containsKey(uuid)) {
-            addMessage(clients.get(uuid), msg, allClientsExcept(uuid));
+        Client client = (uuid != null) ? sessions.get(uuid) : null;
+        if (client != null && msg != null && admit(client)
+                && submit(client, null, msg, ChatNotification.Message.NO_ACK)) {
             return "✓";
         }
         return "✗";
@@ -196,99 +853,570 @@ public class ChatServer
 
     // In interface ChatServerInterface
 
+    public void post(UUID uuid, long firstId, String[] msgs) {
+        Client client = (uuid != null) ? sessions.get(uuid) : null;
+        if (client == null || msgs == null) {
+            return;
+        }
+        for (int i = 0; i < msgs.length; i++) {
+            if (msgs[i] != null) {
+                if (!admit(client)) {
+                    refuse(client, firstId, msgs, i);
+                    return;
+                }
+                submit(client, null, msgs[i], firstId + i);
+            }
+        }
+    }
+
+    /**
+     * Refuses the rest of a post once one message of it is over the rate
+     * limit, since the others would be refused as well. Each gets an ack
+     * without a sequence number, so the sender does not wait for it.
+     *
+     * @param client  The sender.
+     * @param firstId The ack id of the first message of the post.
+     * @param msgs    The messages of the post.
+     * @param from    The first refused message, already counted.
+     */
+    private void refuse(Client client, long firstId, String[] msgs, int from) {
+        int refused = 0;
+        for (int i = from; i < msgs.length; i++) {
+            if (msgs[i] != null) {
+                enqueue(client, new ChatNotification.Frame(ChatNotification.Message.ack(
+                        ChatNotification.Message.NO_SEQUENCE, firstId + i)));
+                refused++;
+            }
+        }
+        metrics.clientRateLimited(refused - 1);
+    }
+
+    // In interface ChatServerInterface
+
     public String getName() throws java.rmi.RemoteException {
         return serverName;
     }
 
     // In interface ChatServerInterface
 
-    public void register(UUID uuid, RemoteEventListener rel) {
-        if (rel != null && uuid != null) {
-            clients.put(uuid, new Client(uuid, rel));
-            addMessage(this, uuid.toString() + " just joined our chat", allClientsExcept(uuid));
-            System.out.println("Added client : " + rel.toString() + " totally " + clients.size() + " clients");
+    public void register(UUID uuid, RemoteEventListener rel) throws RemoteException {
+        registerSession(uuid, rel);
+    }
+
+    // In interface SessionHost
+
+    public int registerSession(UUID uuid, RemoteEventListener rel) throws RemoteException {
+        if (!accepting) {
+            throw new RemoteException("The server is shutting down");
+        }
+        if (rel == null || uuid == null) {
+            return SessionTable.NO_HANDLE;
+        }
+        Client restored = sessions.get(uuid);
+        if (restored != null && restored.isRestored()) {
+            resume(restored, rel);
+            return restored.getHandle();
+        }
+        Client client = new Client(nextClientId.getAndIncrement(), uuid, rel, shardOf(uuid));
+        start(client);
+        Client previous = sessions.put(client);
+        synchronized (membershipLock) {
+            if (previous != null) {
+                previous.close();
+                LockSupport.unpark(previous.getDeliveryThread());
+                members = members.without(previous);
+                leaveAllRooms(previous);
+            }
+            // The newcomer learns everyone's name before any message
+            // from them can reach it, and everyone else learns its.
+            sendRoster(client);
+            members = members.with(client);
+            addRoster(client, Targets.allExcept(members, client));
+        }
+        addMessage(this, uuid.toString() + " just joined our chat", Targets.allExcept(members, client));
+        System.out.println("Added client : " + rel.toString() + " totally " + sessions.size() + " clients");
+        return client.getHandle();
+    }
+
+    /**
+     * Sets up what a new session needs besides its membership: its rate
+     * limit and, in the thread-per-client mode, its delivery thread.
+     *
+     * @param client The client.
+     */
+    private void start(Client client) {
+        if (options.clientRate > 0) {
+            client.setRateLimiter(new RateLimiter(options.clientRate, options.clientBurst));
+        }
+        if (options.threadPerClient) {
+            Thread t = DeliveryThreads.newThread(new ClientDeliveryLoop(client),
+                    "delivery-" + client.getId());
+            client.setDeliveryThread(t);
+            t.start();
         }
     }
 
+    /**
+     * Gives a session restored from a snapshot back to its client. The
+     * others never saw it leave, so they are told nothing; the client
+     * gets the names again and whatever it missed meanwhile.
+     *
+     * @param client The restored session.
+     * @param rel    The client's listener.
+     */
+    private void resume(Client client, RemoteEventListener rel) {
+        client.setRestored(false);
+        // Attached first, so the roster cannot go to the old listener.
+        if (client.attach(rel)) {
+            schedule(client);
+        }
+        synchronized (membershipLock) {
+            sendRoster(client);
+        }
+        System.out.println("Resumed client : " + rel.toString() + " as " + client.getName());
+    }
+
     // In interface ChatServerInterface
 
     public void unregister(UUID uuid)
             throws java.rmi.RemoteException {
-        if (uuid != null && clients.containsKey(uuid)) {
-            addMessage(this, clients.get(uuid).getName() + (!clients.get(uuid).getName().equals(uuid.toString()) ? "(" + uuid.toString() + ")" : "") + " just left our chat", allClientsExcept(uuid));
-            clients.remove(uuid);
+        Client client = (uuid != null) ? sessions.get(uuid) : null;
+        if (client != null) {
+            leave(client);
+        }
+    }
+
+    // In interface SessionHost
+
+    public void endSession(int handle, RemoteEventListener rel) {
+        Client client = sessions.get(handle);
+        if (client != null && client.getListener() == rel) {
+            leave(client);
+        }
+    }
+
+    /**
+     * Ends the session of a client. A client whose session has already
+     * ended, or been replaced by a newer one with the same UUID, is left
+     * alone, so a failing delivery to an old session cannot remove the
+     * new one.
+     *
+     * @param client The client.
+     */
+    protected void leave(Client client) {
+        // Removing first makes sure that a client which fails on several
+        // delivery workers at once is only reported as leaving once.
+        if (sessions.remove(client)) {
+            UUID uuid = client.getUUID();
+            client.close();
+            LockSupport.unpark(client.getDeliveryThread());
+            synchronized (membershipLock) {
+                members = members.without(client);
+                leaveAllRooms(client);
+            }
+            addMessage(this, client.getName() + (!client.getName().equals(uuid.toString()) ? "(" + uuid.toString() + ")" : "") + " just left our chat", Targets.allExcept(members, client));
             System.out.println("Removed client : " + uuid.toString());
         }
     }
 
     @Override
     public void setName(UUID uuid, String name) {
-        addMessage(this, clients.get(uuid).getName() + " now using name:" + name, allClientsExcept(uuid));
-        clients.get(uuid).setName(name);
+        // A rename goes to everyone, like what the client says.
+        Client client = (uuid != null) ? sessions.get(uuid) : null;
+        if (client != null && name != null && admit(client)) {
+            addMessage(this, client.getName() + " now using name:" + name, Targets.allExcept(members, client));
+            synchronized (membershipLock) {
+                client.setName(name);
+                addRoster(client, Targets.allExcept(members, null));
+            }
+        }
     }
 
     @Override
     public void listClients(UUID uuid) throws RuntimeException {
+        // The list is long; a client asking too often does not get it.
+        Client client = (uuid != null) ? sessions.get(uuid) : null;
+        if (client == null || !admit(client)) {
+            return;
+        }
         StringBuilder toPrint = new StringBuilder("Connected Clients\n");
-        for (Map.Entry<UUID, Client> eachClient : clients.entrySet()) {
-            toPrint.append(eachClient.getValue().getName()).append("(").append(eachClient.getKey().toString()).append(")").append(eachClient.getValue().getStatistics().toString()).append("\n");
+        for (Client eachClient : sessions.list()) {
+            toPrint.append(eachClient.getName()).append("(").append(eachClient.getUUID().toString()).append(")").append(eachClient.getStatistics().toString()).append("\n");
+        }
+        addMessage(this, toPrint.toString(), Targets.only(client));
+    }
+
+    // In interface ChatServerInterface
+
+    public HistoryPage getHistory(UUID uuid, long from, int max) {
+        if ((history == null && log == null) || uuid == null || sessions.get(uuid) == null) {
+            return new HistoryPage(new ChatNotification.Frame[0], msgQueue.getNextSequence(),
+                    msgQueue.getNextSequence());
+        }
+        if (history != null) {
+            HistoryPage page = history.page(from, max);
+            if (log == null || from < 0 || from >= page.getOldest()) {
+                return page;
+            }
+        }
+
+        // Older than the history in memory: read the log.
+        max = Math.max(0, Math.min(max, MessageHistory.MAX_PAGE));
+        long end = log.getNextSequence();
+        if (from < 0) {
+            from = Math.max(0, end - max);
+        }
+        List<ChatNotification.Frame> frames = log.read(from, max);
+        long next = end;
+        if (!frames.isEmpty()) {
+            next = Math.max(next, frames.get(frames.size() - 1).getSequenceNumber() + 1);
+        }
+        return new HistoryPage(frames.toArray(new ChatNotification.Frame[frames.size()]),
+                log.getFirstSequence(), next);
+    }
+
+    /**
+     * Checks a room name from a client.
+     *
+     * @param room The name as given.
+     * @return The name without surrounding whitespace, or null if it is
+     * not acceptable.
+     */
+    protected static String roomName(String room) {
+        if (room == null) {
+            return null;
+        }
+        room = room.trim();
+        return (room.length() == 0 || room.length() > MAX_ROOM_NAME) ? null : room;
+    }
+
+    /**
+     * Removes a client from a room of the room index. The caller holds
+     * the membership lock.
+     *
+     * @return The members left in the room.
+     */
+    private Membership removeFromRoom(String room, Client client) {
+        Membership left = Membership.EMPTY;
+        Membership current = rooms.get(room);
+        if (current != null) {
+            left = current.without(client);
+            if (left.size() == 0) {
+                rooms.remove(room);
+            } else {
+                rooms.put(room, left);
+            }
+        }
+        return left;
+    }
+
+    /**
+     * Removes a leaving client from all its rooms. The caller holds the
+     * membership lock.
+     */
+    private void leaveAllRooms(Client client) {
+        for (String room : client.getRooms()) {
+            removeFromRoom(room, client);
+        }
+        client.getRooms().clear();
+    }
+
+    // In interface ChatServerInterface
+
+    public void joinRoom(UUID uuid, String room) {
+        Client client = (uuid != null) ? sessions.get(uuid) : null;
+        room = roomName(room);
+        if (client == null || room == null) {
+            return;
+        }
+        Membership roomMembers;
+        synchronized (membershipLock) {
+            // A client that is being unregistered has been closed first.
+            if (client.isClosed() || !client.getRooms().add(room)) {
+                return;
+            }
+            Membership current = rooms.get(room);
+            roomMembers = (current != null ? current : Membership.EMPTY).with(client);
+            rooms.put(room, roomMembers);
+        }
+        addMessage(this, client.getName() + " joined #" + room, Targets.inRoom(roomMembers, client));
+    }
+
+    // In interface ChatServerInterface
+
+    public void leaveRoom(UUID uuid, String room) {
+        Client client = (uuid != null) ? sessions.get(uuid) : null;
+        room = roomName(room);
+        if (client == null || room == null) {
+            return;
+        }
+        Membership roomMembers;
+        synchronized (membershipLock) {
+            if (!client.getRooms().remove(room)) {
+                return;
+            }
+            roomMembers = removeFromRoom(room, client);
+        }
+        addMessage(this, client.getName() + " left #" + room, Targets.inRoom(roomMembers, null));
+    }
+
+    // In interface ChatServerInterface
+
+    public String sayTo(UUID uuid, String room, String msg) throws IOException {
+        Client client = (uuid != null) ? sessions.get(uuid) : null;
+        room = roomName(room);
+        if (client != null && room != null && msg != null && client.getRooms().contains(room) && admit(client)
+                && submit(client, room, msg, ChatNotification.Message.NO_ACK)) {
+            return "✓";
+        }
+        return "✗";
+    }
+
+    /**
+     * Checks one message or request of a client against the client's rate
+     * limit. What is refused is counted and never reaches the pipeline
+     * or the message queue; a posted message is still acked.
+     *
+     * @param client The client.
+     * @return True if the client is within its rate.
+     */
+    private boolean admit(Client client) {
+        RateLimiter limiter = client.getRateLimiter();
+        if (limiter == null || limiter.tryAcquire()) {
+            return true;
+        }
+        metrics.clientRateLimited(1);
+        return false;
+    }
+
+    /**
+     * Sends a message of a client on its way: through the pipeline if
+     * there is one, straight to the message queue if not.
+     *
+     * @param client The sender.
+     * @param room   The room it is said in, or null for the public chat.
+     * @param msg    The message.
+     * @param ackId  The sender's own number for the message, or
+     *               ChatNotification.Message.NO_ACK.
+     * @return False if the message was not accepted, for instance because
+     * the server is draining.
+     */
+    private boolean submit(Client client, String room, String msg, long ackId) {
+        if (!accepting) {
+            return false;
+        }
+        if (pipeline != null) {
+            return pipeline.submit(new Posted(client, room, msg, ackId));
+        }
+        return queuePosted(client, room, msg, ackId);
+    }
+
+    /**
+     * Queues a message of a client for its receivers, as they are now.
+     *
+     * @return False if the message is for a room the sender is no longer
+     * in.
+     */
+    private boolean queuePosted(Client client, String room, String msg, long ackId) {
+        if (room == null) {
+            addMessage(client, msg, Targets.allExcept(members, client), ackId);
+            return true;
         }
-        addMessage(this, toPrint.toString(), uuid);
+        Membership roomMembers = rooms.get(room);
+        if (roomMembers == null || !client.getRooms().contains(room)) {
+            return false;
+        }
+        addMessage(client, "#" + room + " " + msg, Targets.inRoom(roomMembers, client), ackId);
+        return true;
+    }
+
+    // In interface ChatServerInterface
+
+    public void listRooms(UUID uuid) {
+        Client client = (uuid != null) ? sessions.get(uuid) : null;
+        if (client == null || !admit(client)) {
+            return;
+        }
+        StringBuilder toPrint = new StringBuilder("Rooms\n");
+        for (Map.Entry<String, Membership> room : new TreeMap<>(rooms).entrySet()) {
+            toPrint.append(client.getRooms().contains(room.getKey()) ? "* #" : "  #").append(room.getKey())
+                    .append(" (").append(room.getValue().size()).append(" members)\n");
+        }
+        addMessage(this, toPrint.toString(), Targets.only(client));
     }
 
     /**
-     * This method is where the delivery thread (in method run()) rests
-     * while the message queue is empty.
+     * Hands a client whose delivery turn has just been taken to the
+     * delivery pool, or wakes up its own delivery thread.
+     *
+     * @param client The client with pending events.
      */
-    protected synchronized void snooze() {
+    protected void schedule(Client client) {
+        if (options.threadPerClient) {
+            LockSupport.unpark(client.getDeliveryThread());
+            return;
+        }
         try {
-            wait();
-        } catch (InterruptedException | IllegalMonitorStateException iex) {
+            deliveryPool.execute(new DeliveryTask(client));
+        } catch (RejectedExecutionException rex) {
+            // The pool is shutting down; the event is dropped with it.
         }
     }
 
     /**
-     * This method is called when the service interface has added a new
-     * message to the message queue. If the delivery thread is waiting
-     * in snooze(), it will continue as soon as this method is exited.
-     * The thread that calls this method is the RMI service thread, the
-     * thread that channels remote requests into the service interface code.
-     * The call sequence is: say(String):addMessage(String):wakeUp().
+     * Hands a client whose delivery turn has just been taken by the
+     * distribution thread to the delivery pool, after the linger time
+     * unless a full batch is already waiting.
+     *
+     * @param client The client with pending events.
      */
-    protected synchronized void wakeUp() {
-        notify();
+    protected void scheduleLingering(Client client) {
+        if (options.threadPerClient) {
+            // The client's thread does its own lingering.
+            schedule(client);
+        } else if (options.lingerMillis > 0 && client.getPendingCount() < options.maxBatch) {
+            try {
+                client.setLinger(deliveryPool.schedule(new DeliveryTask(client),
+                        options.lingerMillis, TimeUnit.MILLISECONDS));
+            } catch (RejectedExecutionException rex) {
+                // The pool is shutting down; the event is dropped with it.
+            }
+        } else {
+            schedule(client);
+        }
     }
 
     /**
-     * This is where the distribution thread spends its time. It dequeues
-     * the message queue, builds a ChatNotification event and sends it to
-     * each client that has registered a remote event listener with us.
-     * When the message queue is empty, the thread calls snooze() and does
-     * nothing until it is awakened by the code that has added a new
-     * message to the message queue.
+     * Sends a lingering batch right away because it is full.
+     *
+     * @param client The client whose turn is lingering.
      */
-    public void run() {
+    protected void expedite(Client client) {
+        if (options.threadPerClient) {
+            LockSupport.unpark(client.getDeliveryThread());
+        } else if (client.cancelLinger()) {
+            schedule(client);
+        }
+    }
 
-        while (runDelivery) {
-            ChatNotification msg = getNextMessage();
-            if (msg != null) {
-                for (UUID uuid : msg.getTargets()) {
-                    try {
-                        clients.get(uuid).sendMessage(msg.getEvent());
-                    } catch (UnknownEventException | RemoteException e) {
-                        try {
-                            unregister(uuid);
-                        } catch (RemoteException e1) {
-                            e1.printStackTrace();
-                        }
-                    }
+    /**
+     * Drops a client whose outbox has been full for too long. The client
+     * is closed at once, so nothing more is queued for it, but it is
+     * unregistered by a delivery worker: unregistering posts a message,
+     * which the distribution thread must not wait for itself.
+     *
+     * @param client The lagging client.
+     */
+    protected void disconnectLagging(final Client client) {
+        if (client.isClosed()) {
+            return;
+        }
+        client.close();
+        LockSupport.unpark(client.getDeliveryThread());
+        metrics.laggingDisconnect();
+        System.out.println("Disconnecting lagging client " + client.getName());
+        try {
+            deliveryPool.execute(new Runnable() {
+                public void run() {
+                    leave(client);
                 }
-            } else {
-                snooze();
+            });
+        } catch (RejectedExecutionException rex) {
+            // The pool is shutting down, and the client with it.
+        }
+    }
+
+    /**
+     * Puts a message taken from the message queue in the outbox of each
+     * client of a shard that is to receive it. The delivery pool does the
+     * actual sending. The thread of shard 0 also adds the message to the
+     * history and the log and relays it to the peers, which must happen
+     * once and in order.
+     *
+     * @param msg   The message.
+     * @param shard The shard of the calling thread.
+     */
+    private void distribute(ChatNotification msg, int shard) {
+        Targets targets = msg.getTargets();
+        if (shard == 0) {
+            if (history != null && targets.isPublic()) {
+                history.append(msg.getFrame());
+            }
+            if (log != null && !log.append(msg.getFrame(), targets.isPublic())) {
+                metrics.logDropped();
+            }
+            Client sender = msg.getSender();
+            if (sender != null && targets.isPublic() && federation.hasPeers()) {
+                // Peers do not know our sender ids, so relayed messages
+                // carry the name in the text.
+                federation.publish(msg.getEvent().getSequenceNumber(),
+                        "[" + sender.getName() + "]: " + msg.getEvent().getMsg());
             }
-        } // while runDelivery
+        }
+        for (Client client : targets.candidates(shard)) {
+            if (targets.accepts(client)) {
+                enqueue(client, msg.getFrame());
+            }
+        }
+        if (msg.getAck() != null && msg.getAckTo().getShard() == shard) {
+            // The ack follows the message, so it is batched with
+            // whatever else the sender is about to receive.
+            enqueue(msg.getAckTo(), msg.getAck());
+        }
+    }
+
+    /**
+     * @param uuid The id of a client.
+     * @return The shard the client belongs to.
+     */
+    protected int shardOf(UUID uuid) {
+        return (uuid.hashCode() & Integer.MAX_VALUE) % shards;
+    }
+
+    // In interface ChatServerInterface
 
-        System.out.println("\nDelivery thread exiting.");
+    public UUID getServerId() {
+        return serverId;
+    }
+
+    // In interface ChatServerInterface
+
+    public void relay(UUID peer, RelayedMessage[] msgs) {
+        federation.receive(peer, msgs);
+    }
+
+    /**
+     * Distributes a message relayed by a peer server to all local clients.
+     * Called by the federation for each message it has not seen before.
+     * The text already carries the sender's name, so the message goes out
+     * without a sender id.
+     *
+     * @param message The message.
+     */
+    public void deliverRelayed(RelayedMessage message) {
+        addMessage(message, message.getText(), Targets.allExcept(members, null));
+    }
+
+    /**
+     * Puts a frame in the outbox of a client and sees to its delivery.
+     * Called by the distribution thread of the client's shard, and by the
+     * pipeline for the ack of a message it dropped, which need not keep
+     * its place among the others.
+     *
+     * @param client The receiver.
+     * @param frame  The frame to deliver.
+     */
+    private void enqueue(Client client, ChatNotification.Frame frame) {
+        if (client.enqueue(frame, options.outboxLimit, options.overflowPolicy, metrics)) {
+            scheduleLingering(client);
+        } else if (client.getPendingCount() >= options.maxBatch) {
+            // The batch is full; stop waiting for more.
+            expedite(client);
+        }
+        if (options.overflowPolicy == OverflowPolicy.DISCONNECT
+                && client.getFullNanos() > TimeUnit.SECONDS.toNanos(options.lagSeconds)) {
+            disconnectLagging(client);
+        }
     }
 
     /**
@@ -297,6 +1425,7 @@ public class ChatServer
      */
     public void readLoop() {
         boolean halted = false;
+        int drainSeconds = -1;
         BufferedReader d = new BufferedReader(new InputStreamReader(System.in));
         System.out.println("Server " + serverName + " started.");
         while (!halted) {
@@ -328,9 +1457,30 @@ public class ChatServer
                     arg.equalsIgnoreCase("halt") ||
                     arg.equalsIgnoreCase("exit")) {
                 halted = true;
+            } else if (arg.equalsIgnoreCase("drain") || arg.toLowerCase().startsWith("drain ")) {
+                String seconds = arg.substring("drain".length()).trim();
+                try {
+                    drainSeconds = seconds.isEmpty() ? options.drainSeconds : Integer.parseInt(seconds);
+                    halted = drainSeconds >= 0;
+                } catch (NumberFormatException nfe) {
+                }
+                if (!halted) {
+                    System.out.println("Usage: drain [seconds]");
+                }
+            } else if (arg.equalsIgnoreCase("stats")) {
+                System.out.println(metrics.report());
+            } else if (arg.equalsIgnoreCase("peers")) {
+                System.out.println(federation.report());
+            } else if (arg.equalsIgnoreCase("stages")) {
+                System.out.println(pipeline != null ? pipeline.report() : "No message stages.");
             } else if (arg.equalsIgnoreCase("help")) {
                 System.out.println("Available commands:");
                 System.out.println("quit      Shuts down the server.");
+                System.out.println("drain [s] Delivers what is queued, saves the sessions to the");
+                System.out.println("          snapshot file (-i) and shuts down the server.");
+                System.out.println("stats     Shows throughput and latency figures.");
+                System.out.println("peers     Shows the links to the peer servers.");
+                System.out.println("stages    Shows the message stages and their latency.");
                 System.out.println("help      This text.");
             } else {
                 System.out.println("\nUnknown server command : " + arg);
@@ -338,9 +1488,11 @@ public class ChatServer
         }
 
         System.out.println("\nShutting down, please wait...");
-        runDelivery = false;
-        wakeUp();
-        shutdown();
+        if (drainSeconds >= 0) {
+            drain(drainSeconds);
+        } else {
+            stop();
+        }
         System.out.println("Join manager terminated.");
     }
 
@@ -349,24 +1501,34 @@ public class ChatServer
      */
     protected static String[] usageText = new String[]{
             "Usage: [-n server-name]",
+            "       [-w delivery-workers]",
+            "       [-v] (one delivery thread per client, virtual if available)",
+            "       [-b max-batch]",
+            "       [-l linger-ms]",
+            "       [-t tcp-port]",
+            "       [-k tcp-selector-threads]",
+            "       [-m history-size]",
+            "       [-d log-directory]",
+            "       [-z log-segment-mb]",
+            "       [-f never|always|periodic] (when the log is forced to disk)",
+            "       [-c outbox-limit]",
+            "       [-o drop-oldest|drop-newest|coalesce|disconnect] (when an outbox is full)",
+            "       [-g lag-seconds] (before the disconnect policy drops a client)",
+            "       [-p host:tcp-port] (a peer server to relay public chat to; repeatable)",
+            "       [-r relay-hops]",
+            "       [-u dedup-cache-size]",
+            "       [-x shards] (distribution threads, one per core by default)",
+            "       [-e stage[:workers]] (a message stage, e.g. WordMask or Eliza; repeatable)",
+            "       [-a msgs-per-second[:burst]] (the rate limit of each client)",
+            "       [-j msgs-per-second[:burst]] (the rate limit of the server's own messages)",
+            "       [-i snapshot-file] (sessions saved by drain, restored at start)",
+            "       [-y resume-seconds] (before restored clients that did not come back are dropped)",
+            "       [-q queue-size]",
+            "       [-s blocking|spin|busy]",
             "       [-h|--help]"
     };
 
 
-    private UUID[] allClients() {
-        return allClientsExcept();
-    }
-
-    private UUID[] allClientsExcept(UUID... uuids) {
-        Set<UUID> keys = new HashSet<>(clients.keySet());
-        if (uuids != null) {
-            for (UUID eachToEx : uuids) {
-                keys.remove(eachToEx);
-            }
-        }
-        return keys.toArray(new UUID[keys.size()]);
-    }
-
     /**
      * This method implements the commandline help command.
      */
@@ -376,6 +1538,27 @@ public class ChatServer
         }
     }
 
+    /**
+     * Parses a number from the commandline, or prints the usage text and
+     * exits.
+     *
+     * @param av  The commandline argument.
+     * @param min The smallest acceptable value.
+     * @return The parsed number.
+     */
+    protected static int parseNumber(String av, int min) {
+        try {
+            int n = Integer.parseInt(av);
+            if (min <= n) {
+                return n;
+            }
+        } catch (NumberFormatException nfe) {
+        }
+        usage();
+        System.exit(1);
+        return -1;
+    }
+
     // The main program.
 
     public static void main(String[] argv)
@@ -385,12 +1568,61 @@ public class ChatServer
             java.net.UnknownHostException {
 
         String serverName = null;
+        ChatServerOptions options = new ChatServerOptions();
         int state = 0;
 
         for (String av : argv) {
             if (state == 0) {
                 if (av.equalsIgnoreCase("-n")) {
                     state = 1;
+                } else if (av.equalsIgnoreCase("-w")) {
+                    state = 2;
+                } else if (av.equalsIgnoreCase("-v")) {
+                    options.threadPerClient = true;
+                } else if (av.equalsIgnoreCase("-b")) {
+                    state = 5;
+                } else if (av.equalsIgnoreCase("-l")) {
+                    state = 6;
+                } else if (av.equalsIgnoreCase("-t")) {
+                    state = 7;
+                } else if (av.equalsIgnoreCase("-k")) {
+                    state = 8;
+                } else if (av.equalsIgnoreCase("-m")) {
+                    state = 9;
+                } else if (av.equalsIgnoreCase("-d")) {
+                    state = 10;
+                } else if (av.equalsIgnoreCase("-z")) {
+                    state = 11;
+                } else if (av.equalsIgnoreCase("-f")) {
+                    state = 12;
+                } else if (av.equalsIgnoreCase("-c")) {
+                    state = 13;
+                } else if (av.equalsIgnoreCase("-o")) {
+                    state = 14;
+                } else if (av.equalsIgnoreCase("-g")) {
+                    state = 15;
+                } else if (av.equalsIgnoreCase("-p")) {
+                    state = 16;
+                } else if (av.equalsIgnoreCase("-r")) {
+                    state = 17;
+                } else if (av.equalsIgnoreCase("-u")) {
+                    state = 18;
+                } else if (av.equalsIgnoreCase("-x")) {
+                    state = 19;
+                } else if (av.equalsIgnoreCase("-e")) {
+                    state = 20;
+                } else if (av.equalsIgnoreCase("-a")) {
+                    state = 21;
+                } else if (av.equalsIgnoreCase("-j")) {
+                    state = 22;
+                } else if (av.equalsIgnoreCase("-i")) {
+                    state = 23;
+                } else if (av.equalsIgnoreCase("-y")) {
+                    state = 24;
+                } else if (av.equalsIgnoreCase("-q")) {
+                    state = 3;
+                } else if (av.equalsIgnoreCase("-s")) {
+                    state = 4;
                 } else if (av.equalsIgnoreCase("-h") ||
                         av.equalsIgnoreCase("--help")) {
                     usage();
@@ -402,11 +1634,113 @@ public class ChatServer
             } else if (state == 1) {
                 serverName = av;
                 state = 0;
+            } else if (state == 2) {
+                options.deliveryWorkers = parseNumber(av, 1);
+                state = 0;
+            } else if (state == 3) {
+                options.queueSize = parseNumber(av, 1);
+                state = 0;
+            } else if (state == 4) {
+                options.waitStrategy = ChatServerOptions.waitStrategy(av);
+                if (options.waitStrategy == null) {
+                    usage();
+                    System.exit(1);
+                }
+                state = 0;
+            } else if (state == 5) {
+                options.maxBatch = parseNumber(av, 1);
+                state = 0;
+            } else if (state == 6) {
+                options.lingerMillis = parseNumber(av, 0);
+                state = 0;
+            } else if (state == 7) {
+                options.tcpPort = parseNumber(av, 1);
+                state = 0;
+            } else if (state == 8) {
+                options.tcpSelectors = parseNumber(av, 1);
+                state = 0;
+            } else if (state == 9) {
+                options.historySize = parseNumber(av, 0);
+                state = 0;
+            } else if (state == 10) {
+                options.logDirectory = av;
+                state = 0;
+            } else if (state == 11) {
+                options.logSegmentSize = Math.min(parseNumber(av, 1), 1024) << 20;
+                state = 0;
+            } else if (state == 12) {
+                options.fsyncPolicy = FsyncPolicy.forName(av);
+                if (options.fsyncPolicy == null) {
+                    usage();
+                    System.exit(1);
+                }
+                state = 0;
+            } else if (state == 13) {
+                options.outboxLimit = parseNumber(av, 2);
+                state = 0;
+            } else if (state == 14) {
+                options.overflowPolicy = OverflowPolicy.forName(av);
+                if (options.overflowPolicy == null) {
+                    usage();
+                    System.exit(1);
+                }
+                state = 0;
+            } else if (state == 15) {
+                options.lagSeconds = parseNumber(av, 0);
+                state = 0;
+            } else if (state == 16) {
+                int colon = av.lastIndexOf(':');
+                if (colon <= 0) {
+                    usage();
+                    System.exit(1);
+                }
+                parseNumber(av.substring(colon + 1), 1);
+                options.peers.add(av);
+                state = 0;
+            } else if (state == 17) {
+                options.relayHops = parseNumber(av, 1);
+                state = 0;
+            } else if (state == 18) {
+                options.dedupCacheSize = parseNumber(av, 1);
+                state = 0;
+            } else if (state == 19) {
+                options.shards = parseNumber(av, 1);
+                state = 0;
+            } else if (state == 20) {
+                options.stages.add(av);
+                state = 0;
+            } else if (state == 21 || state == 22) {
+                // The burst is one second's worth unless given.
+                int colon = av.indexOf(':');
+                int rate = parseNumber((colon < 0) ? av : av.substring(0, colon), 1);
+                int burst = (colon < 0) ? rate : parseNumber(av.substring(colon + 1), 1);
+                if (state == 21) {
+                    options.clientRate = rate;
+                    options.clientBurst = burst;
+                } else {
+                    options.serverRate = rate;
+                    options.serverBurst = burst;
+                }
+                state = 0;
+            } else if (state == 23) {
+                options.snapshotFile = av;
+                state = 0;
+            } else if (state == 24) {
+                options.resumeSeconds = parseNumber(av, 0);
+                state = 0;
             }
         }
 
         System.setSecurityManager(new RMISecurityManager());
-        ChatServer cs = new ChatServer(serverName);
+        ChatServer cs = null;
+        try {
+            cs = new ChatServer(serverName, options);
+        } catch (IllegalArgumentException iae) {
+            // A peer or stage that cannot be used. The server object is
+            // already exported, so leave explicitly.
+            System.out.println(iae.getMessage());
+            System.exit(1);
+        }
         cs.readLoop();
         System.exit(0);
     }
@@ -28,6 +28,22 @@ public interface ChatServerInterface
     public String say(UUID uuid, String msg)
             throws IOException;
 
+    /**
+     * Used by ChatClient instances to send text messages without waiting
+     * for each one. The client numbers its messages itself; the server
+     * acknowledges each one it distributes with an ACK message on the
+     * notification channel, which carries the client's number and the
+     * sequence number the server gave the message. The client may post
+     * again before the acks of an earlier post have arrived.
+     *
+     * @param uuid    The id of the registered client.
+     * @param firstId The client's number for the first message; the
+     *                others follow on from it.
+     * @param msgs    The messages, in order.
+     */
+    public void post(UUID uuid, long firstId, String[] msgs)
+            throws RemoteException;
+
     /**
      * Returns the server's user-friendly name.
      *
@@ -59,4 +75,70 @@ public interface ChatServerInterface
     public void setName(UUID uuid, String name) throws RemoteException;
 
     public void listClients(UUID uuid) throws RemoteException;
+
+    /**
+     * Used by ChatClient instances to read recent public messages, for
+     * instance after joining late.
+     *
+     * @param uuid The id of the registered client asking.
+     * @param from The first sequence number wanted, or a negative number
+     *             for the newest messages.
+     * @param max  The largest number of messages wanted.
+     * @return The page of history, which is empty if the client is not
+     * registered.
+     */
+    public HistoryPage getHistory(UUID uuid, long from, int max) throws RemoteException;
+
+    /**
+     * Used by ChatClient instances to enter a named room. A room exists
+     * while it has members.
+     *
+     * @param uuid The id of the registered client.
+     * @param room The name of the room.
+     */
+    public void joinRoom(UUID uuid, String room) throws RemoteException;
+
+    /**
+     * Used by ChatClient instances to leave a room they have joined.
+     *
+     * @param uuid The id of the registered client.
+     * @param room The name of the room.
+     */
+    public void leaveRoom(UUID uuid, String room) throws RemoteException;
+
+    /**
+     * Used by ChatClient instances to send a text message to the other
+     * members of a room. Only members may send to a room.
+     *
+     * @param uuid The id of the registered client.
+     * @param room The name of the room.
+     * @param msg  The message.
+     */
+    public String sayTo(UUID uuid, String room, String msg)
+            throws IOException;
+
+    /**
+     * Asks the server to send the client a list of the rooms and their
+     * sizes.
+     *
+     * @param uuid The id of the registered client.
+     */
+    public void listRooms(UUID uuid) throws RemoteException;
+
+    /**
+     * Returns the id that identifies this server among its peers.
+     *
+     * @return The server's id.
+     */
+    public UUID getServerId() throws RemoteException;
+
+    /**
+     * Used by peer servers to pass on public messages posted on them or
+     * relayed to them. The server delivers the ones it has not seen
+     * before to its clients and relays them on to its own peers.
+     *
+     * @param peer The id of the server that sends them.
+     * @param msgs The messages.
+     */
+    public void relay(UUID peer, RelayedMessage[] msgs) throws RemoteException;
 }
@@ -0,0 +1,204 @@
+package dsv.pis.chat.server;
+
+import dsv.pis.chat.server.log.FsyncPolicy;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tunable settings for a ChatServer instance. The defaults suit a single
+ * classroom server; the main program fills them in from the commandline.
+ */
+public class ChatServerOptions {
+    /**
+     * Whether to register with Jini lookup servers. Benchmarks and load
+     * tests that hand the server object over directly turn this off.
+     */
+    public boolean joinLookup = true;
+
+    /**
+     * Whether each client gets a delivery thread of its own (a virtual
+     * thread where the runtime has them) instead of sharing the pool of
+     * delivery workers.
+     */
+    public boolean threadPerClient = false;
+
+    /**
+     * The number of delivery worker threads.
+     */
+    public int deliveryWorkers = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+
+    /**
+     * The largest number of messages sent to one client in a single
+     * remote call.
+     */
+    public int maxBatch = 64;
+
+    /**
+     * How long, in milliseconds, a client's first pending message may wait
+     * for more to join its batch. Zero sends at once.
+     */
+    public int lingerMillis = 0;
+
+    /**
+     * The port of the TCP transport, or 0 to offer only Jini/RMI.
+     */
+    public int tcpPort = 0;
+
+    /**
+     * The number of selector threads of the TCP transport.
+     */
+    public int tcpSelectors = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+
+    /**
+     * The number of threads of the TCP transport that carry out the
+     * requests the selector threads read.
+     */
+    public int tcpWorkers = Math.max(4, Runtime.getRuntime().availableProcessors());
+
+    /**
+     * The number of sequence numbers the public message history covers,
+     * or 0 to keep no history.
+     */
+    public int historySize = 4096;
+
+    /**
+     * The most messages waiting for one client, gap notices included.
+     * Beyond it the overflow policy applies, which keeps a few slow
+     * clients from filling the heap. At least 2, for a notice and the
+     * newest message.
+     */
+    public int outboxLimit = 4096;
+
+    /**
+     * What happens to messages for a client whose outbox is full.
+     */
+    public OverflowPolicy overflowPolicy = OverflowPolicy.DROP_OLDEST;
+
+    /**
+     * How long, in seconds, an outbox may stay full before
+     * OverflowPolicy.DISCONNECT drops the client.
+     */
+    public int lagSeconds = 30;
+
+    /**
+     * The messages per second each client may send, or 0 for no limit.
+     * What a client sends beyond it is refused.
+     */
+    public int clientRate = 0;
+
+    /**
+     * The most messages a client may send at once when it has been quiet,
+     * on top of its rate.
+     */
+    public int clientBurst = 20;
+
+    /**
+     * The messages per second the server itself may send, such as join
+     * and leave notices and the replies to list commands, or 0 for no
+     * limit. Those beyond it are not sent.
+     */
+    public int serverRate = 0;
+
+    /**
+     * The most messages the server may send at once, on top of its rate.
+     */
+    public int serverBurst = 100;
+
+    /**
+     * The peer servers to relay public messages to, as host:port of their
+     * TCP transport.
+     */
+    public List<String> peers = new ArrayList<>();
+
+    /**
+     * The message stages that the messages of clients go through before
+     * they are distributed, in order, as class[:workers]. None by default.
+     */
+    public List<String> stages = new ArrayList<>();
+
+    /**
+     * The most relays a message goes through on its way across the
+     * federation.
+     */
+    public int relayHops = 8;
+
+    /**
+     * The number of relayed message ids remembered to drop duplicates.
+     */
+    public int dedupCacheSize = 65536;
+
+    /**
+     * The directory of the persistent message log, or null to keep no
+     * log.
+     */
+    public String logDirectory = null;
+
+    /**
+     * The size of a message log segment file in bytes.
+     */
+    public int logSegmentSize = 64 << 20;
+
+    /**
+     * When the message log forces its writes to disk.
+     */
+    public FsyncPolicy fsyncPolicy = FsyncPolicy.PERIODIC;
+
+    /**
+     * The sync interval, in milliseconds, of FsyncPolicy.PERIODIC.
+     */
+    public int fsyncMillis = 1000;
+
+    /**
+     * The file the drain command leaves the sessions in, and the server
+     * restores them from when it starts, or null to keep no snapshot.
+     */
+    public String snapshotFile = null;
+
+    /**
+     * How long, in seconds, the drain command waits at most for the
+     * messages already accepted to be delivered.
+     */
+    public int drainSeconds = 10;
+
+    /**
+     * How long, in seconds, a session restored from a snapshot waits for
+     * its client to register again. A client that has no listener by
+     * then is dropped.
+     */
+    public int resumeSeconds = 120;
+
+    /**
+     * The number of slots in the incoming message ring. Producers wait
+     * when it is full.
+     */
+    public int queueSize = 1 << 16;
+
+    /**
+     * The number of shards the clients are divided into, each with its
+     * own distribution thread. One per core by default.
+     */
+    public int shards = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * How the distribution threads wait for incoming messages.
+     */
+    public WaitStrategy waitStrategy = new WaitStrategy.Blocking();
+
+    /**
+     * Looks up a wait strategy by the name used on the commandline.
+     *
+     * @param name One of blocking, spin or busy.
+     * @return The wait strategy, or null if the name is unknown.
+     */
+    public static WaitStrategy waitStrategy(String name) {
+        if ("blocking".equalsIgnoreCase(name)) {
+            return new WaitStrategy.Blocking();
+        } else if ("spin".equalsIgnoreCase(name)) {
+            return new WaitStrategy.SpinThenPark();
+        } else if ("busy".equalsIgnoreCase(name)) {
+            return new WaitStrategy.BusySpin();
+        }
+        return null;
+    }
+}
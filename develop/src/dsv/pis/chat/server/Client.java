@@ -1,33 +1,239 @@
 package dsv.pis.chat.server;
 
+import dsv.pis.chat.server.metrics.ServerMetrics;
 import net.jini.core.event.RemoteEvent;
 import net.jini.core.event.RemoteEventListener;
 import net.jini.core.event.UnknownEventException;
 
 import java.io.Serializable;
 import java.rmi.RemoteException;
+import java.util.ArrayDeque;
+import java.util.Collections;
 import java.util.Date;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * @author andrew, Innometrics
  */
 public class Client implements Serializable {
-    private final RemoteEventListener listener;
+    private final int id;
+    private final UUID uuid;
+
+    /**
+     * Where the client's events go, or null while the client is detached:
+     * restored from a snapshot without a listener that survived, and not
+     * yet registered again. A detached client's outbox fills up as usual,
+     * but nobody takes its delivery turn.
+     */
+    private volatile RemoteEventListener listener;
+
+    /**
+     * The shard of the server whose thread sorts messages into this
+     * client's outbox.
+     */
+    private final int shard;
     private final Statistics statistics;
     private String name;
 
-    public Client(UUID uuid, RemoteEventListener rel) {
+    /**
+     * Frames waiting to be sent to this client, in the order the delivery
+     * thread handed them over (which is the server's msgCount order). It
+     * is bounded, see enqueue(). The distribution thread adds and the
+     * delivery turn holder takes under its monitor; both hold it for a
+     * few steps only, never during a remote call.
+     */
+    private final transient ArrayDeque<ChatNotification.Frame> outbox = new ArrayDeque<>();
+
+    /**
+     * The number of frames in the outbox, readable without the monitor.
+     */
+    private final transient AtomicInteger pending = new AtomicInteger();
+
+    /**
+     * The gap notice at the head of the outbox, which later drops of the
+     * oldest frames extend instead of adding another. Null if there is
+     * none. Guarded by the outbox monitor, like the gap fields below.
+     */
+    private transient ChatNotification.Frame notice = null;
+
+    /**
+     * The sequence numbers and number of messages the client has missed
+     * and has not yet been told about, or that the notice at the head of
+     * the outbox tells about.
+     */
+    private transient long gapFirst;
+    private transient long gapLast;
+    private transient int gapCount = 0;
+
+    /**
+     * The frames taken from the outbox by a delivery that has not yet
+     * returned, or null. Guarded by the outbox monitor.
+     */
+    private transient ChatNotification.Frame[] inFlight = null;
+
+    /**
+     * Since when, by System.nanoTime(), the outbox has been full, or 0.
+     */
+    private transient volatile long fullSince = 0;
+
+    /**
+     * The delayed delivery of a turn that waits for its batch to fill up,
+     * or null.
+     */
+    private transient volatile Future<?> linger = null;
+
+    /**
+     * The thread that delivers to this client alone, in the
+     * thread-per-client delivery mode.
+     */
+    private transient volatile Thread deliveryThread = null;
+
+    /**
+     * True while a delivery worker owns this client. Only the owner may
+     * call the listener, which keeps the per-client order intact.
+     */
+    private final transient AtomicBoolean scheduled = new AtomicBoolean();
+
+    /**
+     * Set once the client has been unregistered; pending events are dropped.
+     */
+    private transient volatile boolean closed = false;
+
+    /**
+     * The handle of the client's session in the server's SessionTable, or
+     * SessionTable.NO_HANDLE once it has left.
+     */
+    private transient volatile int handle = SessionTable.NO_HANDLE;
+
+    /**
+     * The rate limit of what the client sends, or null if there is none.
+     */
+    private transient volatile RateLimiter rateLimiter = null;
+
+    /**
+     * Set while a session restored from a snapshot waits for its client to
+     * register again, which then resumes the session instead of starting
+     * a new one.
+     */
+    private transient volatile boolean restored = false;
+
+    /**
+     * The rooms this client is in, the reverse of the server's room index.
+     * It is changed under the server's membership lock.
+     */
+    private final transient Set<String> rooms =
+            Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    public Client(int id, UUID uuid, RemoteEventListener rel) {
+        this(id, uuid, rel, 0);
+    }
+
+    /**
+     * @param id    The sender id of the client.
+     * @param uuid  The id the client registered with.
+     * @param rel   The client's listener, or null for a detached client.
+     * @param shard The shard the client belongs to.
+     */
+    public Client(int id, UUID uuid, RemoteEventListener rel, int shard) {
+        this.id = id;
+        this.uuid = uuid;
         this.listener = rel;
+        this.shard = shard;
         this.statistics = new Statistics();
         this.name = uuid.toString();
         this.statistics.setJoinDateNow();
     }
 
+    /**
+     * @return The small id the server gave this client at registration.
+     * It identifies the sender in outgoing messages.
+     */
+    public int getId() {
+        return id;
+    }
+
+    public int getShard() {
+        return shard;
+    }
+
+    /**
+     * @return The handle of the client's session, or
+     * SessionTable.NO_HANDLE if it is not registered.
+     */
+    public int getHandle() {
+        return handle;
+    }
+
+    void setHandle(int handle) {
+        this.handle = handle;
+    }
+
+    /**
+     * @return The rate limit of what the client sends, or null if there
+     * is none.
+     */
+    public RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    public void setRateLimiter(RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    /**
+     * @return True while the session, restored from a snapshot, waits for
+     * its client to come back.
+     */
+    public boolean isRestored() {
+        return restored;
+    }
+
+    void setRestored(boolean restored) {
+        this.restored = restored;
+    }
+
+    /**
+     * @return The client's listener, or null if the client is detached.
+     */
+    public RemoteEventListener getListener() {
+        return listener;
+    }
+
+    /**
+     * Gives the client a new listener, for instance when it comes back
+     * after the server restarted. What waited in the outbox meanwhile is
+     * delivered to it.
+     *
+     * @param rel The listener.
+     * @return True if the caller has just acquired the delivery turn for
+     * this client and must hand it to a delivery worker.
+     */
+    public boolean attach(RemoteEventListener rel) {
+        listener = rel;
+        return !closed && pending.get() > 0 && scheduled.compareAndSet(false, true);
+    }
+
+    public UUID getUUID() {
+        return uuid;
+    }
+
     public String getName() {
         return name;
     }
 
+    /**
+     * @return The names of the rooms this client is in.
+     */
+    public Set<String> getRooms() {
+        return rooms;
+    }
+
     public void setName(String name) {
         this.name = name;
     }
@@ -37,13 +243,309 @@ public class Client implements Serializable {
         statistics.addRecMsgCount();
     }
 
+    /**
+     * Calls the listener and records how it went.
+     */
+    private void notify(RemoteEvent event, ChatNotification.Frame[] frames, ServerMetrics metrics)
+            throws UnknownEventException, RemoteException {
+        long started = System.nanoTime();
+        try {
+            listener.notify(event);
+        } catch (UnknownEventException | RemoteException | RuntimeException ex) {
+            metrics.notifyFailed();
+            throw ex;
+        }
+        long ended = System.nanoTime();
+        metrics.notified(frames.length, started, ended);
+        for (ChatNotification.Frame frame : frames) {
+            // Frames restored from a snapshot have no posting time.
+            if (frame.getPostedNanos() != 0) {
+                metrics.delivered(ended - frame.getPostedNanos());
+            }
+        }
+        statistics.addRecMsgCount(frames.length);
+        statistics.addDeliveryTime(ended - started);
+    }
+
+    /**
+     * Appends a frame to the outbox. If the outbox already holds limit
+     * frames, the policy decides what is discarded; the client then gets
+     * a gap notice in place of what it missed. The notice counts toward
+     * the limit, so the outbox never holds more than limit frames (two
+     * at least, the notice and the newest frame). Called by the
+     * distribution thread only.
+     *
+     * @param frame   The frame to deliver.
+     * @param limit   The most frames the outbox may hold, notices
+     *                included.
+     * @param policy  What to do when the outbox is full.
+     * @param metrics Where the policy actions are counted.
+     * @return True if the caller has just acquired the delivery turn for
+     * this client and must hand it to a delivery worker. Never for a
+     * detached client.
+     */
+    public boolean enqueue(ChatNotification.Frame frame, int limit, OverflowPolicy policy, ServerMetrics metrics) {
+        if (closed) {
+            return false;
+        }
+        synchronized (outbox) {
+            // A notice still owed after dropping the newest takes a place.
+            int needed = (gapCount > 0 && notice == null) ? 2 : 1;
+            if (outbox.size() + needed <= limit) {
+                fullSince = 0;
+                if (gapCount > 0 && notice == null) {
+                    // Room again after dropping the newest; the notice
+                    // goes where the missed messages would have been.
+                    outbox.addLast(gapNotice());
+                    gapCount = 0;
+                }
+                outbox.addLast(frame);
+            } else if (policy == OverflowPolicy.DROP_OLDEST) {
+                // Room for the notice at the head and the new frame.
+                int dropped = dropHead(1);
+                while (outbox.size() > limit - 2 && !outbox.isEmpty()) {
+                    dropped += dropHead(1);
+                }
+                metrics.droppedOldest(dropped);
+                outbox.addFirst(notice = gapNotice());
+                outbox.addLast(frame);
+            } else if (policy == OverflowPolicy.COALESCE) {
+                metrics.coalesced(dropHead(outbox.size()));
+                outbox.addFirst(notice = gapNotice());
+                outbox.addLast(frame);
+            } else {
+                if (fullSince == 0) {
+                    fullSince = System.nanoTime();
+                }
+                addToGap(frame.getSequenceNumber());
+                metrics.droppedNewest();
+            }
+            pending.set(outbox.size());
+        }
+        return listener != null && scheduled.compareAndSet(false, true);
+    }
+
+    /**
+     * Removes frames from the head of the outbox and adds them to the gap.
+     * A gap notice at the head is removed as well; the gap still holds
+     * its range, so the new notice covers both. The caller holds the
+     * outbox monitor.
+     *
+     * @param frames The number of messages to remove, besides the notice.
+     * @return The number of messages removed.
+     */
+    private int dropHead(int frames) {
+        if (notice != null && outbox.peekFirst() == notice) {
+            outbox.pollFirst();
+            notice = null;
+        }
+        int dropped = 0;
+        while (dropped < frames && !outbox.isEmpty()) {
+            addToGap(outbox.pollFirst().getSequenceNumber());
+            dropped++;
+        }
+        return dropped;
+    }
+
+    /**
+     * Counts a dropped frame in the gap. The ack of a message the server
+     * dropped has no sequence number and is no missed message.
+     */
+    private void addToGap(long seq) {
+        if (seq == ChatNotification.Message.NO_SEQUENCE) {
+            return;
+        }
+        if (gapCount == 0) {
+            gapFirst = seq;
+            gapLast = seq;
+        }
+        gapFirst = Math.min(gapFirst, seq);
+        gapLast = Math.max(gapLast, seq);
+        gapCount++;
+    }
+
+    /**
+     * Makes a notice of the current gap. Its sequence number is that of
+     * the last missed message, which keeps the client's sequence in order.
+     */
+    private ChatNotification.Frame gapNotice() {
+        return new ChatNotification.Frame(new ChatNotification.Message(
+                ChatNotification.Message.NO_SENDER_ID, gapLast,
+                "[You fell behind and missed " + gapCount + " messages, numbers "
+                        + gapFirst + " to " + gapLast + "]"));
+    }
+
+    /**
+     * @return How long the outbox has been full, in nanoseconds, or 0 if
+     * it is not full.
+     */
+    public long getFullNanos() {
+        long since = fullSince;
+        return since == 0 ? 0 : System.nanoTime() - since;
+    }
+
+    /**
+     * @return The number of frames waiting in the outbox.
+     */
+    public int getPendingCount() {
+        return pending.get();
+    }
+
+    /**
+     * Takes every frame still waiting in the outbox, for a snapshot of the
+     * server. A gap not yet told about is added as a notice at the end,
+     * and a batch whose delivery has not returned goes first, since it may
+     * never arrive; the client may then get it twice.
+     *
+     * @return The frames, oldest first. The outbox is left empty.
+     */
+    public ChatNotification.Frame[] takePending() {
+        synchronized (outbox) {
+            if (gapCount > 0 && notice == null) {
+                outbox.addLast(gapNotice());
+            }
+            if (inFlight != null) {
+                for (int i = inFlight.length - 1; i >= 0; i--) {
+                    outbox.addFirst(inFlight[i]);
+                }
+                inFlight = null;
+            }
+            ChatNotification.Frame[] frames = outbox.toArray(new ChatNotification.Frame[outbox.size()]);
+            outbox.clear();
+            notice = null;
+            gapCount = 0;
+            pending.set(0);
+            return frames;
+        }
+    }
+
+    /**
+     * Sends up to maxBatch pending frames to the listener in one remote
+     * call. A single frame is sent as it is, more are wrapped in a
+     * ChatNotification.Batch. Must only be called by the worker holding
+     * the delivery turn.
+     *
+     * @param maxBatch The largest number of frames to send in this call.
+     * @param metrics  Where the delivery is recorded.
+     * @return The number of frames sent.
+     */
+    public int deliverPending(int maxBatch, ServerMetrics metrics) throws UnknownEventException, RemoteException {
+        linger = null;
+        ChatNotification.Frame[] frames;
+        synchronized (outbox) {
+            int n = Math.min(outbox.size(), maxBatch);
+            if (closed || n <= 0) {
+                return 0;
+            }
+            frames = new ChatNotification.Frame[n];
+            for (int i = 0; i < n; i++) {
+                frames[i] = outbox.pollFirst();
+                if (frames[i] == notice) {
+                    // Sent; later drops start a new gap.
+                    notice = null;
+                    gapCount = 0;
+                }
+            }
+            if (outbox.isEmpty() && gapCount > 0 && notice == null) {
+                // Caught up after dropping the newest; tell the client in
+                // the next turn rather than wait for another message.
+                outbox.addLast(gapNotice());
+                gapCount = 0;
+            }
+            pending.set(outbox.size());
+            inFlight = frames;
+        }
+        try {
+            notify(frames.length == 1 ? frames[0] : new ChatNotification.Batch(frames), frames, metrics);
+        } finally {
+            synchronized (outbox) {
+                if (inFlight == frames) {
+                    inFlight = null;
+                }
+            }
+        }
+        return frames.length;
+    }
+
+    /**
+     * Remembers the delayed delivery that holds this client's turn.
+     *
+     * @param linger The scheduled delivery.
+     */
+    public void setLinger(Future<?> linger) {
+        this.linger = linger;
+    }
+
+    /**
+     * Brings a delayed delivery forward, for instance because the batch it
+     * was waiting for is already full.
+     *
+     * @return True if the delayed delivery was cancelled before it started
+     * and the caller must now schedule the turn itself.
+     */
+    public boolean cancelLinger() {
+        Future<?> f = linger;
+        return f != null && f.cancel(false);
+    }
+
+    /**
+     * @return True if someone holds the delivery turn for this client.
+     */
+    public boolean hasTurn() {
+        return scheduled.get();
+    }
+
+    public Thread getDeliveryThread() {
+        return deliveryThread;
+    }
+
+    public void setDeliveryThread(Thread deliveryThread) {
+        this.deliveryThread = deliveryThread;
+    }
+
+    /**
+     * Gives up the delivery turn. If events arrived while the turn was
+     * held, the turn is taken again so they are not left behind.
+     *
+     * @return True if the caller still holds the turn and must reschedule.
+     */
+    public boolean releaseTurn() {
+        scheduled.set(false);
+        return !closed && listener != null && pending.get() > 0 && scheduled.compareAndSet(false, true);
+    }
+
+    /**
+     * Marks the client as gone and discards anything still queued for it.
+     */
+    public void close() {
+        closed = true;
+        synchronized (outbox) {
+            outbox.clear();
+            notice = null;
+            gapCount = 0;
+            pending.set(0);
+        }
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
     public Statistics getStatistics() {
         return statistics;
     }
 
+    /**
+     * The counters of one client. They are written by RMI threads and by
+     * whichever delivery thread holds the client's turn, so they are
+     * atomic rather than locked.
+     */
     public class Statistics implements Serializable {
-        private int nrReceivedMessages = 0;
-        private int nrSentMessages = 0;
+        private final AtomicLong nrReceivedMessages = new AtomicLong();
+        private final AtomicLong nrSentMessages = new AtomicLong();
+        private final AtomicLong nrNotifyCalls = new AtomicLong();
+        private final AtomicLong deliveryNanos = new AtomicLong();
+        private final AtomicLong maxDeliveryNanos = new AtomicLong();
         private Date joinDate;
 
         public Date getJoinDate() {
@@ -58,24 +560,66 @@ public class Client implements Serializable {
             this.joinDate = joinDate;
         }
 
+        /**
+         * Sets the counters of a session restored from a snapshot.
+         *
+         * @param sent     The number of messages the client has sent.
+         * @param received The number of messages the client has received.
+         */
+        void restore(long sent, long received) {
+            nrSentMessages.set(sent);
+            nrReceivedMessages.set(received);
+        }
+
         public void addSntMsgCount() {
-            nrSentMessages++;
+            nrSentMessages.incrementAndGet();
         }
 
-        public int getNrSentMessages() {
-            return nrSentMessages;
+        public long getNrSentMessages() {
+            return nrSentMessages.get();
         }
 
         public void addRecMsgCount() {
-            nrReceivedMessages++;
+            nrReceivedMessages.incrementAndGet();
+        }
+
+        public void addRecMsgCount(int n) {
+            nrReceivedMessages.addAndGet(n);
+        }
+
+        public long getNrReceivedMessages() {
+            return nrReceivedMessages.get();
+        }
+
+        /**
+         * Records the time taken by one notify() call.
+         *
+         * @param nanos The time in nanoseconds.
+         */
+        public void addDeliveryTime(long nanos) {
+            nrNotifyCalls.incrementAndGet();
+            deliveryNanos.addAndGet(nanos);
+            long max = maxDeliveryNanos.get();
+            while (nanos > max && !maxDeliveryNanos.compareAndSet(max, nanos)) {
+                max = maxDeliveryNanos.get();
+            }
+        }
+
+        /**
+         * @return The mean time of a notify() call in microseconds.
+         */
+        public long getMeanDeliveryMicros() {
+            long calls = nrNotifyCalls.get();
+            return calls > 0 ? deliveryNanos.get() / calls / 1000 : 0;
         }
 
-        public int getNrReceivedMessages() {
-            return nrReceivedMessages;
+        public long getMaxDeliveryMicros() {
+            return maxDeliveryNanos.get() / 1000;
         }
 
         public String toString() {
-            return "Joined:" + getJoinDate().toString() + " received:" + getNrReceivedMessages() + " messages" + " sent:" + getNrSentMessages() + " messages";
+            return "Joined:" + getJoinDate().toString() + " received:" + getNrReceivedMessages() + " messages" + " sent:" + getNrSentMessages() + " messages"
+                    + " notify():" + getMeanDeliveryMicros() + "us mean, " + getMaxDeliveryMicros() + "us max";
         }
     }
 }
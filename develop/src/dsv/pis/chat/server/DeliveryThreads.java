@@ -0,0 +1,79 @@
+package dsv.pis.chat.server;
+
+import java.lang.reflect.Method;
+
+/**
+ * Creates the threads of the thread-per-client delivery mode. On a Java
+ * runtime with virtual threads (Java 21 and later) these are virtual
+ * threads, which cost a few hundred bytes while parked, so tens of
+ * thousands of idle or slow clients are no problem. On older runtimes they
+ * fall back to daemon platform threads with a small stack. The virtual
+ * thread API is reached by reflection because the code is compiled for
+ * Java 7.
+ */
+public final class DeliveryThreads {
+    /**
+     * The stack size of the fallback platform threads.
+     */
+    private static final long PLATFORM_STACK_SIZE = 256 << 10;
+
+    private static final Method OF_VIRTUAL;
+    private static final Method NAME;
+    private static final Method UNSTARTED;
+
+    static {
+        Method ofVirtual = null;
+        Method name = null;
+        Method unstarted = null;
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            name = builderClass.getMethod("name", String.class);
+            unstarted = builderClass.getMethod("unstarted", Runnable.class);
+            // Java 19 and 20 have the methods, but without --enable-preview
+            // they throw, so one thread is made and never started to see.
+            unstarted.invoke(ofVirtual.invoke(null), new Runnable() {
+                public void run() {
+                }
+            });
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            // No virtual threads on this runtime.
+            ofVirtual = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        NAME = name;
+        UNSTARTED = unstarted;
+    }
+
+    private DeliveryThreads() {
+    }
+
+    /**
+     * @return True if the threads created are virtual threads.
+     */
+    public static boolean isVirtual() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * Creates an unstarted delivery thread.
+     *
+     * @param task The code of the thread.
+     * @param name The name of the thread.
+     * @return The thread.
+     */
+    public static Thread newThread(Runnable task, String name) {
+        if (OF_VIRTUAL != null) {
+            try {
+                // Builders are not thread safe, so every thread gets its own.
+                Object builder = OF_VIRTUAL.invoke(null);
+                return (Thread) UNSTARTED.invoke(NAME.invoke(builder, name), task);
+            } catch (ReflectiveOperationException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+        Thread t = new Thread(null, task, name, PLATFORM_STACK_SIZE);
+        t.setDaemon(true);
+        return t;
+    }
+}
@@ -0,0 +1,43 @@
+package dsv.pis.chat.server;
+
+import java.io.Serializable;
+
+/**
+ * One page of message history, as returned by
+ * ChatServerInterface.getHistory(). Ask for the next page by passing
+ * getNext() as the first sequence number.
+ */
+public class HistoryPage implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final ChatNotification.Frame[] frames;
+    private final long oldest;
+    private final long next;
+
+    public HistoryPage(ChatNotification.Frame[] frames, long oldest, long next) {
+        this.frames = frames;
+        this.oldest = oldest;
+        this.next = next;
+    }
+
+    /**
+     * @return The messages of this page, oldest first.
+     */
+    public ChatNotification.Frame[] getFrames() {
+        return frames;
+    }
+
+    /**
+     * @return The oldest sequence number the server still remembers.
+     */
+    public long getOldest() {
+        return oldest;
+    }
+
+    /**
+     * @return The sequence number to continue reading from.
+     */
+    public long getNext() {
+        return next;
+    }
+}
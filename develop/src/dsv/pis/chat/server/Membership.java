@@ -0,0 +1,126 @@
+package dsv.pis.chat.server;
+
+import java.util.Arrays;
+
+/**
+ * An immutable snapshot of the registered clients. Joining and leaving
+ * create a new snapshot (copy on write), which is rare compared to
+ * messages. A message can therefore refer to the snapshot that was current
+ * when it was sent, at no cost, and the delivery thread reads it later
+ * without any locking.
+ * <p>
+ * The snapshot is partitioned by the shard of each client, so that the
+ * thread of a shard finds its own clients without looking at the others,
+ * and a join or leave only copies the clients of one shard.
+ */
+public final class Membership {
+    /**
+     * The snapshot without any clients.
+     */
+    public static final Membership EMPTY = new Membership(new Client[0][], 0);
+
+    private static final Client[] NONE = new Client[0];
+
+    /**
+     * The clients of each shard, indexed by shard. Shards past the end of
+     * the array, or with a null entry, have no clients.
+     */
+    private final Client[][] shards;
+
+    private final int size;
+
+    /**
+     * All clients in one array, made when first asked for.
+     */
+    private volatile Client[] all = null;
+
+    private Membership(Client[][] shards, int size) {
+        this.shards = shards;
+        this.size = size;
+    }
+
+    /**
+     * @param client The client to add.
+     * @return A snapshot that also holds the given client.
+     */
+    public Membership with(Client client) {
+        int shard = client.getShard();
+        Client[][] copy = Arrays.copyOf(shards, Math.max(shards.length, shard + 1));
+        Client[] clients = clients(shard);
+        copy[shard] = Arrays.copyOf(clients, clients.length + 1);
+        copy[shard][clients.length] = client;
+        return new Membership(copy, size + 1);
+    }
+
+    /**
+     * @param client The client to remove.
+     * @return A snapshot without the given client, or this snapshot if it
+     * did not hold it.
+     */
+    public Membership without(Client client) {
+        int shard = client.getShard();
+        Client[] clients = clients(shard);
+        for (int i = 0; i < clients.length; i++) {
+            if (clients[i] == client) {
+                Client[] left = new Client[clients.length - 1];
+                System.arraycopy(clients, 0, left, 0, i);
+                System.arraycopy(clients, i + 1, left, i, left.length - i);
+                Client[][] copy = shards.clone();
+                copy[shard] = left;
+                return new Membership(copy, size - 1);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * @param client A client.
+     * @return True if the snapshot holds the client.
+     */
+    public boolean contains(Client client) {
+        for (Client c : clients(client.getShard())) {
+            if (c == client) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the clients of one shard. The array is shared and must not
+     * be modified.
+     *
+     * @param shard The shard.
+     * @return The clients.
+     */
+    public Client[] clients(int shard) {
+        Client[] clients = shard < shards.length ? shards[shard] : null;
+        return clients != null ? clients : NONE;
+    }
+
+    /**
+     * Returns the clients of this snapshot. The array is shared and must
+     * not be modified.
+     *
+     * @return The clients.
+     */
+    public Client[] clients() {
+        Client[] clients = all;
+        if (clients == null) {
+            clients = new Client[size];
+            int n = 0;
+            for (Client[] shard : shards) {
+                if (shard != null) {
+                    System.arraycopy(shard, 0, clients, n, shard.length);
+                    n += shard.length;
+                }
+            }
+            all = clients;
+        }
+        return clients;
+    }
+
+    public int size() {
+        return size;
+    }
+}
@@ -0,0 +1,95 @@
+package dsv.pis.chat.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The most recent public messages, in a ring of fixed size indexed by
+ * sequence number. Sequence number s lives in slot s modulo the capacity,
+ * so the ring covers the last capacity sequence numbers; private messages
+ * leave their slot empty. The distribution thread is the only writer.
+ * Readers take no lock: they check that a slot still holds the sequence
+ * number they want, and skip it if it has been overwritten meanwhile.
+ */
+public class MessageHistory {
+    /**
+     * The largest page a reader gets, whatever it asks for.
+     */
+    public static final int MAX_PAGE = 1000;
+
+    private final AtomicReferenceArray<ChatNotification.Frame> slots;
+    private final int mask;
+    private final long first;
+
+    /**
+     * One past the newest sequence number appended.
+     */
+    private volatile long end;
+
+    /**
+     * Creates a new MessageHistory.
+     *
+     * @param capacity The number of sequence numbers remembered, rounded
+     *                 up to a power of two.
+     * @param first    The sequence number of the first message.
+     */
+    public MessageHistory(int capacity, long first) {
+        int size = Integer.highestOneBit(Math.max(1, capacity));
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.slots = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+        this.first = first;
+        this.end = first;
+    }
+
+    /**
+     * Remembers a message. Must be called by one thread only, in
+     * sequence order.
+     *
+     * @param frame The message.
+     */
+    public void append(ChatNotification.Frame frame) {
+        long seq = frame.getSequenceNumber();
+        slots.lazySet((int) seq & mask, frame);
+        end = seq + 1;
+    }
+
+    /**
+     * Reads a page of history.
+     *
+     * @param from The first sequence number wanted, or a negative number
+     *             for the newest messages.
+     * @param max  The largest number of messages wanted.
+     * @return The page.
+     */
+    public HistoryPage page(long from, int max) {
+        max = Math.max(0, Math.min(max, MAX_PAGE));
+        long last = end;
+        long oldest = Math.max(first, last - slots.length());
+        List<ChatNotification.Frame> found = new ArrayList<>();
+
+        if (from < 0) {
+            for (long seq = last - 1; seq >= oldest && found.size() < max; seq--) {
+                ChatNotification.Frame frame = slots.get((int) seq & mask);
+                if (frame != null && frame.getSequenceNumber() == seq) {
+                    found.add(frame);
+                }
+            }
+            Collections.reverse(found);
+            return new HistoryPage(found.toArray(new ChatNotification.Frame[found.size()]), oldest, last);
+        }
+
+        long seq = Math.max(from, oldest);
+        for (; seq < last && found.size() < max; seq++) {
+            ChatNotification.Frame frame = slots.get((int) seq & mask);
+            if (frame != null && frame.getSequenceNumber() == seq) {
+                found.add(frame);
+            }
+        }
+        return new HistoryPage(found.toArray(new ChatNotification.Frame[found.size()]), oldest, seq);
+    }
+}
@@ -0,0 +1,263 @@
+package dsv.pis.chat.server;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded multi-producer, multi-consumer ring buffer in the style of the
+ * LMAX Disruptor. Producers claim a sequence number with a CAS on the
+ * cursor, fill the slot and publish it; each consumer reads every slot in
+ * sequence order, with a sequence of its own. No lock is shared between
+ * producers and consumers. A producer only wraps around onto a slot once
+ * the slowest consumer has taken it.
+ * <p>
+ * The slot and availability arrays are allocated once, up front. The
+ * claimed sequence numbers are handed out in order, so the server uses them
+ * directly as its message serial numbers.
+ *
+ * @param <E> The type of the entries.
+ */
+public class MessageRing<E> {
+    /**
+     * A counter like AtomicLong, padded so that the producer cursor and
+     * the consumer sequences do not share cache lines. It updates its own
+     * field rather than extend AtomicLong, which would make it
+     * Serializable for nothing.
+     */
+    @SuppressWarnings("unused")
+    private static class Sequence {
+        private static final AtomicLongFieldUpdater<Sequence> VALUE =
+                AtomicLongFieldUpdater.newUpdater(Sequence.class, "value");
+
+        private volatile long value;
+        private long p1, p2, p3, p4, p5, p6, p7;
+
+        Sequence(long initial) {
+            value = initial;
+        }
+
+        long get() {
+            return value;
+        }
+
+        boolean compareAndSet(long expect, long update) {
+            return VALUE.compareAndSet(this, expect, update);
+        }
+
+        void lazySet(long update) {
+            VALUE.lazySet(this, update);
+        }
+    }
+
+    private final Object[] entries;
+    private final int mask;
+    private final int shift;
+
+    /**
+     * For every slot, the lap number of the sequence last published there.
+     * A sequence is published when its slot holds its own lap number.
+     */
+    private final AtomicIntegerArray available;
+
+    /**
+     * The highest sequence claimed by a producer.
+     */
+    private final Sequence cursor;
+
+    /**
+     * For each consumer, the highest sequence it has taken.
+     */
+    private final Sequence[] consumed;
+
+    /**
+     * The lowest of the consumed sequences when a producer last looked.
+     * It lags behind the real minimum, which only errs on the safe side,
+     * and spares producers a scan of all consumers on every claim.
+     */
+    private volatile long gate;
+
+    private final WaitStrategy waitStrategy;
+
+    private volatile boolean halted = false;
+
+    /**
+     * Creates a new MessageRing with one consumer.
+     *
+     * @param capacity     The number of slots, rounded up to a power of two.
+     * @param first        The sequence number of the first entry.
+     * @param waitStrategy How the consumer waits for entries.
+     */
+    public MessageRing(int capacity, long first, WaitStrategy waitStrategy) {
+        this(capacity, first, waitStrategy, 1);
+    }
+
+    /**
+     * Creates a new MessageRing.
+     *
+     * @param capacity     The number of slots, rounded up to a power of two.
+     * @param first        The sequence number of the first entry.
+     * @param waitStrategy How the consumers wait for entries.
+     * @param consumers    The number of consumers, each of which takes
+     *                     every entry.
+     */
+    public MessageRing(int capacity, long first, WaitStrategy waitStrategy, int consumers) {
+        if (capacity < 1 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("capacity " + capacity);
+        }
+        if (consumers < 1) {
+            throw new IllegalArgumentException("consumers " + consumers);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.entries = new Object[size];
+        this.mask = size - 1;
+        this.shift = Integer.numberOfTrailingZeros(size);
+        this.available = new AtomicIntegerArray(size);
+        for (int i = 0; i < size; i++) {
+            available.set(i, -1);
+        }
+        this.cursor = new Sequence(first - 1);
+        this.consumed = new Sequence[consumers];
+        for (int i = 0; i < consumers; i++) {
+            consumed[i] = new Sequence(first - 1);
+        }
+        this.gate = first - 1;
+        this.waitStrategy = waitStrategy;
+    }
+
+    /**
+     * Claims the next sequence number. If the ring is full the caller is
+     * parked until the slowest consumer has made room. Every claimed sequence must
+     * be passed to publish(), or the consumer will stall on it.
+     *
+     * @return The claimed sequence number.
+     */
+    public long next() {
+        while (true) {
+            long current = cursor.get();
+            long next = current + 1;
+            if (next - entries.length > gate) {
+                gate = minimumConsumed();
+                if (next - entries.length > gate) {
+                    LockSupport.parkNanos(1L);
+                }
+            } else if (cursor.compareAndSet(current, next)) {
+                return next;
+            }
+        }
+    }
+
+    /**
+     * Stores an entry in a claimed slot and makes it visible to the
+     * consumers. A null entry is allowed and is skipped by the consumers.
+     *
+     * @param sequence A sequence number returned by next().
+     * @param entry    The entry.
+     */
+    public void publish(long sequence, E entry) {
+        int index = (int) sequence & mask;
+        entries[index] = entry;
+        available.set(index, (int) (sequence >>> shift));
+        waitStrategy.signal();
+    }
+
+    /**
+     * Tells whether the given sequence has been published.
+     *
+     * @param sequence The sequence number.
+     * @return True if the entry is ready to be taken.
+     */
+    public boolean isPublished(long sequence) {
+        return available.get((int) sequence & mask) == (int) (sequence >>> shift);
+    }
+
+    /**
+     * Takes the next entry of the only consumer.
+     *
+     * @return The next entry, as take(int) returns it.
+     */
+    public E take() {
+        return take(0);
+    }
+
+    /**
+     * Takes the next entry of a consumer, waiting with the wait strategy
+     * if none has been published yet. Only one thread may take for each
+     * consumer.
+     *
+     * @param consumer The consumer, from 0 up to the number of consumers.
+     * @return The next entry (possibly null, see publish()), or null once
+     * the ring has been halted and the entry is not there.
+     */
+    @SuppressWarnings("unchecked")
+    public E take(int consumer) {
+        Sequence sequencer = consumed[consumer];
+        long sequence = sequencer.get() + 1;
+        if (!isPublished(sequence)) {
+            waitStrategy.waitFor(this, sequence);
+            if (!isPublished(sequence)) {
+                return null;
+            }
+        }
+        int index = (int) sequence & mask;
+        E entry = (E) entries[index];
+        if (consumed.length == 1) {
+            // With more consumers, the entry stays until the slot is reused.
+            entries[index] = null;
+        }
+        sequencer.lazySet(sequence);
+        return entry;
+    }
+
+    /**
+     * @return The highest sequence that every consumer has taken.
+     */
+    private long minimumConsumed() {
+        long min = Long.MAX_VALUE;
+        for (Sequence sequence : consumed) {
+            min = Math.min(min, sequence.get());
+        }
+        return min;
+    }
+
+    /**
+     * Stops the consumers. A consumer waiting in take() returns null.
+     */
+    public void halt() {
+        halted = true;
+        waitStrategy.signal();
+    }
+
+    public boolean isHalted() {
+        return halted;
+    }
+
+    /**
+     * @return The sequence number the next claimed entry will get.
+     */
+    public long getNextSequence() {
+        return cursor.get() + 1;
+    }
+
+    /**
+     * @return The number of claimed entries not yet taken by the slowest
+     * consumer.
+     */
+    public int size() {
+        return (int) (cursor.get() - minimumConsumed());
+    }
+
+    /**
+     * @return The number of consumers.
+     */
+    public int consumers() {
+        return consumed.length;
+    }
+
+    public int capacity() {
+        return entries.length;
+    }
+}
@@ -0,0 +1,45 @@
+package dsv.pis.chat.server;
+
+/**
+ * What the server does when a client's outbox is full, that is, when the
+ * client has fallen a whole outbox behind. Whatever the policy, the client
+ * is told which sequence numbers it missed.
+ */
+public enum OverflowPolicy {
+    /**
+     * Discards the oldest waiting messages to make room for new ones.
+     */
+    DROP_OLDEST,
+
+    /**
+     * Discards new messages until there is room again.
+     */
+    DROP_NEWEST,
+
+    /**
+     * Discards everything waiting and sends the client one notice in its
+     * place, so it starts afresh with the new messages.
+     */
+    COALESCE,
+
+    /**
+     * Discards new messages like DROP_NEWEST, and disconnects the client
+     * once it has stayed full for longer than the allowed lag.
+     */
+    DISCONNECT;
+
+    /**
+     * Looks up a policy by the name used on the commandline.
+     *
+     * @param name One of drop-oldest, drop-newest, coalesce or disconnect.
+     * @return The policy, or null if the name is unknown.
+     */
+    public static OverflowPolicy forName(String name) {
+        for (OverflowPolicy policy : values()) {
+            if (policy.name().replace('_', '-').equalsIgnoreCase(name)) {
+                return policy;
+            }
+        }
+        return null;
+    }
+}
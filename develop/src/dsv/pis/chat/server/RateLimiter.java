@@ -0,0 +1,74 @@
+package dsv.pis.chat.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A token bucket, kept as a single number: the time at which the bucket
+ * would be full again (the generic cell rate algorithm). Taking tokens
+ * moves that time forward by the interval per token, and a call is
+ * refused when it would move it more than a full bucket past now.
+ * Refilling happens by itself as the clock moves on, so there is no
+ * refill thread and no timestamp to update on the side; an allowed call
+ * is one compare-and-set, and a refused one only reads.
+ */
+public class RateLimiter {
+    /**
+     * The time one token takes to refill.
+     */
+    private final long intervalNanos;
+
+    /**
+     * How far past now the full time may move: the time a whole burst
+     * takes to refill.
+     */
+    private final long toleranceNanos;
+
+    /**
+     * When the bucket is full again, by System.nanoTime(). A time in the
+     * past means that it is full now.
+     */
+    private final AtomicLong fullAt;
+
+    /**
+     * Makes a full bucket.
+     *
+     * @param perSecond The number of tokens that refill per second.
+     * @param burst     The size of the bucket: the most tokens that can be
+     *                  taken at once.
+     */
+    public RateLimiter(int perSecond, int burst) {
+        intervalNanos = Math.max(1, 1000000000L / Math.max(1, perSecond));
+        toleranceNanos = intervalNanos * Math.max(1, burst);
+        fullAt = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * Takes one token if there is one.
+     *
+     * @return True if the token was taken.
+     */
+    public boolean tryAcquire() {
+        return tryAcquire(1);
+    }
+
+    /**
+     * Takes tokens if there are enough. Never waits.
+     *
+     * @param tokens The number of tokens.
+     * @return True if they were taken, false if none were.
+     */
+    public boolean tryAcquire(int tokens) {
+        long cost = intervalNanos * tokens;
+        while (true) {
+            long now = System.nanoTime();
+            long full = fullAt.get();
+            long next = ((full - now < 0) ? now : full) + cost;
+            if (next - now > toleranceNanos) {
+                return false;
+            }
+            if (fullAt.compareAndSet(full, next)) {
+                return true;
+            }
+        }
+    }
+}
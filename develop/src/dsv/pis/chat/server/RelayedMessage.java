@@ -0,0 +1,64 @@
+package dsv.pis.chat.server;
+
+import java.io.Serializable;
+import java.util.UUID;
+
+/**
+ * A public chat message on its way between federated servers, as passed
+ * to ChatServerInterface.relay(). The server it was first posted on and
+ * its sequence number there identify it across the federation, which is
+ * how a server knows a message it has seen before.
+ */
+public class RelayedMessage implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final UUID origin;
+    private final long sequence;
+    private final String text;
+    private final long postedMillis;
+    private final int hops;
+
+    /**
+     * @param origin       The id of the server the message was posted on.
+     * @param sequence     Its sequence number on that server.
+     * @param text         The message, starting with the sender's
+     *                     name.
+     * @param postedMillis When it was posted, by the origin's clock.
+     * @param hops         The number of relays it has been through,
+     *                     counting the one it is on.
+     */
+    public RelayedMessage(UUID origin, long sequence, String text, long postedMillis, int hops) {
+        this.origin = origin;
+        this.sequence = sequence;
+        this.text = text;
+        this.postedMillis = postedMillis;
+        this.hops = hops;
+    }
+
+    public UUID getOrigin() {
+        return origin;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    public long getPostedMillis() {
+        return postedMillis;
+    }
+
+    public int getHops() {
+        return hops;
+    }
+
+    /**
+     * @return The same message, one relay further.
+     */
+    public RelayedMessage hopped() {
+        return new RelayedMessage(origin, sequence, text, postedMillis, hops + 1);
+    }
+}
@@ -0,0 +1,344 @@
+package dsv.pis.chat.server;
+
+import net.jini.core.event.RemoteEventListener;
+import net.jini.core.lookup.ServiceID;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.rmi.MarshalledObject;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * What a server that drains on shutdown leaves for the next one: the
+ * sessions with their names, rooms, counters and undelivered messages,
+ * the message counter and the Jini service id. The next server starts
+ * from it, so its clients keep their sessions and sequence numbers, and
+ * those still running find it under the same service id.
+ * <p>
+ * The file is written with DataOutputStream, in the same spirit as the
+ * message log: messages are kept as the bytes of their frames, and a
+ * listener only as a MarshalledObject, which is how Jini keeps remote
+ * references around. A listener that cannot be marshalled, such as a TCP
+ * connection, is left out; its client is restored detached and has to
+ * register again.
+ */
+public class ServerSnapshot {
+    /**
+     * The first bytes of a snapshot file.
+     */
+    private static final int MAGIC = 0x43535331;
+
+    /**
+     * The format version. Version 2 writes names and rooms as UTF-8 bytes
+     * with their length, where version 1 used writeUTF(), which cannot
+     * write a string of more than 65535 bytes.
+     */
+    private static final int VERSION = 2;
+
+    /**
+     * One session as it was when the snapshot was taken.
+     */
+    public static class Session {
+        private final UUID uuid;
+        private final int id;
+        private final String name;
+        private final long joined;
+        private final long sent;
+        private final long received;
+        private final String[] rooms;
+        private final byte[] listener;
+        private final ChatNotification.Frame[] frames;
+
+        /**
+         * Takes a session from a client. The client's outbox is emptied
+         * into it, so the server must have stopped delivering.
+         *
+         * @param client The client.
+         */
+        public Session(Client client) {
+            this(client.getUUID(), client.getId(), client.getName(),
+                    client.getStatistics().getJoinDate().getTime(),
+                    client.getStatistics().getNrSentMessages(),
+                    client.getStatistics().getNrReceivedMessages(),
+                    client.getRooms().toArray(new String[0]), marshal(client.getListener()),
+                    client.takePending());
+        }
+
+        private Session(UUID uuid, int id, String name, long joined, long sent, long received,
+                        String[] rooms, byte[] listener, ChatNotification.Frame[] frames) {
+            this.uuid = uuid;
+            this.id = id;
+            this.name = name;
+            this.joined = joined;
+            this.sent = sent;
+            this.received = received;
+            this.rooms = rooms;
+            this.listener = listener;
+            this.frames = frames;
+        }
+
+        public UUID getUUID() {
+            return uuid;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return When the client joined, in milliseconds since the epoch.
+         */
+        public long getJoined() {
+            return joined;
+        }
+
+        public long getSent() {
+            return sent;
+        }
+
+        public long getReceived() {
+            return received;
+        }
+
+        public String[] getRooms() {
+            return rooms;
+        }
+
+        /**
+         * @return The undelivered messages of the client, oldest first.
+         */
+        public ChatNotification.Frame[] getFrames() {
+            return frames;
+        }
+
+        /**
+         * @return The client's listener, or null if it was not kept or
+         * cannot be unmarshalled here.
+         */
+        public RemoteEventListener getListener() {
+            if (listener == null) {
+                return null;
+            }
+            try {
+                ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(listener));
+                return (RemoteEventListener) ((MarshalledObject<?>) in.readObject()).get();
+            } catch (IOException | ClassNotFoundException | ClassCastException ex) {
+                System.out.println("Cannot restore the listener of " + uuid + ": " + ex);
+                return null;
+            }
+        }
+    }
+
+    private final long nextSequence;
+    private final int nextClientId;
+    private final ServiceID serviceID;
+    private final List<Session> sessions;
+
+    /**
+     * @param nextSequence The number of the next message.
+     * @param nextClientId The next sender id to hand out.
+     * @param serviceID    The Jini service id of the server, or null if
+     *                     it has none.
+     * @param sessions     The sessions.
+     */
+    public ServerSnapshot(long nextSequence, int nextClientId, ServiceID serviceID, List<Session> sessions) {
+        this.nextSequence = nextSequence;
+        this.nextClientId = nextClientId;
+        this.serviceID = serviceID;
+        this.sessions = sessions;
+    }
+
+    public long getNextSequence() {
+        return nextSequence;
+    }
+
+    public int getNextClientId() {
+        return nextClientId;
+    }
+
+    /**
+     * @return The Jini service id of the server, or null.
+     */
+    public ServiceID getServiceID() {
+        return serviceID;
+    }
+
+    public List<Session> getSessions() {
+        return Collections.unmodifiableList(sessions);
+    }
+
+    /**
+     * @return The number of undelivered messages in all sessions.
+     */
+    public int getPendingCount() {
+        int pending = 0;
+        for (Session session : sessions) {
+            pending += session.frames.length;
+        }
+        return pending;
+    }
+
+    /**
+     * @param listener A listener.
+     * @return The listener in a MarshalledObject, as bytes, or null if it
+     * cannot be marshalled.
+     */
+    private static byte[] marshal(RemoteEventListener listener) {
+        if (listener == null) {
+            return null;
+        }
+        try {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            ObjectOutputStream out = new ObjectOutputStream(buffer);
+            out.writeObject(new MarshalledObject<>(listener));
+            out.close();
+            return buffer.toByteArray();
+        } catch (IOException iox) {
+            // Not serializable: a connection of this server.
+            return null;
+        }
+    }
+
+    /**
+     * Writes the snapshot. It goes to a temporary file first, which then
+     * replaces the file, so a failed write leaves no half snapshot behind.
+     *
+     * @param file The file.
+     */
+    public void write(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(nextSequence);
+            out.writeInt(nextClientId);
+            out.writeBoolean(serviceID != null);
+            if (serviceID != null) {
+                out.writeLong(serviceID.getMostSignificantBits());
+                out.writeLong(serviceID.getLeastSignificantBits());
+            }
+            out.writeInt(sessions.size());
+            for (Session session : sessions) {
+                out.writeLong(session.uuid.getMostSignificantBits());
+                out.writeLong(session.uuid.getLeastSignificantBits());
+                out.writeInt(session.id);
+                writeString(out, session.name);
+                out.writeLong(session.joined);
+                out.writeLong(session.sent);
+                out.writeLong(session.received);
+                out.writeInt(session.rooms.length);
+                for (String room : session.rooms) {
+                    writeString(out, room);
+                }
+                writeBytes(out, session.listener);
+                out.writeInt(session.frames.length);
+                for (ChatNotification.Frame frame : session.frames) {
+                    writeBytes(out, frame.getBytes());
+                }
+            }
+        } finally {
+            out.close();
+        }
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Cannot replace " + file);
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("Cannot rename " + temp + " to " + file);
+        }
+    }
+
+    /**
+     * Reads a snapshot written by write().
+     *
+     * @param file The file.
+     * @return The snapshot.
+     * @throws IOException If the file cannot be read or is not a snapshot.
+     */
+    public static ServerSnapshot read(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException(file + " is not a server snapshot");
+            }
+            long nextSequence = in.readLong();
+            int nextClientId = in.readInt();
+            ServiceID serviceID = in.readBoolean() ? new ServiceID(in.readLong(), in.readLong()) : null;
+            int count = in.readInt();
+            List<Session> sessions = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                UUID uuid = new UUID(in.readLong(), in.readLong());
+                int id = in.readInt();
+                String name = readString(in);
+                long joined = in.readLong();
+                long sent = in.readLong();
+                long received = in.readLong();
+                String[] rooms = new String[in.readInt()];
+                for (int r = 0; r < rooms.length; r++) {
+                    rooms[r] = readString(in);
+                }
+                byte[] listener = readBytes(in);
+                ChatNotification.Frame[] frames = new ChatNotification.Frame[in.readInt()];
+                for (int f = 0; f < frames.length; f++) {
+                    frames[f] = ChatNotification.Frame.fromBytes(readBytes(in));
+                }
+                sessions.add(new Session(uuid, id, name, joined, sent, received, rooms, listener, frames));
+            }
+            return new ServerSnapshot(nextSequence, nextClientId, serviceID, sessions);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes an array with its length first; null as length -1.
+     */
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        if (bytes == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        writeBytes(out, s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = readBytes(in);
+        if (bytes == null) {
+            throw new IOException("Missing string in snapshot");
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+}
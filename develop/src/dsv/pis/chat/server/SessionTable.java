@@ -0,0 +1,250 @@
+package dsv.pis.chat.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The registered clients. Each session gets an int handle when it
+ * registers: the index of its slot in an array, with a generation number
+ * in the high bits that changes every time the slot is reused. Looking up
+ * a handle is an array read and a compare, and a handle kept past the end
+ * of its session finds nothing instead of the next client in its slot.
+ * <p>
+ * A UUID is resolved through an open-addressing hash index that holds
+ * only handles; a probe compares the UUID of the client in the slot. The
+ * whole table costs a few ints per session, where a ConcurrentHashMap
+ * costs a node object and a table entry.
+ * <p>
+ * Lookups take no lock. Changes are serialized on the table's monitor,
+ * and the arrays are replaced, not changed in place, when they grow.
+ */
+public class SessionTable {
+    /**
+     * The number of low handle bits that hold the slot index.
+     */
+    private static final int SLOT_BITS = 20;
+
+    private static final int SLOT_MASK = (1 << SLOT_BITS) - 1;
+
+    /**
+     * The most sessions the table holds at once.
+     */
+    public static final int MAX_SESSIONS = 1 << SLOT_BITS;
+
+    /**
+     * Generations run from 1 to MAX_GENERATION, so that no handle is 0.
+     */
+    private static final int MAX_GENERATION = (1 << (31 - SLOT_BITS)) - 1;
+
+    /**
+     * The handle of a client that is not in the table.
+     */
+    public static final int NO_HANDLE = 0;
+
+    // Index entries that are not handles.
+    private static final int EMPTY = 0;
+    private static final int REMOVED = -1;
+
+    private static final int MIN_CAPACITY = 16;
+
+    /**
+     * The client in each slot, or null.
+     */
+    private volatile AtomicReferenceArray<Client> slots = new AtomicReferenceArray<>(MIN_CAPACITY);
+
+    /**
+     * The handles by hash of their client's UUID, with linear probing.
+     * At most three quarters of it is in use, counting removed entries.
+     */
+    private volatile AtomicIntegerArray index = new AtomicIntegerArray(2 * MIN_CAPACITY);
+
+    /**
+     * The handles that the free slots will be given next, which carry the
+     * next generation of each slot. Guarded by this, like the counts.
+     */
+    private int[] freeHandles = new int[MIN_CAPACITY];
+    private int freeCount = 0;
+    private int usedSlots = 0;
+    private int removed = 0;
+
+    private volatile int size = 0;
+
+    /**
+     * Adds a client and gives it its handle. A client already registered
+     * with the same UUID is removed.
+     *
+     * @param client The client.
+     * @return The client it replaces, or null.
+     * @throws IllegalStateException If the table holds MAX_SESSIONS
+     *                               clients.
+     */
+    public synchronized Client put(Client client) {
+        Client previous = get(client.getUUID());
+        if (previous != null) {
+            remove(previous);
+        }
+        if (size >= MAX_SESSIONS) {
+            throw new IllegalStateException("More than " + MAX_SESSIONS + " sessions");
+        }
+        int handle;
+        if (freeCount > 0) {
+            handle = freeHandles[--freeCount];
+        } else {
+            if (usedSlots == slots.length()) {
+                growSlots();
+            }
+            handle = (1 << SLOT_BITS) | usedSlots++;
+        }
+        client.setHandle(handle);
+        if (4 * (size + removed + 1) > 3 * index.length()) {
+            rebuildIndex();
+        }
+        // Set after the rebuild, which indexes every client in the slots
+        // and would otherwise index this one twice.
+        slots.set(handle & SLOT_MASK, client);
+        if (insert(index, client.getUUID(), handle)) {
+            removed--;
+        }
+        size++;
+        return previous;
+    }
+
+    /**
+     * Removes a client, if it is still in the table. Its handle stops
+     * working at once.
+     *
+     * @param client The client.
+     * @return True if the client was removed, false if it was not in the
+     * table.
+     */
+    public synchronized boolean remove(Client client) {
+        int handle = client.getHandle();
+        int slot = handle & SLOT_MASK;
+        if (handle == NO_HANDLE || slots.get(slot) != client) {
+            return false;
+        }
+        AtomicIntegerArray ix = index;
+        int mask = ix.length() - 1;
+        for (int i = hash(client.getUUID()) & mask; ix.get(i) != EMPTY; i = (i + 1) & mask) {
+            if (ix.get(i) == handle) {
+                ix.set(i, REMOVED);
+                removed++;
+                break;
+            }
+        }
+        client.setHandle(NO_HANDLE);
+        slots.set(slot, null);
+        int generation = handle >>> SLOT_BITS;
+        generation = (generation == MAX_GENERATION) ? 1 : generation + 1;
+        freeHandles[freeCount++] = (generation << SLOT_BITS) | slot;
+        size--;
+        return true;
+    }
+
+    /**
+     * @param handle A session handle.
+     * @return The client with the handle, or null if its session is over.
+     */
+    public Client get(int handle) {
+        AtomicReferenceArray<Client> s = slots;
+        int slot = handle & SLOT_MASK;
+        if (handle == NO_HANDLE || slot >= s.length()) {
+            return null;
+        }
+        Client client = s.get(slot);
+        return (client != null && client.getHandle() == handle) ? client : null;
+    }
+
+    /**
+     * @param uuid The id a client registered with.
+     * @return The client, or null if it is not registered.
+     */
+    public Client get(UUID uuid) {
+        AtomicIntegerArray ix = index;
+        int mask = ix.length() - 1;
+        for (int i = hash(uuid) & mask, n = 0; n <= mask; i = (i + 1) & mask, n++) {
+            int handle = ix.get(i);
+            if (handle == EMPTY) {
+                return null;
+            }
+            Client client = get(handle);
+            if (client != null && client.getUUID().equals(uuid)) {
+                return client;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return The clients in the table, in no particular order.
+     */
+    public List<Client> list() {
+        AtomicReferenceArray<Client> s = slots;
+        List<Client> list = new ArrayList<>(size);
+        for (int i = 0; i < s.length(); i++) {
+            Client client = s.get(i);
+            if (client != null) {
+                list.add(client);
+            }
+        }
+        return list;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private void growSlots() {
+        AtomicReferenceArray<Client> s = slots;
+        AtomicReferenceArray<Client> grown = new AtomicReferenceArray<>(s.length() * 2);
+        for (int i = 0; i < s.length(); i++) {
+            grown.set(i, s.get(i));
+        }
+        freeHandles = Arrays.copyOf(freeHandles, grown.length());
+        slots = grown;
+    }
+
+    /**
+     * Makes a new index without removed entries, at least twice as large
+     * as the sessions need, and puts it in place.
+     */
+    private void rebuildIndex() {
+        int capacity = 2 * MIN_CAPACITY;
+        while (capacity < 2 * (size + 1)) {
+            capacity *= 2;
+        }
+        AtomicIntegerArray rebuilt = new AtomicIntegerArray(capacity);
+        AtomicReferenceArray<Client> s = slots;
+        for (int i = 0; i < s.length(); i++) {
+            Client client = s.get(i);
+            if (client != null) {
+                insert(rebuilt, client.getUUID(), client.getHandle());
+            }
+        }
+        index = rebuilt;
+        removed = 0;
+    }
+
+    /**
+     * @return True if the handle took the place of a removed entry.
+     */
+    private static boolean insert(AtomicIntegerArray ix, UUID uuid, int handle) {
+        int mask = ix.length() - 1;
+        int i = hash(uuid) & mask;
+        while (ix.get(i) != EMPTY && ix.get(i) != REMOVED) {
+            i = (i + 1) & mask;
+        }
+        boolean reused = ix.get(i) == REMOVED;
+        ix.set(i, handle);
+        return reused;
+    }
+
+    private static int hash(UUID uuid) {
+        int h = uuid.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
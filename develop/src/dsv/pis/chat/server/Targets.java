@@ -0,0 +1,164 @@
+package dsv.pis.chat.server;
+
+/**
+ * Describes who receives a message. A Targets instance is cheap to create
+ * when the message is enqueued, and is only resolved into clients by the
+ * thread of each shard, which walks candidates(shard) and skips the
+ * clients that accepts() turns down.
+ */
+public abstract class Targets {
+    private static final Client[] NONE = new Client[0];
+
+    /**
+     * Everyone in a membership snapshot except one client, which is
+     * usually the sender.
+     *
+     * @param members  The snapshot to deliver to.
+     * @param excluded The client to skip, or null.
+     * @return The targets.
+     */
+    public static Targets allExcept(Membership members, Client excluded) {
+        return new AllExcept(members, excluded, true);
+    }
+
+    /**
+     * The members of a room except one client, which is usually the
+     * sender. Room messages are not part of the public history.
+     *
+     * @param room     The snapshot of the room's members.
+     * @param excluded The client to skip, or null.
+     * @return The targets.
+     */
+    public static Targets inRoom(Membership room, Client excluded) {
+        return new AllExcept(room, excluded, false);
+    }
+
+    /**
+     * @param client The only receiver.
+     * @return The targets.
+     */
+    public static Targets only(Client client) {
+        return new Explicit(new Client[]{client});
+    }
+
+    /**
+     * @param clients The receivers. The array is kept, not copied.
+     * @return The targets.
+     */
+    public static Targets of(Client... clients) {
+        return new Explicit(clients);
+    }
+
+    /**
+     * Returns the clients that may receive the message. The array is
+     * shared and must not be modified.
+     *
+     * @return The candidate receivers.
+     */
+    public abstract Client[] candidates();
+
+    /**
+     * Returns the clients of one shard that may receive the message. The
+     * array is shared and must not be modified.
+     *
+     * @param shard The shard.
+     * @return The candidate receivers in the shard.
+     */
+    public abstract Client[] candidates(int shard);
+
+    /**
+     * @param client One of the candidates.
+     * @return True if the client is to receive the message.
+     */
+    public abstract boolean accepts(Client client);
+
+    /**
+     * @return True if nobody would receive the message.
+     */
+    public abstract boolean isEmpty();
+
+    /**
+     * @return True if the message is meant for everyone, which makes it
+     * part of the public history.
+     */
+    public abstract boolean isPublic();
+
+    private static final class AllExcept extends Targets {
+        private final Membership members;
+        private final Client excluded;
+        private final boolean everyone;
+
+        AllExcept(Membership members, Client excluded, boolean everyone) {
+            this.members = members;
+            this.excluded = excluded;
+            this.everyone = everyone;
+        }
+
+        public Client[] candidates() {
+            return members.clients();
+        }
+
+        public Client[] candidates(int shard) {
+            return members.clients(shard);
+        }
+
+        public boolean accepts(Client client) {
+            return client != excluded;
+        }
+
+        public boolean isEmpty() {
+            int size = members.size();
+            return size == 0 || (size == 1 && excluded != null && members.contains(excluded));
+        }
+
+        public boolean isPublic() {
+            return everyone;
+        }
+    }
+
+    private static final class Explicit extends Targets {
+        private final Client[] clients;
+
+        Explicit(Client[] clients) {
+            this.clients = clients;
+        }
+
+        public Client[] candidates() {
+            return clients;
+        }
+
+        public Client[] candidates(int shard) {
+            int n = 0;
+            for (Client client : clients) {
+                if (client != null && client.getShard() == shard) {
+                    n++;
+                }
+            }
+            if (n == clients.length) {
+                return clients;
+            } else if (n == 0) {
+                return NONE;
+            }
+            Client[] inShard = new Client[n];
+            n = 0;
+            for (Client client : clients) {
+                if (client != null && client.getShard() == shard) {
+                    inShard[n++] = client;
+                }
+            }
+            return inShard;
+        }
+
+        public boolean accepts(Client client) {
+            return client != null;
+        }
+
+        public boolean isEmpty() {
+            return clients.length == 0;
+        }
+
+        public boolean isPublic() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package dsv.pis.chat.server;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Decides how the consumers of a MessageRing wait for the next message to
+ * be published. Producers call signal() after every publish, so a strategy
+ * that never sleeps can make that call free. One strategy serves all the
+ * consumers of a ring.
+ */
+public interface WaitStrategy {
+
+    /**
+     * Returns when the given sequence has been published or the ring has
+     * been halted, whichever happens first.
+     *
+     * @param ring     The ring being consumed.
+     * @param sequence The sequence the consumer wants next.
+     */
+    void waitFor(MessageRing<?> ring, long sequence);
+
+    /**
+     * Wakes the consumers that are sleeping in waitFor().
+     */
+    void signal();
+
+    /**
+     * Sleeps on a lock and condition. Producers only take the lock when the
+     * consumer is actually asleep, so a busy ring never pays for the
+     * hand-off. This is the cheapest strategy on CPU and the default.
+     */
+    class Blocking implements WaitStrategy {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition published = lock.newCondition();
+        private volatile int waiters = 0;
+
+        public void waitFor(MessageRing<?> ring, long sequence) {
+            if (ring.isPublished(sequence)) {
+                return;
+            }
+            lock.lock();
+            try {
+                // Announce ourselves before the last check so that a
+                // producer publishing in between is sure to see us.
+                waiters++;
+                while (!ring.isPublished(sequence) && !ring.isHalted()) {
+                    published.awaitUninterruptibly();
+                }
+            } finally {
+                waiters--;
+                lock.unlock();
+            }
+        }
+
+        public void signal() {
+            if (waiters > 0) {
+                lock.lock();
+                try {
+                    published.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+
+        public String toString() {
+            return "blocking";
+        }
+    }
+
+    /**
+     * Spins for a while, then yields, and finally parks the consumer until
+     * a producer unparks it. Trades some CPU for a shorter wake-up latency
+     * than Blocking when messages arrive in quick succession.
+     */
+    class SpinThenPark implements WaitStrategy {
+        private static final int SPIN_TRIES = 100;
+        private static final int YIELD_TRIES = 100;
+        private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+        /**
+         * The consumers that are parked, or about to park.
+         */
+        private final Set<Thread> parked = Collections.newSetFromMap(new ConcurrentHashMap<Thread, Boolean>());
+
+        /**
+         * The size of parked, kept apart so that signal() is a single
+         * volatile read while every consumer is awake.
+         */
+        private final AtomicInteger sleepers = new AtomicInteger();
+
+        public void waitFor(MessageRing<?> ring, long sequence) {
+            int tries = 0;
+            while (!ring.isPublished(sequence) && !ring.isHalted()) {
+                if (tries < SPIN_TRIES) {
+                    tries++;
+                } else if (tries < SPIN_TRIES + YIELD_TRIES) {
+                    tries++;
+                    Thread.yield();
+                } else {
+                    Thread self = Thread.currentThread();
+                    parked.add(self);
+                    sleepers.incrementAndGet();
+                    if (!ring.isPublished(sequence) && !ring.isHalted()) {
+                        LockSupport.parkNanos(this, MAX_PARK_NANOS);
+                    }
+                    sleepers.decrementAndGet();
+                    parked.remove(self);
+                }
+            }
+        }
+
+        public void signal() {
+            if (sleepers.get() > 0) {
+                for (Thread t : parked) {
+                    LockSupport.unpark(t);
+                }
+            }
+        }
+
+        public String toString() {
+            return "spin";
+        }
+    }
+
+    /**
+     * Never sleeps. Gives the lowest latency but keeps one core busy for
+     * as long as the server runs, so it only suits dedicated machines.
+     */
+    class BusySpin implements WaitStrategy {
+
+        public void waitFor(MessageRing<?> ring, long sequence) {
+            while (!ring.isPublished(sequence) && !ring.isHalted()) {
+                // Spin.
+            }
+        }
+
+        public void signal() {
+        }
+
+        public String toString() {
+            return "busy";
+        }
+    }
+}
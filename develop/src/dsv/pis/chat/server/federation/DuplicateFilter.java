@@ -0,0 +1,63 @@
+package dsv.pis.chat.server.federation;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Remembers the ids of the last relayed messages a server has seen, so a
+ * message that comes round a loop of peers, or along two paths, is only
+ * delivered once. It holds a bounded number of ids and forgets the oldest
+ * first; the hop limit of the federation stops the rare message that
+ * comes back after being forgotten.
+ */
+class DuplicateFilter {
+    /**
+     * The id of a message in the federation.
+     */
+    private static final class Key {
+        private final UUID origin;
+        private final long sequence;
+
+        Key(UUID origin, long sequence) {
+            this.origin = origin;
+            this.sequence = sequence;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return sequence == k.sequence && origin.equals(k.origin);
+        }
+
+        public int hashCode() {
+            return origin.hashCode() * 31 + (int) (sequence ^ (sequence >>> 32));
+        }
+    }
+
+    private final Map<Key, Boolean> seen;
+
+    /**
+     * @param capacity The number of ids remembered.
+     */
+    DuplicateFilter(final int capacity) {
+        seen = new LinkedHashMap<Key, Boolean>(capacity * 4 / 3 + 1) {
+            protected boolean removeEldestEntry(Map.Entry<Key, Boolean> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Records a message id.
+     *
+     * @param origin   The id of the server the message was posted on.
+     * @param sequence Its sequence number there.
+     * @return True if the id was not remembered yet.
+     */
+    synchronized boolean firstSeen(UUID origin, long sequence) {
+        return seen.put(new Key(origin, sequence), Boolean.TRUE) == null;
+    }
+}
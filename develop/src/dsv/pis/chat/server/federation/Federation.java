@@ -0,0 +1,145 @@
+package dsv.pis.chat.server.federation;
+
+import dsv.pis.chat.server.ChatServer;
+import dsv.pis.chat.server.RelayedMessage;
+import dsv.pis.chat.server.metrics.ServerMetrics;
+
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Joins a ChatServer to its peers, so that clients of every server in the
+ * federation share one public chat. Each server relays the public
+ * messages of its own clients to all its peers, and passes on what it
+ * receives to its other peers (selective flooding): not back to the peer
+ * it came from, nor to the server it was posted on. A message is known
+ * everywhere by the id of its origin server and its sequence number
+ * there; the DuplicateFilter drops the copies that arrive along a second
+ * path or round a loop, and a hop limit ends any that are forgotten.
+ * <p>
+ * Links carry relays one way only. For two servers to exchange messages,
+ * each must list the other as a peer.
+ */
+public class Federation {
+    private final ChatServer server;
+    private final UUID serverId;
+    private final int maxHops;
+    private final ServerMetrics metrics;
+    private final DuplicateFilter seen;
+    private final PeerLink[] links;
+
+    /**
+     * Starts the links to the peers.
+     *
+     * @param server    The local server.
+     * @param serverId  Its id in the federation.
+     * @param peers     The peers, as host:port of their TCP transport.
+     * @param maxHops   The most relays a message goes through; 1 sends
+     *                  messages to direct peers only.
+     * @param cacheSize The number of message ids remembered to drop
+     *                  duplicates.
+     * @param metrics   Where the relays are counted and timed.
+     * @throws IllegalArgumentException If a peer is not host:port.
+     */
+    public Federation(ChatServer server, UUID serverId, List<String> peers, int maxHops, int cacheSize,
+                      ServerMetrics metrics) {
+        this.server = server;
+        this.serverId = serverId;
+        this.maxHops = maxHops;
+        this.metrics = metrics;
+        this.seen = new DuplicateFilter(cacheSize);
+        this.links = new PeerLink[peers.size()];
+        for (int i = 0; i < links.length; i++) {
+            String peer = peers.get(i);
+            int colon = peer.lastIndexOf(':');
+            int port;
+            try {
+                port = (colon > 0) ? Integer.parseInt(peer.substring(colon + 1)) : -1;
+            } catch (NumberFormatException nfe) {
+                port = -1;
+            }
+            if (port <= 0) {
+                close();
+                throw new IllegalArgumentException("Peer is not host:port: " + peer);
+            }
+            links[i] = new PeerLink(peer.substring(0, colon), port, serverId, metrics);
+        }
+    }
+
+    /**
+     * @return True if this server relays to any peer.
+     */
+    public boolean hasPeers() {
+        return links.length > 0;
+    }
+
+    /**
+     * Relays a public message of a local client to all peers. Called by
+     * the distribution thread; it never waits.
+     *
+     * @param sequence The sequence number of the message on this server.
+     * @param text     The message, starting with the sender's name.
+     */
+    public void publish(long sequence, String text) {
+        if (links.length == 0) {
+            return;
+        }
+        seen.firstSeen(serverId, sequence);
+        RelayedMessage message = new RelayedMessage(serverId, sequence, text, System.currentTimeMillis(), 1);
+        for (PeerLink link : links) {
+            link.offer(message);
+        }
+    }
+
+    /**
+     * Takes messages relayed by a peer: delivers the new ones to the local
+     * clients and passes them on.
+     *
+     * @param from     The id of the peer that sent them.
+     * @param messages The messages.
+     */
+    public void receive(UUID from, RelayedMessage[] messages) {
+        for (RelayedMessage message : messages) {
+            if (message.getOrigin().equals(serverId) || !seen.firstSeen(message.getOrigin(), message.getSequence())) {
+                metrics.relayDuplicate();
+                continue;
+            }
+            metrics.relayedIn(Math.max(0, System.currentTimeMillis() - message.getPostedMillis()));
+            server.deliverRelayed(message);
+            if (message.getHops() >= maxHops) {
+                continue;
+            }
+            RelayedMessage next = message.hopped();
+            for (PeerLink link : links) {
+                UUID peer = link.getPeerId();
+                if (!message.getOrigin().equals(peer) && !from.equals(peer)) {
+                    link.offer(next);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The state of each link, one per line.
+     */
+    public String report() {
+        StringBuilder text = new StringBuilder("Server id " + serverId);
+        for (PeerLink link : links) {
+            if (link != null) {
+                text.append("\nPeer ").append(link.describe());
+            }
+        }
+        return text.toString();
+    }
+
+    /**
+     * Stops the links.
+     */
+    public void close() {
+        for (PeerLink link : links) {
+            if (link != null) {
+                link.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package dsv.pis.chat.server.federation;
+
+import dsv.pis.chat.server.RelayedMessage;
+import dsv.pis.chat.server.metrics.ServerMetrics;
+import dsv.pis.chat.server.nio.NioChatServerStub;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The link from this server to one peer, over the peer's TCP transport.
+ * Messages to relay wait in a bounded queue; the link's thread sends
+ * whatever has queued up in one RELAY request, which the peer does not
+ * answer, so relaying never waits for a round trip. The thread connects,
+ * and reconnects after a failure, on its own. While the peer cannot be
+ * reached, messages for it are kept until the queue is full and dropped
+ * after that.
+ * <p>
+ * Every PING_SECONDS the link asks the peer for its id and times the
+ * answer, which gives the network part of the hop latency.
+ */
+class PeerLink implements Runnable {
+    private static final int QUEUE_SIZE = 10000;
+
+    /**
+     * The most messages sent in one RELAY request.
+     */
+    private static final int MAX_RELAY = 256;
+
+    private static final long RETRY_MIN_MILLIS = 500;
+    private static final long RETRY_MAX_MILLIS = 30000;
+    private static final long PING_SECONDS = 5;
+
+    private final String host;
+    private final int port;
+    private final UUID localId;
+    private final ServerMetrics metrics;
+    private final BlockingQueue<RelayedMessage> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private final Thread thread;
+
+    private volatile NioChatServerStub stub = null;
+
+    /**
+     * The id of the peer, once it has been connected to.
+     */
+    private volatile UUID peerId = null;
+
+    /**
+     * The round-trip time to the peer when last measured, or -1.
+     */
+    private volatile long rttNanos = -1;
+
+    private volatile boolean closed = false;
+
+    /**
+     * Starts the link's thread.
+     *
+     * @param host    The peer's host.
+     * @param port    The peer's TCP port.
+     * @param localId The id of this server.
+     * @param metrics Where relayed and dropped messages are counted.
+     */
+    PeerLink(String host, int port, UUID localId, ServerMetrics metrics) {
+        this.host = host;
+        this.port = port;
+        this.localId = localId;
+        this.metrics = metrics;
+        thread = new Thread(this, "peer-" + host + ":" + port);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @return The id of the peer, or null if it has not been reached yet.
+     */
+    UUID getPeerId() {
+        return peerId;
+    }
+
+    /**
+     * Queues a message for the peer. Never waits.
+     *
+     * @param message The message.
+     */
+    void offer(RelayedMessage message) {
+        if (closed || !queue.offer(message)) {
+            metrics.relayDropped(1);
+        }
+    }
+
+    /**
+     * @return One line about the state of the link.
+     */
+    String describe() {
+        StringBuilder line = new StringBuilder(host).append(':').append(port);
+        if (stub == null) {
+            line.append(": not connected");
+        } else {
+            line.append(": connected to ").append(peerId);
+            if (rttNanos >= 0) {
+                line.append(String.format(", rtt %.2f ms", rttNanos / 1e6));
+            }
+        }
+        return line.append(", ").append(queue.size()).append(" waiting").toString();
+    }
+
+    /**
+     * Stops the link. Messages still waiting are dropped.
+     */
+    void close() {
+        closed = true;
+        thread.interrupt();
+        NioChatServerStub s = stub;
+        if (s != null) {
+            s.close();
+        }
+    }
+
+    /**
+     * This is where the link's thread spends its time.
+     */
+    public void run() {
+        long retry = RETRY_MIN_MILLIS;
+        List<RelayedMessage> batch = new ArrayList<>();
+        while (!closed) {
+            try {
+                NioChatServerStub s = new NioChatServerStub(host, port);
+                stub = s;
+                ping(s);
+                if (localId.equals(peerId)) {
+                    System.out.println("Peer " + host + ":" + port + " is this server; not linking.");
+                    stub = null;
+                    s.close();
+                    return;
+                }
+                System.out.println("Linked to peer " + host + ":" + port);
+                retry = RETRY_MIN_MILLIS;
+                long nextPing = System.nanoTime() + TimeUnit.SECONDS.toNanos(PING_SECONDS);
+                while (!closed) {
+                    RelayedMessage first = queue.poll(PING_SECONDS, TimeUnit.SECONDS);
+                    if (first != null) {
+                        batch.add(first);
+                        queue.drainTo(batch, MAX_RELAY - 1);
+                        s.relay(localId, batch.toArray(new RelayedMessage[batch.size()]));
+                        metrics.relayedOut(batch.size());
+                        batch.clear();
+                    }
+                    if (System.nanoTime() - nextPing >= 0) {
+                        ping(s);
+                        nextPing = System.nanoTime() + TimeUnit.SECONDS.toNanos(PING_SECONDS);
+                    }
+                }
+            } catch (IOException iox) {
+                metrics.relayDropped(batch.size());
+                batch.clear();
+                if (!closed) {
+                    System.out.println("Peer " + host + ":" + port + " not reachable: " + iox.getMessage());
+                }
+            } catch (InterruptedException ie) {
+                // Closing.
+            }
+            NioChatServerStub s = stub;
+            stub = null;
+            if (s != null) {
+                s.close();
+            }
+            if (!closed) {
+                try {
+                    Thread.sleep(retry);
+                } catch (InterruptedException ie) {
+                    // Closing.
+                }
+                retry = Math.min(retry * 2, RETRY_MAX_MILLIS);
+            }
+        }
+    }
+
+    /**
+     * Asks the peer for its id and times the answer.
+     */
+    private void ping(NioChatServerStub s) throws IOException {
+        long start = System.nanoTime();
+        peerId = s.getServerId();
+        rttNanos = System.nanoTime() - start;
+    }
+}
@@ -0,0 +1,39 @@
+package dsv.pis.chat.server.log;
+
+/**
+ * When the message log forces its writes out to the disk.
+ */
+public enum FsyncPolicy {
+    /**
+     * Leaves writing back to the operating system. A crash of the server
+     * process loses nothing, a crash of the machine may.
+     */
+    NEVER,
+
+    /**
+     * Forces the log after every batch the writer thread takes from its
+     * queue. Messages that arrive together share one force.
+     */
+    ALWAYS,
+
+    /**
+     * Forces the log at most once per sync interval, and when it goes
+     * idle.
+     */
+    PERIODIC;
+
+    /**
+     * Looks up a policy by the name used on the commandline.
+     *
+     * @param name One of never, always or periodic.
+     * @return The policy, or null if the name is unknown.
+     */
+    public static FsyncPolicy forName(String name) {
+        for (FsyncPolicy policy : values()) {
+            if (policy.name().equalsIgnoreCase(name)) {
+                return policy;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,326 @@
+package dsv.pis.chat.server.log;
+
+import dsv.pis.chat.server.ChatNotification;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * One file of the message log, mapped into memory whole. It starts with a
+ * header holding the sequence number of its first record, and the records
+ * follow back to back. A record is the length of the encoded message, a
+ * CRC32 checksum, a flag byte and the encoded message itself. A new
+ * segment file is all zeros, so a length of zero marks the end.
+ * <p>
+ * Next to each segment lies a sparse index, mapped as well, with the
+ * sequence number and offset of one record every INDEX_INTERVAL bytes.
+ * Readers use it to skip to a sequence number, and recovery uses its last
+ * entry to find the end of the segment without reading all of it.
+ * <p>
+ * Only the writer thread appends. Readers see the records up to the
+ * volatile end offset, which is moved after a record is complete.
+ */
+class LogSegment {
+    static final String SUFFIX = ".log";
+    static final String INDEX_SUFFIX = ".idx";
+
+    private static final int MAGIC = 0x43484c47; // "CHLG"
+    private static final int VERSION = 1;
+    static final int HEADER_SIZE = 16;
+    static final int RECORD_HEADER_SIZE = 9;
+    private static final int INDEX_INTERVAL = 4096;
+    private static final int INDEX_ENTRY_SIZE = 12;
+    private static final byte PUBLIC = 1;
+
+    private final long base;
+    private final MappedByteBuffer data;
+    private final MappedByteBuffer index;
+    private final int indexSlots;
+
+    /**
+     * One past the last complete record.
+     */
+    private volatile int end;
+
+    /**
+     * The number of index entries in use.
+     */
+    private volatile int indexCount;
+
+    /**
+     * The sequence number the next record will have.
+     */
+    private volatile long nextSequence;
+
+    /**
+     * The offset of the record indexed last. Used by the writer only.
+     */
+    private int lastIndexed;
+
+    private LogSegment(long base, MappedByteBuffer data, MappedByteBuffer index) {
+        this.base = base;
+        this.data = data;
+        this.index = index;
+        this.indexSlots = index.capacity() / INDEX_ENTRY_SIZE;
+    }
+
+    /**
+     * @return The file name of the segment starting at the given sequence
+     * number, without suffix. The names sort in sequence order.
+     */
+    static String nameOf(long base) {
+        return String.format("%020d", base);
+    }
+
+    /**
+     * Creates a new, empty segment file and its index.
+     *
+     * @param directory The log directory.
+     * @param base      The sequence number of the first record.
+     * @param size      The size of the segment file in bytes.
+     * @return The segment, ready for appending.
+     */
+    static LogSegment create(File directory, long base, int size) throws IOException {
+        File file = new File(directory, nameOf(base) + SUFFIX);
+        MappedByteBuffer data = map(file, size);
+        data.putInt(0, MAGIC);
+        data.putInt(4, VERSION);
+        data.putLong(8, base);
+        MappedByteBuffer index = map(new File(directory, nameOf(base) + INDEX_SUFFIX), indexSize(size));
+        LogSegment segment = new LogSegment(base, data, index);
+        segment.end = HEADER_SIZE;
+        segment.nextSequence = base;
+        return segment;
+    }
+
+    /**
+     * Opens an existing segment file and finds its end. The index is
+     * rebuilt if it is missing.
+     *
+     * @param file The segment file.
+     * @return The segment.
+     */
+    static LogSegment open(File file) throws IOException {
+        MappedByteBuffer data = map(file, 0);
+        if (data.capacity() < HEADER_SIZE || data.getInt(0) != MAGIC) {
+            throw new IOException("Not a message log segment: " + file);
+        }
+        if (data.getInt(4) > VERSION) {
+            throw new IOException("Unsupported message log version " + data.getInt(4) + " in " + file);
+        }
+        long base = data.getLong(8);
+        String name = file.getName();
+        File indexFile = new File(file.getParentFile(),
+                name.substring(0, name.length() - SUFFIX.length()) + INDEX_SUFFIX);
+        MappedByteBuffer index = map(indexFile, indexSize(data.capacity()));
+        LogSegment segment = new LogSegment(base, data, index);
+        segment.recover();
+        return segment;
+    }
+
+    private static int indexSize(int size) {
+        return (size / INDEX_INTERVAL + 1) * INDEX_ENTRY_SIZE;
+    }
+
+    /**
+     * Maps a file for reading and writing, extending it to the given size.
+     * The mapping stays valid after the file is closed.
+     */
+    private static MappedByteBuffer map(File file, int size) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            if (raf.length() < size) {
+                raf.setLength(size);
+            }
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+        }
+    }
+
+    /**
+     * Finds the end of the segment. The last index entry that points at a
+     * sound record is the starting point; from there the records are
+     * checked one by one until the first one that is missing or torn.
+     */
+    private void recover() {
+        // Index entries are written in order, so the used ones come first.
+        int lo = 0;
+        int hi = indexSlots;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (indexOffset(mid) != 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        int count = lo;
+        int offset = HEADER_SIZE;
+        while (count > 0) {
+            int at = indexOffset(count - 1);
+            if (checkedLength(at) > 0 && sequenceAt(data, at) == index.getLong((count - 1) * INDEX_ENTRY_SIZE)) {
+                offset = at;
+                break;
+            }
+            // The entry outlived its record.
+            count--;
+            index.putLong(count * INDEX_ENTRY_SIZE, 0);
+            index.putInt(count * INDEX_ENTRY_SIZE + 8, 0);
+        }
+
+        long next = count > 0 ? index.getLong((count - 1) * INDEX_ENTRY_SIZE) : base;
+        int length;
+        while ((length = checkedLength(offset)) > 0) {
+            next = sequenceAt(data, offset) + 1;
+            offset += RECORD_HEADER_SIZE + length;
+        }
+        if (length < 0) {
+            // A torn record: clear its header so it is not taken for a
+            // record once the space is written again.
+            data.putLong(offset, 0);
+            data.put(offset + 8, (byte) 0);
+        }
+
+        indexCount = count;
+        lastIndexed = count > 0 ? indexOffset(count - 1) : 0;
+        nextSequence = next;
+        end = offset;
+    }
+
+    private int indexOffset(int slot) {
+        return index.getInt(slot * INDEX_ENTRY_SIZE + 8);
+    }
+
+    /**
+     * Checks the record at the given offset.
+     *
+     * @return The length of its message, 0 if no record starts there, or
+     * -1 if the record is torn.
+     */
+    private int checkedLength(int offset) {
+        if (offset + RECORD_HEADER_SIZE > data.capacity()) {
+            return 0;
+        }
+        int length = data.getInt(offset);
+        if (length == 0 && data.getInt(offset + 4) == 0) {
+            return 0;
+        }
+        if (length <= 0 || length > data.capacity() - offset - RECORD_HEADER_SIZE) {
+            return -1;
+        }
+        byte[] bytes = new byte[length];
+        ByteBuffer view = data.duplicate();
+        view.position(offset + RECORD_HEADER_SIZE);
+        view.get(bytes);
+        return checksum(data.get(offset + 8), bytes) == data.getInt(offset + 4) ? length : -1;
+    }
+
+    private static int checksum(byte flags, byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(flags);
+        crc.update(bytes, 0, bytes.length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Picks the sequence number out of the encoded message of a record. It
+     * follows the version byte.
+     */
+    private static long sequenceAt(ByteBuffer buffer, int offset) {
+        return buffer.getLong(offset + RECORD_HEADER_SIZE + 1);
+    }
+
+    /**
+     * Appends a record. Called by the writer thread only.
+     *
+     * @param frame    The encoded message.
+     * @param isPublic Whether the message went to everyone.
+     * @return False if the segment has no room for the record.
+     */
+    boolean append(ChatNotification.Frame frame, boolean isPublic) {
+        byte[] bytes = frame.getBytes();
+        int at = end;
+        if (at + RECORD_HEADER_SIZE + bytes.length > data.capacity()) {
+            return false;
+        }
+        byte flags = isPublic ? PUBLIC : 0;
+        data.putInt(at + 4, checksum(flags, bytes));
+        data.put(at + 8, flags);
+        data.position(at + RECORD_HEADER_SIZE);
+        data.put(bytes);
+        data.putInt(at, bytes.length);
+
+        long seq = frame.getSequenceNumber();
+        int slot = indexCount;
+        if (slot < indexSlots && (slot == 0 || at - lastIndexed >= INDEX_INTERVAL)) {
+            index.putLong(slot * INDEX_ENTRY_SIZE, seq);
+            index.putInt(slot * INDEX_ENTRY_SIZE + 8, at);
+            lastIndexed = at;
+            indexCount = slot + 1;
+        }
+        nextSequence = seq + 1;
+        end = at + RECORD_HEADER_SIZE + bytes.length;
+        return true;
+    }
+
+    /**
+     * Reads public messages from this segment.
+     *
+     * @param from The first sequence number wanted.
+     * @param max  The number of messages wanted in all.
+     * @param out  Where the messages are added.
+     */
+    void read(long from, int max, List<ChatNotification.Frame> out) {
+        int limit = end;
+        int count = indexCount;
+        // Entries may already point at a record past the end we read.
+        while (count > 0 && indexOffset(count - 1) >= limit) {
+            count--;
+        }
+        // The last indexed record at or before from.
+        int at = HEADER_SIZE;
+        int lo = 0;
+        int hi = count - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (index.getLong(mid * INDEX_ENTRY_SIZE) <= from) {
+                at = indexOffset(mid);
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+
+        ByteBuffer view = data.duplicate();
+        while (at < limit && out.size() < max) {
+            int length = view.getInt(at);
+            if ((view.get(at + 8) & PUBLIC) != 0 && sequenceAt(view, at) >= from) {
+                byte[] bytes = new byte[length];
+                view.position(at + RECORD_HEADER_SIZE);
+                view.get(bytes);
+                out.add(ChatNotification.Frame.fromBytes(bytes));
+            }
+            at += RECORD_HEADER_SIZE + length;
+        }
+    }
+
+    /**
+     * Writes the segment and its index out to the disk.
+     */
+    void force() {
+        data.force();
+        index.force();
+    }
+
+    long getBase() {
+        return base;
+    }
+
+    long getNextSequence() {
+        return nextSequence;
+    }
+}
@@ -0,0 +1,278 @@
+package dsv.pis.chat.server.log;
+
+import dsv.pis.chat.server.ChatNotification;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An append-only log of every message the server dispatches, kept on disk
+ * in memory-mapped segment files of fixed size. The distribution thread
+ * hands messages over through a bounded queue; a writer thread of the log
+ * copies them into the current segment, starts a new segment when it is
+ * full and forces the files to disk as the FsyncPolicy says. Delivery
+ * never waits for the log: a message that finds the queue full is left
+ * out of it, and a writer that fails stops the log altogether.
+ * <p>
+ * Opening the log reads only the index and the tail of the newest
+ * segment, so the server learns where its message count left off without
+ * reading the whole log. Older segments are mapped when a reader first
+ * needs them.
+ */
+public class MessageLog implements Runnable {
+    /**
+     * The largest number of messages the writer takes from its queue
+     * between two forces.
+     */
+    private static final int MAX_DRAIN = 1024;
+
+    /**
+     * How long the writer waits for a message before it checks whether
+     * the log is being closed or is due for a force.
+     */
+    private static final long POLL_MILLIS = 100;
+
+    /**
+     * A message on its way to the writer thread.
+     */
+    private static class Entry {
+        final ChatNotification.Frame frame;
+        final boolean isPublic;
+
+        Entry(ChatNotification.Frame frame, boolean isPublic) {
+            this.frame = frame;
+            this.isPublic = isPublic;
+        }
+    }
+
+    private final File directory;
+    private final int segmentSize;
+    private final FsyncPolicy fsyncPolicy;
+    private final long fsyncNanos;
+    private final BlockingQueue<Entry> queue;
+
+    /**
+     * All segment files, by the sequence number of their first record.
+     */
+    private final ConcurrentSkipListMap<Long, File> files = new ConcurrentSkipListMap<>();
+
+    /**
+     * The segments mapped so far.
+     */
+    private final Map<Long, LogSegment> segments = new ConcurrentHashMap<>();
+
+    /**
+     * The segment being written. Used by the writer thread only.
+     */
+    private LogSegment active;
+
+    private final Thread writer;
+    private volatile boolean closing = false;
+    private volatile boolean failed = false;
+
+    /**
+     * Opens the log in the given directory, creating it if need be, and
+     * starts the writer thread.
+     *
+     * @param directory   The directory of the segment files.
+     * @param segmentSize The size of a segment file in bytes.
+     * @param fsyncPolicy When writes are forced to disk.
+     * @param fsyncMillis The sync interval of FsyncPolicy.PERIODIC.
+     * @param queueSize   The number of messages that may wait for the
+     *                    writer before messages are left out of the log.
+     */
+    public MessageLog(File directory, int segmentSize, FsyncPolicy fsyncPolicy, int fsyncMillis, int queueSize)
+            throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create log directory " + directory);
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.fsyncPolicy = fsyncPolicy;
+        this.fsyncNanos = TimeUnit.MILLISECONDS.toNanos(fsyncMillis);
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+
+        File[] list = directory.listFiles();
+        if (list != null) {
+            for (File file : list) {
+                String name = file.getName();
+                if (name.endsWith(LogSegment.SUFFIX)) {
+                    try {
+                        files.put(Long.parseLong(name.substring(0, name.length() - LogSegment.SUFFIX.length())), file);
+                    } catch (NumberFormatException nfe) {
+                        // Not one of ours.
+                    }
+                }
+            }
+        }
+        if (files.isEmpty()) {
+            addSegment(LogSegment.create(directory, 0, segmentSize));
+        } else {
+            addSegment(LogSegment.open(files.lastEntry().getValue()));
+        }
+
+        writer = new Thread(this, "message log writer");
+        writer.start();
+    }
+
+    /**
+     * @return The sequence number of the oldest message in the log.
+     */
+    public long getFirstSequence() {
+        return files.firstKey();
+    }
+
+    /**
+     * @return The sequence number that follows the last message written.
+     * When the log has just been opened, it is where the server's message
+     * count continues.
+     */
+    public long getNextSequence() {
+        return segment(files.lastKey()).getNextSequence();
+    }
+
+    /**
+     * Hands a message to the writer thread. Called by the distribution
+     * thread, in sequence order. It never waits: if the writer has fallen
+     * a whole queue behind, the message is not logged.
+     *
+     * @param frame    The encoded message.
+     * @param isPublic Whether the message went to everyone.
+     * @return False if the message will not be logged, because the queue
+     * is full or the log has failed or is closing.
+     */
+    public boolean append(ChatNotification.Frame frame, boolean isPublic) {
+        return !failed && !closing && queue.offer(new Entry(frame, isPublic));
+    }
+
+    /**
+     * Reads public messages from the log. Only messages the writer thread
+     * has written are seen.
+     *
+     * @param from The first sequence number wanted.
+     * @param max  The largest number of messages wanted.
+     * @return The messages, oldest first.
+     */
+    public List<ChatNotification.Frame> read(long from, int max) {
+        List<ChatNotification.Frame> out = new ArrayList<>();
+        Long base = files.floorKey(from);
+        if (base == null) {
+            base = files.firstKey();
+        }
+        for (Long key : files.tailMap(base).keySet()) {
+            if (out.size() >= max) {
+                break;
+            }
+            segment(key).read(from, max, out);
+        }
+        return out;
+    }
+
+    /**
+     * Writes what is queued, forces it to disk unless the policy is NEVER,
+     * and stops the writer thread.
+     */
+    public void close() {
+        closing = true;
+        try {
+            writer.join();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * This is where the writer thread spends its time.
+     */
+    public void run() {
+        List<Entry> batch = new ArrayList<>();
+        long lastSync = System.nanoTime();
+        boolean dirty = false;
+        try {
+            while (!closing || !queue.isEmpty()) {
+                Entry first = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, MAX_DRAIN);
+                    for (Entry entry : batch) {
+                        write(entry);
+                    }
+                    batch.clear();
+                    dirty = true;
+                }
+                if (dirty && (fsyncPolicy == FsyncPolicy.ALWAYS
+                        || fsyncPolicy == FsyncPolicy.PERIODIC
+                        && (first == null || System.nanoTime() - lastSync >= fsyncNanos))) {
+                    active.force();
+                    lastSync = System.nanoTime();
+                    dirty = false;
+                }
+            }
+            if (dirty && fsyncPolicy != FsyncPolicy.NEVER) {
+                active.force();
+            }
+        } catch (InterruptedException ie) {
+            // Closing.
+        } catch (Throwable t) {
+            // Not only IOException: a full disk shows up as an InternalError
+            // when a write touches a page of the sparse segment that cannot
+            // be backed, and a bug as a RuntimeException. The writer is
+            // gone either way, so nothing may be queued for it any more.
+            failed = true;
+            queue.clear();
+            t.printStackTrace();
+            System.out.println("Message log failed; messages are no longer logged.");
+        }
+    }
+
+    /**
+     * Writes one message, starting a new segment if the current one is
+     * full. A message larger than a segment gets a segment of its own.
+     */
+    private void write(Entry entry) throws IOException {
+        if (!active.append(entry.frame, entry.isPublic)) {
+            if (fsyncPolicy != FsyncPolicy.NEVER) {
+                active.force();
+            }
+            int size = Math.max(segmentSize,
+                    LogSegment.HEADER_SIZE + LogSegment.RECORD_HEADER_SIZE + entry.frame.getBytes().length);
+            addSegment(LogSegment.create(directory, entry.frame.getSequenceNumber(), size));
+            active.append(entry.frame, entry.isPublic);
+        }
+    }
+
+    private void addSegment(LogSegment segment) {
+        segments.put(segment.getBase(), segment);
+        files.put(segment.getBase(), new File(directory, LogSegment.nameOf(segment.getBase()) + LogSegment.SUFFIX));
+        active = segment;
+    }
+
+    /**
+     * Returns a segment, mapping it on first use.
+     */
+    private LogSegment segment(long base) {
+        LogSegment segment = segments.get(base);
+        if (segment == null) {
+            synchronized (segments) {
+                segment = segments.get(base);
+                if (segment == null) {
+                    try {
+                        segment = LogSegment.open(files.get(base));
+                    } catch (IOException iox) {
+                        throw new IllegalStateException(iox);
+                    }
+                    segments.put(base, segment);
+                }
+            }
+        }
+        return segment;
+    }
+}
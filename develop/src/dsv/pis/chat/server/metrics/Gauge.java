@@ -0,0 +1,9 @@
+package dsv.pis.chat.server.metrics;
+
+/**
+ * A value that is read when the metrics are, such as the length of a
+ * queue, instead of being counted as it changes.
+ */
+public interface Gauge {
+    long value();
+}
@@ -0,0 +1,102 @@
+package dsv.pis.chat.server.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of durations in nanoseconds that many threads can record
+ * into without a lock. The buckets are log-linear: sixteen per power of
+ * two, so a percentile is within about six percent of the true value.
+ * Recording is an atomic increment of one bucket, plus a compare-and-set
+ * in the rare case of a new maximum.
+ */
+public class LatencyHistogram {
+    private static final int SUB = 16;
+    private static final int SUB_BITS = 4;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(64 * SUB);
+    private final AtomicLong max = new AtomicLong();
+
+    private static int index(long v) {
+        if (v < SUB) {
+            return (int) Math.max(0, v);
+        }
+        int exp = 63 - Long.numberOfLeadingZeros(v);
+        return (exp - SUB_BITS + 1) * SUB + (int) ((v >>> (exp - SUB_BITS)) & (SUB - 1));
+    }
+
+    private static long valueAt(int index) {
+        if (index < SUB) {
+            return index;
+        }
+        int exp = index / SUB + SUB_BITS - 1;
+        return ((long) (SUB + index % SUB)) << (exp - SUB_BITS);
+    }
+
+    /**
+     * @param nanos A duration in nanoseconds.
+     */
+    public void record(long nanos) {
+        buckets.getAndIncrement(index(nanos));
+        long m = max.get();
+        while (nanos > m && !max.compareAndSet(m, nanos)) {
+            m = max.get();
+        }
+    }
+
+    /**
+     * @return A copy of the histogram as it is now.
+     */
+    public Snapshot snapshot() {
+        long[] counts = new long[buckets.length()];
+        long count = 0;
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = buckets.get(i);
+            count += counts[i];
+        }
+        return new Snapshot(counts, count, max.get());
+    }
+
+    /**
+     * A histogram that no longer changes, for reading percentiles.
+     */
+    public static class Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long max;
+
+        private Snapshot(long[] counts, long count, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        /**
+         * @param q The quantile, between 0 and 1.
+         * @return The duration in nanoseconds below which that part of
+         * the recorded durations lie, or 0 if nothing was recorded.
+         */
+        public long percentile(double q) {
+            if (count == 0) {
+                return 0;
+            }
+            long wanted = Math.max(1, (long) Math.ceil(q * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= wanted) {
+                    return Math.min(valueAt(i), max);
+                }
+            }
+            return max;
+        }
+    }
+}
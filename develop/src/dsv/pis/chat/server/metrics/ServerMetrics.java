@@ -0,0 +1,329 @@
+package dsv.pis.chat.server.metrics;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The throughput and latency figures of a ChatServer. The server records
+ * into it from its producer, distribution and delivery threads; recording
+ * takes no lock. It is registered as an MBean so that the figures can be
+ * watched with jconsole or any other JMX client, and the stats command of
+ * the server prints report().
+ */
+public class ServerMetrics implements ServerMetricsMBean {
+    private final StripedCounter messagesPosted = new StripedCounter();
+    private final StripedCounter framesDelivered = new StripedCounter();
+    private final StripedCounter notifyCalls = new StripedCounter();
+    private final StripedCounter failedNotifies = new StripedCounter();
+
+    // What the overflow policies did to full outboxes.
+    private final StripedCounter droppedOldest = new StripedCounter();
+    private final StripedCounter droppedNewest = new StripedCounter();
+    private final StripedCounter coalesced = new StripedCounter();
+    private final StripedCounter laggingDisconnects = new StripedCounter();
+
+    // Messages exchanged with federated peers.
+    private final StripedCounter relayedIn = new StripedCounter();
+    private final StripedCounter relayedOut = new StripedCounter();
+    private final StripedCounter relayDuplicates = new StripedCounter();
+    private final StripedCounter relayDropped = new StripedCounter();
+
+    // Messages left out of the log, which fell behind or failed.
+    private final StripedCounter logDropped = new StripedCounter();
+
+    // Messages refused by the rate limits.
+    private final StripedCounter clientRateLimited = new StripedCounter();
+    private final StripedCounter serverRateLimited = new StripedCounter();
+
+    /**
+     * From the moment a message is posted to the moment a notify() that
+     * carries it returns, once per recipient.
+     */
+    private final LatencyHistogram deliveryLatency = new LatencyHistogram();
+
+    /**
+     * The time taken by one notify() call.
+     */
+    private final LatencyHistogram notifyTime = new LatencyHistogram();
+
+    /**
+     * From the moment a message is posted on its origin server to the
+     * moment a relay of it arrives here, by the clocks of the two servers.
+     */
+    private final LatencyHistogram relayLatency = new LatencyHistogram();
+
+    private final Gauge queueDepth;
+    private final Gauge outboxDepth;
+    private final Gauge clients;
+
+    /**
+     * @param queueDepth  The number of messages waiting for the
+     *                    distribution thread.
+     * @param outboxDepth The number of frames waiting in the outboxes of
+     *                    all clients.
+     * @param clients     The number of registered clients.
+     */
+    public ServerMetrics(Gauge queueDepth, Gauge outboxDepth, Gauge clients) {
+        this.queueDepth = queueDepth;
+        this.outboxDepth = outboxDepth;
+        this.clients = clients;
+    }
+
+    /**
+     * Counts a message accepted for distribution.
+     */
+    public void messagePosted() {
+        messagesPosted.increment();
+    }
+
+    /**
+     * Records a notify() call that returned.
+     *
+     * @param frames  The number of messages it carried.
+     * @param started When the call started, by System.nanoTime().
+     * @param ended   When the call returned, by System.nanoTime().
+     */
+    public void notified(int frames, long started, long ended) {
+        notifyCalls.increment();
+        framesDelivered.add(frames);
+        notifyTime.record(ended - started);
+    }
+
+    /**
+     * Records the delivery of one message to one client.
+     *
+     * @param latencyNanos The time since the message was posted.
+     */
+    public void delivered(long latencyNanos) {
+        deliveryLatency.record(latencyNanos);
+    }
+
+    /**
+     * Counts a notify() call that failed.
+     */
+    public void notifyFailed() {
+        failedNotifies.increment();
+    }
+
+    /**
+     * @param frames The number of the oldest waiting messages discarded.
+     */
+    public void droppedOldest(int frames) {
+        droppedOldest.add(frames);
+    }
+
+    /**
+     * Counts a new message not queued for a full outbox.
+     */
+    public void droppedNewest() {
+        droppedNewest.increment();
+    }
+
+    /**
+     * @param frames The number of waiting messages replaced by a notice.
+     */
+    public void coalesced(int frames) {
+        coalesced.add(frames);
+    }
+
+    /**
+     * Counts a client disconnected for lagging too long.
+     */
+    public void laggingDisconnect() {
+        laggingDisconnects.increment();
+    }
+
+    /**
+     * Records a new message relayed by a peer.
+     *
+     * @param ageMillis The time since it was posted on its origin server.
+     */
+    public void relayedIn(long ageMillis) {
+        relayedIn.increment();
+        relayLatency.record(TimeUnit.MILLISECONDS.toNanos(ageMillis));
+    }
+
+    /**
+     * Counts a relayed message this server had seen before.
+     */
+    public void relayDuplicate() {
+        relayDuplicates.increment();
+    }
+
+    /**
+     * @param messages The number of messages sent to a peer.
+     */
+    public void relayedOut(int messages) {
+        relayedOut.add(messages);
+    }
+
+    /**
+     * @param messages The number of messages that could not be sent to a
+     *                 peer.
+     */
+    public void relayDropped(int messages) {
+        relayDropped.add(messages);
+    }
+
+    /**
+     * Counts a message left out of the log.
+     */
+    public void logDropped() {
+        logDropped.increment();
+    }
+
+    /**
+     * @param messages The number of messages of a client refused for
+     *                 going over its rate.
+     */
+    public void clientRateLimited(int messages) {
+        clientRateLimited.add(messages);
+    }
+
+    /**
+     * Counts a message of the server itself not sent for going over the
+     * server's rate.
+     */
+    public void serverRateLimited() {
+        serverRateLimited.increment();
+    }
+
+    public long getMessagesPosted() {
+        return messagesPosted.sum();
+    }
+
+    public long getFramesDelivered() {
+        return framesDelivered.sum();
+    }
+
+    public long getNotifyCalls() {
+        return notifyCalls.sum();
+    }
+
+    public long getFailedNotifies() {
+        return failedNotifies.sum();
+    }
+
+    public long getDroppedOldest() {
+        return droppedOldest.sum();
+    }
+
+    public long getDroppedNewest() {
+        return droppedNewest.sum();
+    }
+
+    public long getCoalesced() {
+        return coalesced.sum();
+    }
+
+    public long getLaggingDisconnects() {
+        return laggingDisconnects.sum();
+    }
+
+    public long getLogDropped() {
+        return logDropped.sum();
+    }
+
+    public long getClientRateLimited() {
+        return clientRateLimited.sum();
+    }
+
+    public long getServerRateLimited() {
+        return serverRateLimited.sum();
+    }
+
+    public long getRelayedIn() {
+        return relayedIn.sum();
+    }
+
+    public long getRelayedOut() {
+        return relayedOut.sum();
+    }
+
+    public long getRelayDuplicates() {
+        return relayDuplicates.sum();
+    }
+
+    public long getRelayDropped() {
+        return relayDropped.sum();
+    }
+
+    public long getRelayLatencyP50() {
+        return micros(relayLatency.snapshot().percentile(0.5));
+    }
+
+    public long getRelayLatencyP99() {
+        return micros(relayLatency.snapshot().percentile(0.99));
+    }
+
+    public long getQueueDepth() {
+        return queueDepth.value();
+    }
+
+    public long getOutboxDepth() {
+        return outboxDepth.value();
+    }
+
+    public long getClients() {
+        return clients.value();
+    }
+
+    public long getDeliveryLatencyP50() {
+        return micros(deliveryLatency.snapshot().percentile(0.5));
+    }
+
+    public long getDeliveryLatencyP99() {
+        return micros(deliveryLatency.snapshot().percentile(0.99));
+    }
+
+    public long getDeliveryLatencyP999() {
+        return micros(deliveryLatency.snapshot().percentile(0.999));
+    }
+
+    public long getDeliveryLatencyMax() {
+        return micros(deliveryLatency.snapshot().getMax());
+    }
+
+    public long getNotifyTimeP50() {
+        return micros(notifyTime.snapshot().percentile(0.5));
+    }
+
+    public long getNotifyTimeP99() {
+        return micros(notifyTime.snapshot().percentile(0.99));
+    }
+
+    public long getNotifyTimeMax() {
+        return micros(notifyTime.snapshot().getMax());
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    public String report() {
+        LatencyHistogram.Snapshot latency = deliveryLatency.snapshot();
+        LatencyHistogram.Snapshot notify = notifyTime.snapshot();
+        return "Messages posted     : " + getMessagesPosted() + "\n"
+                + "Messages delivered  : " + getFramesDelivered() + " in " + getNotifyCalls() + " notify() calls\n"
+                + "Failed notify()     : " + getFailedNotifies() + "\n"
+                + "Full outboxes       : " + getDroppedOldest() + " oldest dropped, " + getDroppedNewest()
+                + " newest dropped, " + getCoalesced() + " coalesced, " + getLaggingDisconnects()
+                + " clients disconnected\n"
+                + "Rate limited        : " + getClientRateLimited() + " client messages, "
+                + getServerRateLimited() + " server messages\n"
+                + "Relayed messages    : " + getRelayedIn() + " in, " + getRelayedOut() + " out, "
+                + getRelayDuplicates() + " duplicates, " + getRelayDropped() + " dropped\n"
+                + "Not logged          : " + getLogDropped() + " messages\n"
+                + "Clients             : " + getClients() + "\n"
+                + "Queue depth         : " + getQueueDepth() + " messages, "
+                + getOutboxDepth() + " waiting in outboxes\n"
+                + "Delivery latency us : " + percentiles(latency) + "\n"
+                + "notify() time us    : " + percentiles(notify) + "\n"
+                + "Relay latency us    : " + percentiles(relayLatency.snapshot());
+    }
+
+    private static String percentiles(LatencyHistogram.Snapshot s) {
+        return "p50 " + micros(s.percentile(0.5)) + ", p90 " + micros(s.percentile(0.9))
+                + ", p99 " + micros(s.percentile(0.99)) + ", p99.9 " + micros(s.percentile(0.999))
+                + ", max " + micros(s.getMax());
+    }
+}
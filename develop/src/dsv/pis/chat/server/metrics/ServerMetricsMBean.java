@@ -0,0 +1,66 @@
+package dsv.pis.chat.server.metrics;
+
+/**
+ * The management interface of ServerMetrics. Durations are in
+ * microseconds.
+ */
+public interface ServerMetricsMBean {
+    long getMessagesPosted();
+
+    long getFramesDelivered();
+
+    long getNotifyCalls();
+
+    long getFailedNotifies();
+
+    long getDroppedOldest();
+
+    long getDroppedNewest();
+
+    long getCoalesced();
+
+    long getLaggingDisconnects();
+
+    long getClientRateLimited();
+
+    long getServerRateLimited();
+
+    long getRelayedIn();
+
+    long getRelayedOut();
+
+    long getRelayDuplicates();
+
+    long getRelayDropped();
+
+    long getLogDropped();
+
+    long getRelayLatencyP50();
+
+    long getRelayLatencyP99();
+
+    long getQueueDepth();
+
+    long getOutboxDepth();
+
+    long getClients();
+
+    long getDeliveryLatencyP50();
+
+    long getDeliveryLatencyP99();
+
+    long getDeliveryLatencyP999();
+
+    long getDeliveryLatencyMax();
+
+    long getNotifyTimeP50();
+
+    long getNotifyTimeP99();
+
+    long getNotifyTimeMax();
+
+    /**
+     * @return All of the above as text, as the stats command prints it.
+     */
+    String report();
+}
@@ -0,0 +1,48 @@
+package dsv.pis.chat.server.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter for many writing threads, in the manner of LongAdder (which
+ * needs Java 8). Each thread adds to one of several cells, chosen by its
+ * thread id, so threads seldom contend for the same cache line; reading
+ * sums the cells. The sum is exact once the writers have stopped, and
+ * close enough while they run.
+ */
+public class StripedCounter {
+    /**
+     * The cells lie this many longs apart, a cache line of 64 bytes.
+     */
+    private static final int PADDING = 8;
+
+    private final AtomicLongArray cells;
+    private final int mask;
+
+    public StripedCounter() {
+        int stripes = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors()) * 2 - 1) << 1;
+        cells = new AtomicLongArray(stripes * PADDING);
+        mask = stripes - 1;
+    }
+
+    private int cell() {
+        long id = Thread.currentThread().getId();
+        // Spread consecutive thread ids over the stripes.
+        return ((int) (id * 0x9E3779B97F4A7C15L >>> 40) & mask) * PADDING;
+    }
+
+    public void increment() {
+        cells.getAndIncrement(cell());
+    }
+
+    public void add(long n) {
+        cells.getAndAdd(cell(), n);
+    }
+
+    public long sum() {
+        long sum = 0;
+        for (int i = 0; i < cells.length(); i += PADDING) {
+            sum += cells.get(i);
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,375 @@
+package dsv.pis.chat.server.nio;
+
+import dsv.pis.chat.server.ChatNotification;
+import dsv.pis.chat.server.ChatServerInterface;
+import dsv.pis.chat.server.HistoryPage;
+import dsv.pis.chat.server.RelayedMessage;
+import net.jini.core.event.RemoteEvent;
+import net.jini.core.event.RemoteEventListener;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.rmi.RemoteException;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The client side of the TCP transport. It implements ChatServerInterface
+ * so a ChatClient can use it in place of the Jini service object. Calls
+ * block until their reply arrives; events are passed to the listener given
+ * to register() on the stub's reader thread. Several calls may be in
+ * flight at once, and post() does not wait at all.
+ */
+public class NioChatServerStub implements ChatServerInterface, Runnable {
+    /**
+     * How long a call waits for its reply.
+     */
+    private static final long CALL_TIMEOUT_MILLIS = 30000;
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 10000;
+
+    /**
+     * A call waiting for its reply.
+     */
+    private static class Call {
+        private byte status;
+        private ByteBuffer result;
+        private boolean done = false;
+
+        synchronized void complete(byte status, ByteBuffer result) {
+            this.status = status;
+            this.result = result;
+            this.done = true;
+            notifyAll();
+        }
+
+        synchronized boolean await(long millis) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + millis;
+            long left = millis;
+            while (!done && left > 0) {
+                wait(left);
+                left = deadline - System.currentTimeMillis();
+            }
+            return done;
+        }
+    }
+
+    private final String address;
+    private final Socket socket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private final AtomicInteger nextCallId = new AtomicInteger();
+    private final ConcurrentMap<Integer, Call> calls = new ConcurrentHashMap<>();
+    private volatile RemoteEventListener listener = null;
+    private volatile boolean closed = false;
+
+    /**
+     * Connects to a chat server's TCP transport.
+     *
+     * @param host The server host.
+     * @param port The server's TCP port.
+     */
+    public NioChatServerStub(String host, int port) throws IOException {
+        address = host + ":" + port;
+        socket = new Socket();
+        socket.setTcpNoDelay(true);
+        socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        Thread t = new Thread(this, "nio-stub-reader");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    // In interface ChatServerInterface
+
+    public String say(UUID uuid, String msg) throws IOException {
+        return getString(invoke(NioProtocol.SAY, uuid, msg));
+    }
+
+    // In interface ChatServerInterface
+
+    public void post(UUID uuid, long firstId, String[] msgs) throws RemoteException {
+        send(NioProtocol.POST, uuid, firstId, msgs);
+    }
+
+    // In interface ChatServerInterface
+
+    public String getName() throws RemoteException {
+        return getString(invoke(NioProtocol.GET_NAME, null));
+    }
+
+    // In interface ChatServerInterface
+
+    public void register(UUID uuid, RemoteEventListener rel) throws RemoteException {
+        listener = rel;
+        invoke(NioProtocol.REGISTER, uuid);
+    }
+
+    // In interface ChatServerInterface
+
+    public void unregister(UUID uuid) throws RemoteException {
+        invoke(NioProtocol.UNREGISTER, uuid);
+    }
+
+    // In interface ChatServerInterface
+
+    public void setName(UUID uuid, String name) throws RemoteException {
+        invoke(NioProtocol.SET_NAME, uuid, name);
+    }
+
+    // In interface ChatServerInterface
+
+    public void listClients(UUID uuid) throws RemoteException {
+        invoke(NioProtocol.LIST_CLIENTS, uuid);
+    }
+
+    // In interface ChatServerInterface
+
+    public HistoryPage getHistory(UUID uuid, long from, int max) throws RemoteException {
+        ByteBuffer result = invoke(NioProtocol.GET_HISTORY, uuid, from, max);
+        long oldest = result.getLong();
+        long next = result.getLong();
+        try {
+            return new HistoryPage(NioProtocol.getFrames(result), oldest, next);
+        } catch (IOException iox) {
+            throw new RemoteException("Bad reply from " + address, iox);
+        }
+    }
+
+    // In interface ChatServerInterface
+
+    public void joinRoom(UUID uuid, String room) throws RemoteException {
+        invoke(NioProtocol.JOIN_ROOM, uuid, room);
+    }
+
+    // In interface ChatServerInterface
+
+    public void leaveRoom(UUID uuid, String room) throws RemoteException {
+        invoke(NioProtocol.LEAVE_ROOM, uuid, room);
+    }
+
+    // In interface ChatServerInterface
+
+    public String sayTo(UUID uuid, String room, String msg) throws IOException {
+        return getString(invoke(NioProtocol.SAY_TO, uuid, room, msg));
+    }
+
+    // In interface ChatServerInterface
+
+    public void listRooms(UUID uuid) throws RemoteException {
+        invoke(NioProtocol.LIST_ROOMS, uuid);
+    }
+
+    // In interface ChatServerInterface
+
+    public UUID getServerId() throws RemoteException {
+        return UUID.fromString(getString(invoke(NioProtocol.SERVER_ID, null)));
+    }
+
+    // In interface ChatServerInterface
+
+    public void relay(UUID peer, RelayedMessage[] msgs) throws RemoteException {
+        send(NioProtocol.RELAY, peer, (Object) msgs);
+    }
+
+    /**
+     * Sends a request that is not replied to.
+     *
+     * @param op   The operation.
+     * @param uuid The client or server id argument.
+     * @param args The other arguments, as for write().
+     */
+    private void send(byte op, UUID uuid, Object... args) throws RemoteException {
+        if (closed) {
+            throw new RemoteException("Connection to " + address + " is closed");
+        }
+        try {
+            write(op, nextCallId.incrementAndGet(), uuid, args);
+        } catch (IOException iox) {
+            throw new RemoteException("Call to " + address + " failed", iox);
+        }
+    }
+
+    /**
+     * Sends a request and waits for its reply.
+     *
+     * @param op   The operation.
+     * @param uuid The client id argument, or null if the operation has none.
+     * @param args The other arguments: strings, longs or integers.
+     * @return The result, positioned after the status.
+     */
+    private ByteBuffer invoke(byte op, UUID uuid, Object... args) throws RemoteException {
+        if (closed) {
+            throw new RemoteException("Connection to " + address + " is closed");
+        }
+        int callId = nextCallId.incrementAndGet();
+        Call call = new Call();
+        calls.put(callId, call);
+        try {
+            write(op, callId, uuid, args);
+            if (!call.await(CALL_TIMEOUT_MILLIS)) {
+                throw new RemoteException("No reply from " + address);
+            }
+        } catch (IOException iox) {
+            throw new RemoteException("Call to " + address + " failed", iox);
+        } catch (InterruptedException iex) {
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Interrupted waiting for " + address, iex);
+        } finally {
+            calls.remove(callId);
+        }
+        if (call.status != NioProtocol.OK) {
+            throw new RemoteException(getString(call.result));
+        }
+        return call.result;
+    }
+
+    /**
+     * Writes a request to the server.
+     *
+     * @param op     The operation.
+     * @param callId The id the reply will carry.
+     * @param uuid   The client id argument, or null if the operation has none.
+     * @param args   The other arguments: strings, longs, integers, or
+     *               arrays of strings or relayed messages, which are
+     *               written as a count followed by the elements.
+     */
+    private void write(byte op, int callId, UUID uuid, Object... args) throws IOException {
+        ByteArrayOutputStream request = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(request);
+        data.writeByte(op);
+        data.writeInt(callId);
+        if (uuid != null) {
+            data.writeLong(uuid.getMostSignificantBits());
+            data.writeLong(uuid.getLeastSignificantBits());
+        }
+        for (Object arg : args) {
+            if (arg instanceof String) {
+                writeString(data, (String) arg);
+            } else if (arg instanceof String[]) {
+                data.writeInt(((String[]) arg).length);
+                for (String s : (String[]) arg) {
+                    writeString(data, s);
+                }
+            } else if (arg instanceof RelayedMessage[]) {
+                data.writeInt(((RelayedMessage[]) arg).length);
+                for (RelayedMessage m : (RelayedMessage[]) arg) {
+                    data.writeLong(m.getOrigin().getMostSignificantBits());
+                    data.writeLong(m.getOrigin().getLeastSignificantBits());
+                    data.writeLong(m.getSequence());
+                    data.writeLong(m.getPostedMillis());
+                    data.writeInt(m.getHops());
+                    writeString(data, m.getText());
+                }
+            } else if (arg instanceof Long) {
+                data.writeLong((Long) arg);
+            } else {
+                data.writeInt((Integer) arg);
+            }
+        }
+        synchronized (out) {
+            out.writeInt(request.size());
+            request.writeTo(out);
+            out.flush();
+        }
+    }
+
+    private static void writeString(DataOutputStream data, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        data.writeInt(bytes.length);
+        data.write(bytes);
+    }
+
+    /**
+     * @param result A call result.
+     * @return The string it holds, or null if it is empty.
+     */
+    private String getString(ByteBuffer result) throws RemoteException {
+        try {
+            return result.hasRemaining() ? NioProtocol.getString(result) : null;
+        } catch (IOException iox) {
+            throw new RemoteException("Bad reply from " + address, iox);
+        }
+    }
+
+    /**
+     * The reader thread: completes calls and passes events on.
+     */
+    public void run() {
+        try {
+            while (!closed) {
+                int length = in.readInt();
+                if (length < 1 || length > NioProtocol.MAX_FRAME) {
+                    throw new IOException("Bad frame length " + length);
+                }
+                byte[] frame = new byte[length];
+                in.readFully(frame);
+                ByteBuffer buffer = ByteBuffer.wrap(frame);
+                byte op = buffer.get();
+                if (op == NioProtocol.REPLY) {
+                    Call call = calls.get(buffer.getInt());
+                    if (call != null) {
+                        call.complete(buffer.get(), buffer.slice());
+                    }
+                } else if (op == NioProtocol.EVENT) {
+                    byte[] bytes = new byte[buffer.remaining()];
+                    buffer.get(bytes);
+                    deliver(ChatNotification.Frame.fromBytes(bytes));
+                } else if (op == NioProtocol.BATCH) {
+                    deliver(new ChatNotification.Batch(NioProtocol.getFrames(buffer)));
+                }
+            }
+        } catch (EOFException eof) {
+            // The server closed the connection.
+        } catch (IOException iox) {
+            if (!closed) {
+                System.out.println("[Connection to " + address + " lost: " + iox.getMessage() + "]");
+            }
+        }
+        close();
+    }
+
+    private void deliver(RemoteEvent event) {
+        RemoteEventListener rel = listener;
+        if (rel != null) {
+            try {
+                rel.notify(event);
+            } catch (Exception ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Closes the connection. Calls in flight fail with RemoteException.
+     */
+    public void close() {
+        closed = true;
+        try {
+            socket.close();
+        } catch (IOException iox) {
+        }
+        for (Call call : calls.values()) {
+            ByteBuffer error = ByteBuffer.allocate(64);
+            NioProtocol.putString(error, "Connection closed");
+            error.flip();
+            call.complete(NioProtocol.ERROR, error);
+        }
+    }
+
+    public String toString() {
+        return "ChatServer at tcp://" + address;
+    }
+}
@@ -0,0 +1,558 @@
+package dsv.pis.chat.server.nio;
+
+import dsv.pis.chat.server.ChatNotification;
+import dsv.pis.chat.server.ChatServerInterface;
+import dsv.pis.chat.server.HistoryPage;
+import dsv.pis.chat.server.RelayedMessage;
+import net.jini.core.event.RemoteEvent;
+import net.jini.core.event.RemoteEventListener;
+import net.jini.core.event.UnknownEventException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.rmi.RemoteException;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The server side of one TCP connection. The reactor reads and frames its
+ * requests; a worker of the transport passes them to the chat server, one
+ * at a time and in the order they arrived, so a request that waits, for a
+ * full message queue or the log, holds up this connection only and not
+ * the others of the reactor. It is also the RemoteEventListener the chat
+ * server delivers to, so notify() only has to queue the encoded message for
+ * the reactor to write. A client whose unwritten output grows beyond
+ * MAX_QUEUED_BYTES is considered dead, just like an RMI client whose
+ * notify() fails.
+ */
+class NioConnection implements RemoteEventListener {
+    /**
+     * The most output a connection may have waiting to be written.
+     */
+    static final long MAX_QUEUED_BYTES = 8 << 20;
+
+    private static final int READ_BUFFER_SIZE = 8 << 10;
+
+    private static final int MAX_GATHER = 64;
+
+    /**
+     * The most requests of one connection waiting for a worker. Beyond it
+     * the reactor stops reading the connection until half of them are
+     * done, so a client that sends faster than the server takes its
+     * requests is held up by TCP instead of filling the heap.
+     */
+    static final int MAX_PENDING_REQUESTS = 256;
+
+    /**
+     * The most requests a worker handles in one go before it lets the
+     * other connections have their turn.
+     */
+    private static final int MAX_HANDLED_PER_TURN = 64;
+
+    private final SocketChannel channel;
+    private final NioReactor reactor;
+    private final ChatServerInterface server;
+    private final SessionHost sessions;
+    private final Executor workers;
+
+    /**
+     * Framed requests waiting for a worker, each positioned at its
+     * operation.
+     */
+    private final Queue<ByteBuffer> requests = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingRequests = new AtomicInteger();
+
+    /**
+     * True while a worker owns the requests of this connection. Only the
+     * owner handles them, which keeps them in order.
+     */
+    private final AtomicBoolean handling = new AtomicBoolean();
+
+    /**
+     * Whether the reactor has stopped reading because too many requests
+     * are waiting. Used on the reactor thread only.
+     */
+    private boolean readPaused = false;
+
+    private final Runnable handler = new Runnable() {
+        public void run() {
+            handleQueued();
+        }
+    };
+
+    private SelectionKey key;
+    private ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+    /**
+     * Whole frames queued by any thread, each one an array of buffers.
+     */
+    private final Queue<ByteBuffer[]> out = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Buffers taken from out that the reactor is writing.
+     */
+    private final ArrayDeque<ByteBuffer> writing = new ArrayDeque<>();
+
+    private final AtomicBoolean writeRequested = new AtomicBoolean();
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    /**
+     * The handles of the sessions registered over this connection, by
+     * client. Only these sessions are ended when it closes: a client
+     * that has registered again elsewhere has a new session, which its
+     * old connection must leave alone.
+     */
+    private final ConcurrentMap<UUID, Integer> registered = new ConcurrentHashMap<>();
+
+    /**
+     * @param channel  The accepted connection.
+     * @param reactor  The reactor that reads and writes it.
+     * @param server   The chat server the requests go to.
+     * @param sessions The same server, which registers the clients of
+     *                 this connection.
+     * @param workers  The threads that carry out the requests.
+     */
+    NioConnection(SocketChannel channel, NioReactor reactor, ChatServerInterface server, SessionHost sessions,
+                  Executor workers) {
+        this.channel = channel;
+        this.reactor = reactor;
+        this.server = server;
+        this.sessions = sessions;
+        this.workers = workers;
+    }
+
+    SocketChannel getChannel() {
+        return channel;
+    }
+
+    void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    // In interface RemoteEventListener
+
+    public void notify(RemoteEvent rev) throws UnknownEventException, RemoteException {
+        if (rev instanceof ChatNotification.Frame) {
+            byte[] bytes = ((ChatNotification.Frame) rev).getBytes();
+            ByteBuffer header = ByteBuffer.allocate(5);
+            header.putInt(1 + bytes.length).put(NioProtocol.EVENT).flip();
+            send(header, ByteBuffer.wrap(bytes));
+        } else if (rev instanceof ChatNotification.Batch) {
+            ChatNotification.Frame[] frames = ((ChatNotification.Batch) rev).getFrames();
+            int length = 1 + 4;
+            for (ChatNotification.Frame frame : frames) {
+                length += 4 + frame.getBytes().length;
+            }
+            ByteBuffer[] buffers = new ByteBuffer[1 + 2 * frames.length];
+            ByteBuffer header = ByteBuffer.allocate(9);
+            header.putInt(length).put(NioProtocol.BATCH).putInt(frames.length).flip();
+            buffers[0] = header;
+            for (int i = 0; i < frames.length; i++) {
+                byte[] bytes = frames[i].getBytes();
+                ByteBuffer frameLength = ByteBuffer.allocate(4);
+                frameLength.putInt(bytes.length).flip();
+                buffers[1 + 2 * i] = frameLength;
+                buffers[2 + 2 * i] = ByteBuffer.wrap(bytes);
+            }
+            send(buffers);
+        } else {
+            throw new UnknownEventException("Unsupported event " + rev.getClass().getName());
+        }
+    }
+
+    /**
+     * Queues a frame for writing. May be called from any thread.
+     *
+     * @param buffers The frame, in one or more buffers.
+     */
+    void send(ByteBuffer... buffers) throws RemoteException {
+        if (closed.get()) {
+            throw new RemoteException("Connection closed");
+        }
+        long size = 0;
+        for (ByteBuffer b : buffers) {
+            size += b.remaining();
+        }
+        if (queuedBytes.addAndGet(size) > MAX_QUEUED_BYTES) {
+            close();
+            throw new RemoteException("Client is not reading its connection");
+        }
+        out.add(buffers);
+        if (writeRequested.compareAndSet(false, true)) {
+            reactor.requestWrite(this);
+        }
+    }
+
+    /**
+     * Called on the reactor thread after send() asked for a write.
+     */
+    void onWriteRequested() {
+        if (key == null || !key.isValid()) {
+            return;
+        }
+        try {
+            onWritable();
+        } catch (IOException iox) {
+            close();
+        }
+    }
+
+    /**
+     * Writes as much queued output as the socket takes. Called on the
+     * reactor thread.
+     */
+    void onWritable() throws IOException {
+        while (true) {
+            ByteBuffer[] frame;
+            while (writing.size() < MAX_GATHER && (frame = out.poll()) != null) {
+                Collections.addAll(writing, frame);
+            }
+            if (writing.isEmpty()) {
+                key.interestOps(readInterest());
+                writeRequested.set(false);
+                if (out.isEmpty() || !writeRequested.compareAndSet(false, true)) {
+                    return;
+                }
+                continue;
+            }
+            ByteBuffer[] gather = writing.toArray(new ByteBuffer[Math.min(writing.size(), MAX_GATHER)]);
+            long written = channel.write(gather, 0, Math.min(gather.length, MAX_GATHER));
+            queuedBytes.addAndGet(-written);
+            while (!writing.isEmpty() && !writing.peekFirst().hasRemaining()) {
+                writing.pollFirst();
+            }
+            if (!writing.isEmpty()) {
+                // The socket is full; continue when it is writable again.
+                key.interestOps(readInterest() | SelectionKey.OP_WRITE);
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return OP_READ, or 0 while reading is paused.
+     */
+    private int readInterest() {
+        return readPaused ? 0 : SelectionKey.OP_READ;
+    }
+
+    /**
+     * Reads what has arrived and hands every complete request to a
+     * worker. Called on the reactor thread.
+     */
+    void onReadable() throws IOException {
+        if (channel.read(in) < 0) {
+            close();
+            return;
+        }
+        frame();
+    }
+
+    /**
+     * Reads again after enough of the waiting requests are done, starting
+     * with those already in the buffer. Called on the reactor thread.
+     */
+    void onResumeRead() {
+        if (!readPaused || key == null || !key.isValid()) {
+            return;
+        }
+        readPaused = false;
+        try {
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            frame();
+        } catch (IOException | CancelledKeyException ex) {
+            close();
+        }
+    }
+
+    /**
+     * Takes the complete requests out of the read buffer, until reading
+     * is paused. Called on the reactor thread.
+     */
+    private void frame() throws IOException {
+        in.flip();
+        while (!readPaused && in.remaining() >= 4) {
+            int length = in.getInt(in.position());
+            if (length < 5 || length > NioProtocol.MAX_FRAME) {
+                throw new IOException("Bad frame length " + length);
+            }
+            if (in.remaining() < 4 + length) {
+                if (in.capacity() < 4 + length) {
+                    ByteBuffer bigger = ByteBuffer.allocate(4 + length);
+                    bigger.put(in);
+                    in = bigger;
+                    return;
+                }
+                break;
+            }
+            // The read buffer is reused, so the worker gets a copy.
+            int end = in.position() + 4 + length;
+            int limit = in.limit();
+            ByteBuffer request = ByteBuffer.allocate(length);
+            in.position(in.position() + 4).limit(end);
+            request.put(in).flip();
+            in.limit(limit);
+            dispatch(request);
+        }
+        in.compact();
+    }
+
+    /**
+     * Queues a request for the workers, and stops reading if too many are
+     * waiting. Called on the reactor thread.
+     */
+    private void dispatch(ByteBuffer request) {
+        requests.add(request);
+        if (pendingRequests.incrementAndGet() >= MAX_PENDING_REQUESTS) {
+            readPaused = true;
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        }
+        if (handling.compareAndSet(false, true)) {
+            runHandler();
+        }
+    }
+
+    /**
+     * Hands the turn to handle this connection's requests to a worker.
+     */
+    private void runHandler() {
+        try {
+            workers.execute(handler);
+        } catch (RejectedExecutionException rex) {
+            // The transport is closing.
+            handling.set(false);
+            close();
+        }
+    }
+
+    /**
+     * Handles waiting requests in order. Called by the worker that owns
+     * the connection's turn; after a number of requests it queues itself
+     * again behind the other connections.
+     */
+    private void handleQueued() {
+        int handled = 0;
+        do {
+            ByteBuffer request;
+            while ((request = requests.poll()) != null) {
+                if (!closed.get()) {
+                    try {
+                        handle(request);
+                    } catch (RemoteException | RuntimeException ex) {
+                        close();
+                    }
+                }
+                if (pendingRequests.decrementAndGet() == MAX_PENDING_REQUESTS / 2) {
+                    reactor.resumeRead(this);
+                }
+                if (++handled == MAX_HANDLED_PER_TURN && !requests.isEmpty()) {
+                    runHandler();
+                    return;
+                }
+            }
+            handling.set(false);
+        } while (!requests.isEmpty() && handling.compareAndSet(false, true));
+    }
+
+    /**
+     * Carries out one request and queues the reply. Called on a worker.
+     *
+     * @param request The request, positioned after the length.
+     */
+    private void handle(ByteBuffer request) throws RemoteException {
+        byte op = request.get();
+        int callId = request.getInt();
+        String result = null;
+        try {
+            switch (op) {
+                case NioProtocol.REGISTER: {
+                    UUID uuid = NioProtocol.getUUID(request);
+                    int handle = sessions.registerSession(uuid, this);
+                    registered.put(uuid, handle);
+                    if (closed.get() && registered.remove(uuid, handle)) {
+                        // Closed meanwhile, after close() ended the others.
+                        sessions.endSession(handle, this);
+                    }
+                    break;
+                }
+                case NioProtocol.UNREGISTER: {
+                    Integer handle = registered.remove(NioProtocol.getUUID(request));
+                    if (handle != null) {
+                        sessions.endSession(handle, this);
+                    }
+                    break;
+                }
+                case NioProtocol.SAY: {
+                    UUID uuid = NioProtocol.getUUID(request);
+                    result = server.say(uuid, NioProtocol.getString(request));
+                    break;
+                }
+                case NioProtocol.SET_NAME: {
+                    UUID uuid = NioProtocol.getUUID(request);
+                    server.setName(uuid, NioProtocol.getString(request));
+                    break;
+                }
+                case NioProtocol.LIST_CLIENTS:
+                    server.listClients(NioProtocol.getUUID(request));
+                    break;
+                case NioProtocol.GET_NAME:
+                    result = server.getName();
+                    break;
+                case NioProtocol.JOIN_ROOM: {
+                    UUID uuid = NioProtocol.getUUID(request);
+                    server.joinRoom(uuid, NioProtocol.getString(request));
+                    break;
+                }
+                case NioProtocol.LEAVE_ROOM: {
+                    UUID uuid = NioProtocol.getUUID(request);
+                    server.leaveRoom(uuid, NioProtocol.getString(request));
+                    break;
+                }
+                case NioProtocol.SAY_TO: {
+                    UUID uuid = NioProtocol.getUUID(request);
+                    String room = NioProtocol.getString(request);
+                    result = server.sayTo(uuid, room, NioProtocol.getString(request));
+                    break;
+                }
+                case NioProtocol.LIST_ROOMS:
+                    server.listRooms(NioProtocol.getUUID(request));
+                    break;
+                case NioProtocol.POST: {
+                    UUID uuid = NioProtocol.getUUID(request);
+                    long firstId = request.getLong();
+                    String[] msgs = new String[NioProtocol.getCount(request, 4)];
+                    for (int i = 0; i < msgs.length; i++) {
+                        msgs[i] = NioProtocol.getString(request);
+                    }
+                    server.post(uuid, firstId, msgs);
+                    return;
+                }
+                case NioProtocol.SERVER_ID:
+                    result = server.getServerId().toString();
+                    break;
+                case NioProtocol.RELAY: {
+                    UUID peer = NioProtocol.getUUID(request);
+                    RelayedMessage[] msgs = new RelayedMessage[NioProtocol.getCount(request, 16 + 8 + 8 + 4 + 4)];
+                    for (int i = 0; i < msgs.length; i++) {
+                        UUID origin = NioProtocol.getUUID(request);
+                        long sequence = request.getLong();
+                        long posted = request.getLong();
+                        int hops = request.getInt();
+                        msgs[i] = new RelayedMessage(origin, sequence, NioProtocol.getString(request), posted, hops);
+                    }
+                    server.relay(peer, msgs);
+                    return;
+                }
+                case NioProtocol.GET_HISTORY: {
+                    UUID uuid = NioProtocol.getUUID(request);
+                    long from = request.getLong();
+                    HistoryPage page = server.getHistory(uuid, from, request.getInt());
+                    ByteBuffer reply = replyBuffer(callId, NioProtocol.OK,
+                            16 + NioProtocol.sizeOf(page.getFrames()));
+                    reply.putLong(page.getOldest()).putLong(page.getNext());
+                    NioProtocol.putFrames(reply, page.getFrames());
+                    reply.flip();
+                    send(reply);
+                    return;
+                }
+                default:
+                    throw new IOException("Unknown operation " + op);
+            }
+        } catch (IOException | RuntimeException ex) {
+            reply(callId, NioProtocol.ERROR, ex.toString());
+            return;
+        }
+        reply(callId, NioProtocol.OK, result);
+    }
+
+    private void reply(int callId, byte status, String result) throws RemoteException {
+        ByteBuffer reply = replyBuffer(callId, status, (result != null) ? NioProtocol.sizeOf(result) : 0);
+        if (result != null) {
+            NioProtocol.putString(reply, result);
+        }
+        reply.flip();
+        send(reply);
+    }
+
+    /**
+     * Allocates a reply and writes its header.
+     *
+     * @param callId The call replied to.
+     * @param status The reply status.
+     * @param size   The size of the result that follows the header.
+     * @return The reply, positioned after the header.
+     */
+    private static ByteBuffer replyBuffer(int callId, byte status, int size) {
+        ByteBuffer reply = ByteBuffer.allocate(4 + 1 + 4 + 1 + size);
+        reply.putInt(reply.capacity() - 4).put(NioProtocol.REPLY).putInt(callId).put(status);
+        return reply;
+    }
+
+    /**
+     * Closes the connection and ends its sessions. May be called
+     * from any thread, any number of times. The socket is closed at once;
+     * the sessions are ended by a worker, since ending one posts a message
+     * and may wait, for a full message queue or, behind a proxy, for the
+     * real server, which a reactor must not do.
+     */
+    void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException iox) {
+        }
+        out.clear();
+        if (registered.isEmpty()) {
+            return;
+        }
+        try {
+            workers.execute(new Runnable() {
+                public void run() {
+                    endSessions();
+                }
+            });
+        } catch (RejectedExecutionException rex) {
+            // The transport is closing and runs no more requests, so this
+            // thread may as well wait.
+            endSessions();
+        }
+    }
+
+    /**
+     * Ends the sessions registered over this connection.
+     */
+    private void endSessions() {
+        for (Map.Entry<UUID, Integer> session : registered.entrySet()) {
+            if (registered.remove(session.getKey(), session.getValue())) {
+                try {
+                    sessions.endSession(session.getValue(), this);
+                } catch (RemoteException rex) {
+                }
+            }
+        }
+    }
+
+    public String toString() {
+        return "tcp:" + channel.socket().getRemoteSocketAddress();
+    }
+}
@@ -0,0 +1,172 @@
+package dsv.pis.chat.server.nio;
+
+import dsv.pis.chat.server.ChatNotification;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+/**
+ * Constants and helpers of the binary protocol spoken by NioTransport and
+ * NioChatServerStub. Every frame is an int length, followed by that many
+ * bytes: an opcode byte and the payload. All numbers are big-endian.
+ * <pre>
+ * request  : length op callId arguments
+ * REPLY    : length REPLY callId status result
+ * EVENT    : length EVENT encoded-message
+ * BATCH    : length BATCH count (length encoded-message)*
+ * </pre>
+ * A POST is not replied to; the server acknowledges each of its messages
+ * with an EVENT or within a BATCH, like any other message. The callId of
+ * a POST is sent but not used. A RELAY, sent by one server to another, is
+ * not replied to either.
+ * A GET_HISTORY reply holds the oldest and next sequence numbers followed
+ * by the messages in the same form as a BATCH.
+ * Strings are an int byte count followed by UTF-8 bytes, UUIDs are two
+ * longs. Encoded messages are the bytes of a ChatNotification.Frame, so the
+ * server writes them to the socket exactly as it encoded them.
+ */
+public final class NioProtocol {
+    /**
+     * The largest frame either side accepts.
+     */
+    public static final int MAX_FRAME = 16 << 20;
+
+    // Requests, client to server. The arguments follow the callId.
+
+    /** uuid */
+    public static final byte REGISTER = 1;
+    /** uuid */
+    public static final byte UNREGISTER = 2;
+    /** uuid text; replies with a string. */
+    public static final byte SAY = 3;
+    /** uuid name */
+    public static final byte SET_NAME = 4;
+    /** uuid */
+    public static final byte LIST_CLIENTS = 5;
+    /** Replies with a string. */
+    public static final byte GET_NAME = 6;
+    /** uuid from(long) max(int); replies with a history page. */
+    public static final byte GET_HISTORY = 7;
+    /** uuid room */
+    public static final byte JOIN_ROOM = 8;
+    /** uuid room */
+    public static final byte LEAVE_ROOM = 9;
+    /** uuid room text; replies with a string. */
+    public static final byte SAY_TO = 10;
+    /** uuid */
+    public static final byte LIST_ROOMS = 11;
+    /** uuid firstId(long) count(int) text*; not replied to. */
+    public static final byte POST = 12;
+    /** Replies with the server id as a string. */
+    public static final byte SERVER_ID = 13;
+    /**
+     * peer count(int) (origin sequence(long) posted(long) hops(int) text)*;
+     * not replied to.
+     */
+    public static final byte RELAY = 14;
+
+    // Server to client.
+
+    public static final byte REPLY = 64;
+    public static final byte EVENT = 65;
+    public static final byte BATCH = 66;
+
+    // Reply status. An error reply carries the message as a string.
+
+    public static final byte OK = 0;
+    public static final byte ERROR = 1;
+
+    private NioProtocol() {
+    }
+
+    public static void putUUID(ByteBuffer buffer, UUID uuid) {
+        buffer.putLong(uuid.getMostSignificantBits());
+        buffer.putLong(uuid.getLeastSignificantBits());
+    }
+
+    public static UUID getUUID(ByteBuffer buffer) {
+        long msb = buffer.getLong();
+        return new UUID(msb, buffer.getLong());
+    }
+
+    /**
+     * @param s A string.
+     * @return The number of bytes putString() writes for it.
+     */
+    public static int sizeOf(String s) {
+        return 4 + s.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    public static void putString(ByteBuffer buffer, String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        buffer.putInt(bytes.length);
+        buffer.put(bytes);
+    }
+
+    /**
+     * Reads a string written by putString().
+     *
+     * @throws IOException If its length runs past the end of the buffer.
+     */
+    public static String getString(ByteBuffer buffer) throws IOException {
+        byte[] bytes = new byte[getCount(buffer, 1)];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads the number of elements that follow. The number comes off the
+     * wire, so it is checked against what the buffer still holds before
+     * anything is allocated for it.
+     *
+     * @param buffer  The buffer.
+     * @param minSize The fewest bytes one element takes.
+     * @return The number.
+     * @throws IOException If the buffer cannot hold that many elements.
+     */
+    public static int getCount(ByteBuffer buffer, int minSize) throws IOException {
+        int count = buffer.getInt();
+        if (count < 0 || count > buffer.remaining() / minSize) {
+            throw new IOException("Bad count " + count + " with " + buffer.remaining() + " bytes left");
+        }
+        return count;
+    }
+
+    /**
+     * @param frames Some frames.
+     * @return The number of bytes putFrames() writes for them.
+     */
+    public static int sizeOf(ChatNotification.Frame[] frames) {
+        int size = 4;
+        for (ChatNotification.Frame frame : frames) {
+            size += 4 + frame.getBytes().length;
+        }
+        return size;
+    }
+
+    /**
+     * Writes a count followed by the length and bytes of each frame.
+     */
+    public static void putFrames(ByteBuffer buffer, ChatNotification.Frame[] frames) {
+        buffer.putInt(frames.length);
+        for (ChatNotification.Frame frame : frames) {
+            buffer.putInt(frame.getBytes().length);
+            buffer.put(frame.getBytes());
+        }
+    }
+
+    /**
+     * Reads frames written by putFrames(). They are decoded on first use.
+     */
+    public static ChatNotification.Frame[] getFrames(ByteBuffer buffer) throws IOException {
+        ChatNotification.Frame[] frames = new ChatNotification.Frame[getCount(buffer, 4)];
+        for (int i = 0; i < frames.length; i++) {
+            byte[] bytes = new byte[getCount(buffer, 1)];
+            buffer.get(bytes);
+            frames[i] = ChatNotification.Frame.fromBytes(bytes);
+        }
+        return frames;
+    }
+}
@@ -0,0 +1,124 @@
+package dsv.pis.chat.server.nio;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * One selector and the thread that runs it. A reactor owns the connections
+ * it has been given: all reading, framing and writing of those
+ * connections happens on its thread, while the requests themselves are
+ * carried out by the workers of the transport. Other threads talk to it
+ * through its task queue.
+ */
+class NioReactor implements Runnable {
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private volatile boolean running = true;
+
+    NioReactor() throws IOException {
+        selector = Selector.open();
+    }
+
+    /**
+     * Takes over a newly accepted connection.
+     *
+     * @param connection The connection.
+     */
+    void add(final NioConnection connection) {
+        execute(new Runnable() {
+            public void run() {
+                try {
+                    SocketChannel channel = connection.getChannel();
+                    channel.configureBlocking(false);
+                    connection.setKey(channel.register(selector, SelectionKey.OP_READ, connection));
+                } catch (IOException iox) {
+                    connection.close();
+                }
+            }
+        });
+    }
+
+    /**
+     * Asks for the connection's output to be written when the socket
+     * accepts it.
+     *
+     * @param connection A connection of this reactor.
+     */
+    void requestWrite(final NioConnection connection) {
+        execute(new Runnable() {
+            public void run() {
+                connection.onWriteRequested();
+            }
+        });
+    }
+
+    /**
+     * Asks for a connection whose reading was paused to be read again.
+     *
+     * @param connection A connection of this reactor.
+     */
+    void resumeRead(final NioConnection connection) {
+        execute(new Runnable() {
+            public void run() {
+                connection.onResumeRead();
+            }
+        });
+    }
+
+    private void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    void close() {
+        running = false;
+        selector.wakeup();
+    }
+
+    public void run() {
+        while (running) {
+            try {
+                selector.select();
+            } catch (IOException iox) {
+                iox.printStackTrace();
+                break;
+            }
+
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                NioConnection connection = (NioConnection) key.attachment();
+                try {
+                    if (key.isValid() && key.isReadable()) {
+                        connection.onReadable();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        connection.onWritable();
+                    }
+                } catch (IOException | CancelledKeyException ex) {
+                    connection.close();
+                }
+            }
+        }
+
+        for (SelectionKey key : selector.keys()) {
+            ((NioConnection) key.attachment()).close();
+        }
+        try {
+            selector.close();
+        } catch (IOException iox) {
+        }
+    }
+}
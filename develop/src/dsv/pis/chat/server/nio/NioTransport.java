@@ -0,0 +1,144 @@
+package dsv.pis.chat.server.nio;
+
+import dsv.pis.chat.server.ChatServerInterface;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Offers the operations of ChatServerInterface over plain TCP, using the
+ * protocol in NioProtocol. One thread accepts connections and deals them
+ * out round-robin to a small pool of reactors, each running one selector,
+ * so the number of threads does not grow with the number of clients. The
+ * reactors only read, frame and write; a fixed pool of workers carries out
+ * the requests, so a call that waits on the server never stops the
+ * network traffic of other connections.
+ */
+public class NioTransport implements Runnable {
+    private final ChatServerInterface server;
+    private final SessionHost sessions;
+    private final ServerSocketChannel acceptor;
+    private final NioReactor[] reactors;
+    private final ExecutorService workers;
+    private volatile boolean running = true;
+
+    /**
+     * How long the acceptor waits after a failed accept, at first and at
+     * most. The wait doubles with every failure in a row.
+     */
+    private static final long MIN_ACCEPT_BACKOFF_MILLIS = 10;
+    private static final long MAX_ACCEPT_BACKOFF_MILLIS = 1000;
+
+    /**
+     * Creates a new NioTransport, with two workers per reactor, and starts
+     * its threads.
+     *
+     * @param server    The chat server the requests go to.
+     * @param port      The TCP port to listen on, or 0 for any free port.
+     * @param selectors The number of reactor threads.
+     */
+    public <S extends ChatServerInterface & SessionHost> NioTransport(S server, int port, int selectors)
+            throws IOException {
+        this(server, port, selectors, 2 * selectors);
+    }
+
+    /**
+     * Creates a new NioTransport and starts its threads.
+     *
+     * @param server    The chat server the requests go to.
+     * @param port      The TCP port to listen on, or 0 for any free port.
+     * @param selectors The number of reactor threads.
+     * @param workers   The number of threads that carry out requests.
+     */
+    public <S extends ChatServerInterface & SessionHost> NioTransport(S server, int port, int selectors, int workers)
+            throws IOException {
+        this.server = server;
+        this.sessions = server;
+        // Each connection has at most one task queued at a time, so the
+        // queue is bounded by the number of connections.
+        this.workers = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "nio-worker-" + count.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        acceptor = ServerSocketChannel.open();
+        acceptor.socket().setReuseAddress(true);
+        acceptor.socket().bind(new InetSocketAddress(port));
+
+        reactors = new NioReactor[selectors];
+        for (int i = 0; i < selectors; i++) {
+            reactors[i] = new NioReactor();
+            Thread t = new Thread(reactors[i], "nio-reactor-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+        Thread t = new Thread(this, "nio-acceptor");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * @return The port this transport listens on.
+     */
+    public int getPort() {
+        return acceptor.socket().getLocalPort();
+    }
+
+    public void run() {
+        int next = 0;
+        long backoff = 0;
+        while (running) {
+            try {
+                SocketChannel channel = acceptor.accept();
+                channel.socket().setTcpNoDelay(true);
+                NioReactor reactor = reactors[next];
+                next = (next + 1) % reactors.length;
+                reactor.add(new NioConnection(channel, reactor, server, sessions, workers));
+                backoff = 0;
+            } catch (IOException iox) {
+                if (!running) {
+                    break;
+                }
+                // Out of file descriptors, say: it will fail again at once,
+                // so wait, longer each time, rather than spin.
+                if (backoff == 0) {
+                    iox.printStackTrace();
+                }
+                backoff = Math.min(Math.max(2 * backoff, MIN_ACCEPT_BACKOFF_MILLIS), MAX_ACCEPT_BACKOFF_MILLIS);
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException iex) {
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops accepting connections and closes the open ones.
+     */
+    public void close() {
+        running = false;
+        try {
+            acceptor.close();
+        } catch (IOException iox) {
+        }
+        for (NioReactor reactor : reactors) {
+            reactor.close();
+        }
+        workers.shutdown();
+    }
+}
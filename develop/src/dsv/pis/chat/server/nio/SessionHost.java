@@ -0,0 +1,40 @@
+package dsv.pis.chat.server.nio;
+
+import net.jini.core.event.RemoteEventListener;
+
+import java.rmi.RemoteException;
+import java.util.UUID;
+
+/**
+ * A chat server that a transport in the same JVM serves. Besides the
+ * calls of ChatServerInterface, it gives the transport the handle of each
+ * session registered over it, which the transport keeps and ends the
+ * session with. A UUID names whatever session the client has at the
+ * moment; a handle names one session, and finds nothing once that
+ * session is over or replaced, so a connection the client has left cannot
+ * end the session it has moved to.
+ * <p>
+ * It is not a remote interface, so it stays out of the RMI stubs of the
+ * servers that implement it.
+ */
+public interface SessionHost {
+    /**
+     * Registers a client as ChatServerInterface.register() does.
+     *
+     * @param uuid The id of the client.
+     * @param rel  The listener to deliver to.
+     * @return The handle of the session, or SessionTable.NO_HANDLE if none
+     * was made.
+     */
+    int registerSession(UUID uuid, RemoteEventListener rel) throws RemoteException;
+
+    /**
+     * Ends a session as ChatServerInterface.unregister() does, but only
+     * if it is still the session with this handle and still delivers to
+     * this listener.
+     *
+     * @param handle A handle returned by registerSession().
+     * @param rel    The listener it was registered with.
+     */
+    void endSession(int handle, RemoteEventListener rel) throws RemoteException;
+}
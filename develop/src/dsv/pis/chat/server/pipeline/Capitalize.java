@@ -0,0 +1,24 @@
+package dsv.pis.chat.server.pipeline;
+
+/**
+ * Starts every word with a capital letter. The simplest transformation
+ * there is, to show that a proxy or server is in the way.
+ */
+public class Capitalize implements MessageStage {
+    public boolean process(StagedMessage message) {
+        char[] text = message.getText().toCharArray();
+        boolean start = true;
+        for (int i = 0; i < text.length; i++) {
+            if (Character.isLetter(text[i])) {
+                if (start) {
+                    text[i] = Character.toUpperCase(text[i]);
+                }
+                start = false;
+            } else {
+                start = Character.isWhitespace(text[i]);
+            }
+        }
+        message.setText(new String(text));
+        return true;
+    }
+}
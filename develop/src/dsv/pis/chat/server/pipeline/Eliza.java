@@ -0,0 +1,74 @@
+package dsv.pis.chat.server.pipeline;
+
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Adds the comment of a (very) small Eliza to messages it has something
+ * to say about, in brackets after the text. Messages it does not
+ * recognize pass unchanged.
+ */
+public class Eliza implements MessageStage {
+    private static final Pattern[] PATTERNS = {
+            Pattern.compile("\\bi feel (.+?)[.!]*$"),
+            Pattern.compile("\\bi am (.+?)[.!]*$"),
+            Pattern.compile("\\bi(?: want| need) (.+?)[.!]*$"),
+            Pattern.compile("\\bbecause\\b"),
+            Pattern.compile("\\b(?:mother|father|family)\\b"),
+    };
+
+    private static final String[] REPLIES = {
+            "Why do you feel %s?",
+            "How long have you been %s?",
+            "What would it mean to you to get %s?",
+            "Is that the real reason?",
+            "Tell me more about your family.",
+    };
+
+    public boolean process(StagedMessage message) {
+        String text = message.getText().toLowerCase(Locale.ROOT);
+        for (int i = 0; i < PATTERNS.length; i++) {
+            Matcher m = PATTERNS[i].matcher(text);
+            if (m.find()) {
+                String reply = (m.groupCount() > 0) ? String.format(REPLIES[i], reflect(m.group(1)))
+                        : REPLIES[i];
+                message.setText(message.getText() + "  [Eliza: " + reply + "]");
+                break;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Turns the speaker's words around: "my" becomes "your" and so on.
+     */
+    private static String reflect(String words) {
+        StringBuilder reflected = new StringBuilder();
+        for (String word : words.split("\\s+")) {
+            if (reflected.length() > 0) {
+                reflected.append(' ');
+            }
+            switch (word) {
+                case "my":
+                    reflected.append("your");
+                    break;
+                case "me":
+                    reflected.append("you");
+                    break;
+                case "i":
+                    reflected.append("you");
+                    break;
+                case "am":
+                    reflected.append("are");
+                    break;
+                case "your":
+                    reflected.append("my");
+                    break;
+                default:
+                    reflected.append(word);
+            }
+        }
+        return reflected.toString();
+    }
+}
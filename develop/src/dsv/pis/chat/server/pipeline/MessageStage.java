@@ -0,0 +1,22 @@
+package dsv.pis.chat.server.pipeline;
+
+/**
+ * One step of a Pipeline: a filter or transformation of the messages
+ * clients send, such as masking words or adding a bot's comment. A stage
+ * is made from its class name with the no-argument constructor.
+ * <p>
+ * The stage's worker threads share one instance, so it must be safe to
+ * call from several threads. The messages of one sender come to the same
+ * worker, one at a time and in the order they were sent; a stage that
+ * keeps state per sender therefore needs no lock for it, as long as the
+ * state is only touched by that sender's messages.
+ */
+public interface MessageStage {
+    /**
+     * Processes one message. The stage may replace its text.
+     *
+     * @param message The message.
+     * @return True to pass the message on, false to drop it.
+     */
+    boolean process(StagedMessage message);
+}
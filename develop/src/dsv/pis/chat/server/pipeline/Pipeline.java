@@ -0,0 +1,385 @@
+package dsv.pis.chat.server.pipeline;
+
+import dsv.pis.chat.server.metrics.LatencyHistogram;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A chain of MessageStages that the messages of clients go through
+ * between the call that sends them and their delivery. Each stage has
+ * worker threads of its own, each with a bounded queue, so a slow stage
+ * holds up neither the caller nor the other stages, and a stage with
+ * several workers processes several messages at once.
+ * <p>
+ * The messages of one sender always go to the same worker of each stage,
+ * chosen by the sender's UUID, and queues are first in, first out; the
+ * messages of a sender therefore leave the pipeline in the order they
+ * entered it. Different senders may overtake each other.
+ * <p>
+ * When a queue is full, whoever hands it a message waits for room, the
+ * caller of submit() like the workers of the stage before. The pipeline
+ * thus slows down to its slowest stage instead of losing messages, the
+ * way producers wait for the message queue of the server. As long as the
+ * stages keep up, submit() returns at once.
+ *
+ * @param <M> The kind of message, which the sink delivers.
+ */
+public class Pipeline<M extends StagedMessage> {
+    /**
+     * The most messages waiting for one worker.
+     */
+    private static final int QUEUE_SIZE = 1024;
+
+    /**
+     * How often a submit() that waits for room checks for closing.
+     */
+    private static final long SUBMIT_POLL_MILLIS = 100;
+
+    /**
+     * How often awaitEmpty() checks the pipeline.
+     */
+    private static final long DRAIN_POLL_MILLIS = 10;
+
+    /**
+     * Where messages go when they leave the pipeline. The sink is called
+     * on the workers of the last stage, or of the stage that dropped the
+     * message.
+     *
+     * @param <M> The kind of message.
+     */
+    public interface Sink<M> {
+        /**
+         * @param message A message that has passed every stage.
+         */
+        void deliver(M message);
+
+        /**
+         * @param message A message that a stage dropped.
+         */
+        void dropped(M message);
+    }
+
+    /**
+     * One stage with its workers and figures.
+     */
+    private class Stage {
+        private final String name;
+        private final MessageStage stage;
+        private final List<Worker> workers = new ArrayList<>();
+
+        /**
+         * From the moment a message is queued for the stage to the moment
+         * the stage is done with it.
+         */
+        private final LatencyHistogram latency = new LatencyHistogram();
+
+        /**
+         * The time process() takes.
+         */
+        private final LatencyHistogram service = new LatencyHistogram();
+
+        private final AtomicLong passed = new AtomicLong();
+        private final AtomicLong dropped = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+
+        Stage(String name, MessageStage stage, int index, int workerCount) {
+            this.name = name;
+            this.stage = stage;
+            for (int i = 0; i < workerCount; i++) {
+                workers.add(new Worker(this, index, "stage-" + name + "-" + i));
+            }
+        }
+
+        Worker workerFor(M message) {
+            if (workers.size() == 1 || message.getSender() == null) {
+                return workers.get(0);
+            }
+            return workers.get((message.getSender().hashCode() & Integer.MAX_VALUE) % workers.size());
+        }
+
+        int waiting() {
+            int waiting = 0;
+            for (Worker worker : workers) {
+                waiting += worker.queue.size();
+            }
+            return waiting;
+        }
+    }
+
+    /**
+     * A worker thread of a stage.
+     */
+    private class Worker implements Runnable {
+        private final Stage stage;
+        private final int index;
+        private final BlockingQueue<M> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+        private final Thread thread;
+
+        Worker(Stage stage, int index, String threadName) {
+            this.stage = stage;
+            this.index = index;
+            thread = new Thread(this, threadName);
+            thread.setDaemon(true);
+        }
+
+        public void run() {
+            try {
+                while (!closed) {
+                    M message = queue.take();
+                    long start = System.nanoTime();
+                    boolean keep;
+                    try {
+                        keep = stage.stage.process(message);
+                    } catch (RuntimeException rex) {
+                        // A broken stage passes messages on unchanged
+                        // rather than losing the chat.
+                        stage.failed.incrementAndGet();
+                        System.out.println("Stage " + stage.name + " failed: " + rex);
+                        keep = true;
+                    }
+                    long end = System.nanoTime();
+                    stage.service.record(end - start);
+                    stage.latency.record(end - message.enteredNanos);
+                    if (keep) {
+                        stage.passed.incrementAndGet();
+                        forward(index + 1, message);
+                    } else {
+                        stage.dropped.incrementAndGet();
+                        try {
+                            sink.dropped(message);
+                        } catch (RuntimeException rex) {
+                            rex.printStackTrace();
+                        }
+                        inFlight.decrementAndGet();
+                    }
+                }
+            } catch (InterruptedException ie) {
+                // Closing.
+            }
+        }
+    }
+
+    private final List<Stage> stages = new ArrayList<>();
+    private final Sink<M> sink;
+    /**
+     * The number of submit() calls that found the first stage full.
+     */
+    private final AtomicLong stalls = new AtomicLong();
+
+    /**
+     * The number of messages submitted that have not yet left the
+     * pipeline.
+     */
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private volatile boolean closed = false;
+
+    /**
+     * Makes the stages and starts their workers.
+     *
+     * @param specs The stages in order, each as a class name, optionally
+     *              followed by a colon and the number of workers. Classes
+     *              of this package may be given without the package.
+     * @param sink  Where the messages go after the last stage.
+     * @throws IllegalArgumentException If a stage cannot be made.
+     */
+    public Pipeline(List<String> specs, Sink<M> sink) {
+        this.sink = sink;
+        for (String spec : specs) {
+            int colon = spec.lastIndexOf(':');
+            int workers = 1;
+            String name = spec;
+            if (colon > 0) {
+                name = spec.substring(0, colon);
+                try {
+                    workers = Integer.parseInt(spec.substring(colon + 1));
+                } catch (NumberFormatException nfe) {
+                    workers = 0;
+                }
+                if (workers < 1) {
+                    throw new IllegalArgumentException("Stage is not class[:workers]: " + spec);
+                }
+            }
+            MessageStage stage = newStage(name);
+            stages.add(new Stage(stage.getClass().getSimpleName(), stage, stages.size(), workers));
+        }
+        for (Stage stage : stages) {
+            for (Worker worker : stage.workers) {
+                worker.thread.start();
+            }
+        }
+    }
+
+    /**
+     * @param name The class name of a stage, which may leave out the
+     *             package if it is this one.
+     * @return A new instance of the stage.
+     * @throws IllegalArgumentException If there is no such stage.
+     */
+    public static MessageStage newStage(String name) {
+        Class<?> c = null;
+        if (name.indexOf('.') < 0) {
+            try {
+                c = Class.forName(Pipeline.class.getPackage().getName() + "." + name);
+            } catch (ClassNotFoundException cnfe) {
+                // Not one of ours, perhaps in the default package.
+            }
+        }
+        if (c == null) {
+            try {
+                c = Class.forName(name);
+            } catch (ClassNotFoundException cnfe) {
+                throw new IllegalArgumentException("No such stage: " + name);
+            }
+        }
+        if (!MessageStage.class.isAssignableFrom(c)) {
+            throw new IllegalArgumentException("Not a MessageStage: " + name);
+        }
+        try {
+            return (MessageStage) c.getConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalArgumentException("Cannot make stage " + name + ": " + e);
+        }
+    }
+
+    /**
+     * @return The number of stages.
+     */
+    public int size() {
+        return stages.size();
+    }
+
+    /**
+     * Hands a message to the first stage, waiting while it is full.
+     * Without stages the message goes to the sink at once, on the calling
+     * thread.
+     *
+     * @param message The message.
+     * @return False if the pipeline is closed, or closes while waiting,
+     * in which case the message is not processed.
+     */
+    public boolean submit(M message) {
+        if (closed) {
+            return false;
+        }
+        if (stages.isEmpty()) {
+            sink.deliver(message);
+            return true;
+        }
+        message.enteredNanos = System.nanoTime();
+        BlockingQueue<M> queue = stages.get(0).workerFor(message).queue;
+        inFlight.incrementAndGet();
+        if (queue.offer(message)) {
+            return true;
+        }
+        stalls.incrementAndGet();
+        try {
+            while (!queue.offer(message, SUBMIT_POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                if (closed) {
+                    inFlight.decrementAndGet();
+                    return false;
+                }
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            inFlight.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Hands a message to a stage, or to the sink after the last one.
+     * Waits while the stage is full.
+     */
+    private void forward(int index, M message) throws InterruptedException {
+        if (index == stages.size()) {
+            try {
+                sink.deliver(message);
+            } catch (RuntimeException rex) {
+                rex.printStackTrace();
+            }
+            inFlight.decrementAndGet();
+            return;
+        }
+        message.enteredNanos = System.nanoTime();
+        stages.get(index).workerFor(message).queue.put(message);
+    }
+
+    /**
+     * @return The number of messages that have been submitted and have
+     * not yet left the pipeline.
+     */
+    public int inFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * Waits until every message submitted so far has left the pipeline,
+     * for a shutdown that does not want to lose them. Submitting must
+     * have stopped, or the pipeline may never be empty.
+     *
+     * @param deadlineNanos Until when to wait at most, by
+     *                      System.nanoTime().
+     * @return True if the pipeline is empty, false if the deadline passed
+     * first.
+     */
+    public boolean awaitEmpty(long deadlineNanos) {
+        while (inFlight.get() > 0) {
+            if (System.nanoTime() - deadlineNanos >= 0) {
+                return false;
+            }
+            try {
+                Thread.sleep(DRAIN_POLL_MILLIS);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The figures of each stage, one per line.
+     */
+    public String report() {
+        StringBuilder text = new StringBuilder("Pipeline: " + stages.size() + " stages, "
+                + inFlight.get() + " messages in flight, " + stalls.get() + " times full when submitting");
+        for (Stage stage : stages) {
+            LatencyHistogram.Snapshot latency = stage.latency.snapshot();
+            LatencyHistogram.Snapshot service = stage.service.snapshot();
+            text.append("\nStage ").append(stage.name).append(": ").append(stage.workers.size())
+                    .append(" workers, ").append(stage.waiting()).append(" waiting, ")
+                    .append(stage.passed.get()).append(" passed, ").append(stage.dropped.get())
+                    .append(" dropped, ").append(stage.failed.get()).append(" failed")
+                    .append("\n  latency us : p50 ").append(micros(latency.percentile(0.5)))
+                    .append(", p99 ").append(micros(latency.percentile(0.99)))
+                    .append(", max ").append(micros(latency.getMax()))
+                    .append("\n  process us : p50 ").append(micros(service.percentile(0.5)))
+                    .append(", p99 ").append(micros(service.percentile(0.99)))
+                    .append(", max ").append(micros(service.getMax()));
+        }
+        return text.toString();
+    }
+
+    private static long micros(long nanos) {
+        return nanos / 1000;
+    }
+
+    /**
+     * Stops the workers. Messages still in the pipeline are dropped.
+     */
+    public void close() {
+        closed = true;
+        for (Stage stage : stages) {
+            for (Worker worker : stage.workers) {
+                worker.thread.interrupt();
+            }
+        }
+    }
+}
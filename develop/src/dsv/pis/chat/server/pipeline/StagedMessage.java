@@ -0,0 +1,58 @@
+package dsv.pis.chat.server.pipeline;
+
+import java.util.UUID;
+
+/**
+ * A chat message on its way through a Pipeline. Stages see who sent it
+ * and where it goes, and may replace its text. Whoever submits messages
+ * may subclass it to carry what the sink needs to deliver them.
+ */
+public class StagedMessage {
+    private final UUID sender;
+    private final String senderName;
+    private final String room;
+    private String text;
+
+    /**
+     * When the message was queued for the stage it is in.
+     */
+    long enteredNanos;
+
+    /**
+     * @param sender     The id the sender registered with.
+     * @param senderName The sender's name.
+     * @param room       The room the message is said in, or null for the
+     *                   public chat.
+     * @param text       The message.
+     */
+    public StagedMessage(UUID sender, String senderName, String room, String text) {
+        this.sender = sender;
+        this.senderName = senderName;
+        this.room = room;
+        this.text = text;
+    }
+
+    public UUID getSender() {
+        return sender;
+    }
+
+    public String getSenderName() {
+        return senderName;
+    }
+
+    /**
+     * @return The room the message is said in, or null for the public
+     * chat.
+     */
+    public String getRoom() {
+        return room;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    public void setText(String text) {
+        this.text = text;
+    }
+}
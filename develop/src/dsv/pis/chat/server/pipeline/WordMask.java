@@ -0,0 +1,53 @@
+package dsv.pis.chat.server.pipeline;
+
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Masks unwanted words with asterisks, keeping the rest of the message.
+ * The words are given, separated by commas, in the system property
+ * dsv.pis.chat.maskWords; without it a few mild ones are masked, for
+ * illustration. Case does not matter, and only whole words are masked.
+ */
+public class WordMask implements MessageStage {
+    private static final String DEFAULT_WORDS = "darn,heck,drat";
+
+    private final Set<String> words = new HashSet<>();
+
+    public WordMask() {
+        for (String word : System.getProperty("dsv.pis.chat.maskWords", DEFAULT_WORDS).split(",")) {
+            if (word.trim().length() > 0) {
+                words.add(word.trim().toLowerCase(Locale.ROOT));
+            }
+        }
+    }
+
+    public boolean process(StagedMessage message) {
+        String text = message.getText();
+        StringBuilder masked = null;
+        int i = 0;
+        while (i < text.length()) {
+            if (!Character.isLetter(text.charAt(i))) {
+                i++;
+                continue;
+            }
+            int start = i;
+            while (i < text.length() && Character.isLetter(text.charAt(i))) {
+                i++;
+            }
+            if (words.contains(text.substring(start, i).toLowerCase(Locale.ROOT))) {
+                if (masked == null) {
+                    masked = new StringBuilder(text);
+                }
+                for (int j = start; j < i; j++) {
+                    masked.setCharAt(j, '*');
+                }
+            }
+        }
+        if (masked != null) {
+            message.setText(masked.toString());
+        }
+        return true;
+    }
+}